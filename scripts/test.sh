@@ -13,7 +13,7 @@ argc=$#
 
 if (( argc < 2 )) 
 then
-	echo "Usage: $0 <peer_ap> BACKUP|RESTORE|DELETE|RECLAIM|STATE [<opnd_1> [<optnd_2]]"
+	echo "Usage: $0 <peer_ap> BACKUP|BACKUPEC|BACKUPDEDUP|RESTORE|DELETE|VERIFY|RECLAIM|STATE [<opnd_1> [<optnd_2]]"
 	exit 1
 fi
 
@@ -26,13 +26,31 @@ oper=$2
 
 case $oper in
 BACKUP)
-	if(( argc != 4 )) 
+	if(( argc != 4 && argc != 5 )) 
 	then
-		echo "Usage: $0 <peer_ap> BACKUP <filename> <rep degree>"
+		echo "Usage: $0 <peer_ap> BACKUP <filename> <rep degree> [NONE|DEFLATE|DEFLATE_FAST]"
 		exit 1
 	fi
 	opernd_1=$3
-	rep_deg=$4
+	rep_deg="$4 $5"
+	;;
+BACKUPEC)
+	if(( argc != 5 && argc != 6 ))
+	then
+		echo "Usage: $0 <peer_ap> BACKUPEC <filename> <data fragments> <parity fragments> [NONE|DEFLATE|DEFLATE_FAST]"
+		exit 1
+	fi
+	opernd_1=$3
+	rep_deg="$4 $5 $6"
+	;;
+BACKUPDEDUP)
+	if(( argc != 4 && argc != 5 ))
+	then
+		echo "Usage: $0 <peer_ap> BACKUPDEDUP <filename> <rep degree> [NONE|DEFLATE|DEFLATE_FAST]"
+		exit 1
+	fi
+	opernd_1=$3
+	rep_deg="$4 $5"
 	;;
 RESTORE)
 	if(( argc != 3 ))
@@ -51,6 +69,15 @@ DELETE)
 	opernd_1=$3
 	rep_deg=""
 	;;
+VERIFY)
+	if(( argc  != 3 ))
+	then
+		echo "Usage: $0 <peer_app> VERIFY <filename>"
+		exit 1
+	fi
+	opernd_1=$3
+	rep_deg=""
+	;;
 RECLAIM)
 	if(( argc != 3 ))
 	then
@@ -70,7 +97,7 @@ STATE)
 	rep_deg=""
 	;;
 *)
-	echo "Usage: $0 <peer_ap> BACKUP|RESTORE|DELETE|RECLAIM|STATE [<opnd_1> [<optnd_2]]"
+	echo "Usage: $0 <peer_ap> BACKUP|BACKUPEC|BACKUPDEDUP|RESTORE|DELETE|VERIFY|RECLAIM|STATE [<opnd_1> [<optnd_2]]"
 	exit 1
 	;;
 esac
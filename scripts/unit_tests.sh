@@ -0,0 +1,15 @@
+#! /usr/bin/bash
+
+#Compiles the sources with the test classes and runs each of them, a failed check ends the run
+
+set -e
+
+rm -rf build-test/
+mkdir build-test/
+
+# shellcheck disable=SC2046
+javac -nowarn -d build-test/ $(find src test -name '*.java')
+
+for test in $(cd test && find . -name '*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g'); do
+  java -ea -cp build-test/ "$test"
+done
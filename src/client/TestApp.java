@@ -15,7 +15,8 @@ public class TestApp {
     private static Registry registry;
 
     /**
-     * @param args "Usage: <peer_ap> BACKUP|RESTORE|DELETE|RECLAIM|STATE [<opnd_1> [<optnd_2]]"
+     * @param args "Usage: <peer_ap> BACKUP|BACKUPEC|BACKUPDEDUP|RESTORE|DELETE|VERIFY|RECLAIM|STATE [<opnd_1> [<optnd_2]]"
+     *             BACKUP, BACKUPEC and BACKUPDEDUP take the codec of the chunks as last optional operand: NONE, DEFLATE or DEFLATE_FAST
      */
     public static void main(String[] args) {
         if (args.length < 2) {
@@ -29,12 +30,21 @@ public class TestApp {
                 case "BACKUP":
                     handleBackup(args);
                     break;
+                case "BACKUPEC":
+                    handleBackupErasureCoded(args);
+                    break;
+                case "BACKUPDEDUP":
+                    handleBackupDeduplicated(args);
+                    break;
                 case "RESTORE":
                     handleRestore(args);
                     break;
                 case "DELETE":
                     handleDelete(args);
                     break;
+                case "VERIFY":
+                    handleVerify(args);
+                    break;
                 case "RECLAIM":
                     handleReclaim(args);
                     break;
@@ -61,7 +71,38 @@ public class TestApp {
             return;
         }
         try {
-            initiatorPeer.backup(args[2], Integer.parseInt(args[3]));
+            if (args.length > 4)
+                initiatorPeer.backup(args[2], Integer.parseInt(args[3]), args[4]);
+            else
+                initiatorPeer.backup(args[2], Integer.parseInt(args[3]));
+        } catch (RemoteException e) {
+            System.err.println("Error Executing The remote backup request");
+            e.printStackTrace();
+            return;
+        }
+    }
+
+    private static void handleBackupErasureCoded(String[] args) {
+        if (args.length < 5) {
+            System.err.println("Invalid Backup Request");
+            return;
+        }
+        try {
+            initiatorPeer.backupErasureCoded(args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]), args.length > 5 ? args[5] : "NONE");
+        } catch (RemoteException e) {
+            System.err.println("Error Executing The remote backup request");
+            e.printStackTrace();
+            return;
+        }
+    }
+
+    private static void handleBackupDeduplicated(String[] args) {
+        if (args.length < 4) {
+            System.err.println("Invalid Backup Request");
+            return;
+        }
+        try {
+            initiatorPeer.backupDeduplicated(args[2], Integer.parseInt(args[3]), args.length > 4 ? args[4] : "NONE");
         } catch (RemoteException e) {
             System.err.println("Error Executing The remote backup request");
             e.printStackTrace();
@@ -89,6 +130,15 @@ public class TestApp {
         }
     }
 
+    private static void handleVerify(String[] args) {
+        try {
+            initiatorPeer.verify(args[2]);
+        } catch (RemoteException e) {
+            System.err.println("Error Executing The remote verify request");
+            e.printStackTrace();
+        }
+    }
+
     private static void handleReclaim(String[] args) {
         try {
             initiatorPeer.reclaim(Integer.parseInt(args[2]));
@@ -1,13 +1,17 @@
 package peer;
 
+import peer.channels.Channel;
+import peer.channels.ReceiverEngine;
 import peer.filesystem.FileSystem;
 import peer.protocols.protocols.Protocol;
 import peer.protocols.protocols.protocol1_0.Protocol1_0;
 import peer.protocols.protocols.protocol1_1.Protocol1_1;
+import peer.protocols.protocols.protocol1_2.Protocol1_2;
 import peer.protocols.reply_worker_strategy.concrete_strategies.ReplyBackupWorker;
 import peer.protocols.reply_worker_strategy.concrete_strategies.ReplyControlWorker;
 import peer.protocols.reply_worker_strategy.concrete_strategies.ReplyRestoreWorker;
 import peer.remote.RemoteInterface;
+import peer.utils.ChunkCodec;
 import peer.utils.Constants;
 
 import java.io.File;
@@ -30,6 +34,7 @@ public class Peer implements RemoteInterface {
 
     private Protocol protocol;
     private final FileSystem fileSystem;
+    private final ReceiverEngine receiverEngine;
 
     /**
      * @param protocolVersion    Version of the protocol
@@ -48,29 +53,35 @@ public class Peer implements RemoteInterface {
         this.id = peerId;
         this.serviceAccessPoint = serviceAccessPoint;
 
+        //Created before the protocol, which schedules its own housekeeping
+        threadPool = new ScheduledThreadPoolExecutor(Constants.THREAD_POOL_SIZE);
 
         if (protocolVersion.equals("1.0"))
             this.protocol = new Protocol1_0(this, MCIp, MCPort, MDBIp, MDBPort, MDRIp, MDRPort);
         else if (protocolVersion.equals("1.1"))
             this.protocol = new Protocol1_1(this, MCIp, MCPort, MDBIp, MDBPort, MDRIp, MDRPort);
+        else if (protocolVersion.equals("1.2"))
+            this.protocol = new Protocol1_2(this, MCIp, MCPort, MDBIp, MDBPort, MDRIp, MDRPort);
         else
             throw new InvalidParameterException("Invalid Protocol Version");
 
         this.fileSystem = new FileSystem(this.id);
 
-        threadPool = new ScheduledThreadPoolExecutor(Constants.THREAD_POOL_SIZE);
-
-        ReceiverThread controlChannelThread = new ReceiverThread(new ReplyControlWorker(), protocol, MCIp, MCPort, Constants.MAX_CONTROL_MSG_SIZE);
-        ReceiverThread backupChannelThread = new ReceiverThread(new ReplyBackupWorker(), protocol, MDBIp, MDBPort, Constants.MAX_MESSAGE_SIZE);
-        ReceiverThread restoreChannelThread = new ReceiverThread(new ReplyRestoreWorker(), protocol, MDRIp, MDRPort, Constants.MAX_MESSAGE_SIZE);
+        receiverEngine = new ReceiverEngine(protocol, Constants.DISPATCH_POOL_SIZE, Constants.DISPATCH_QUEUE_CAPACITY);
+        receiverEngine.register(Channel.MC, new ReplyControlWorker(), MCIp, MCPort);
+        receiverEngine.register(Channel.MDB, new ReplyBackupWorker(), MDBIp, MDBPort);
+        receiverEngine.register(Channel.MDR, new ReplyRestoreWorker(), MDRIp, MDRPort);
 
-        new Thread(controlChannelThread).start();
-        new Thread(backupChannelThread).start();
-        new Thread(restoreChannelThread).start();
+        new Thread(receiverEngine).start();
 
         System.out.println(protocol.getPeer().getId() + " Listening in all channels");
 
         new Thread(() -> heartbeatLoop()).start();
+
+        threadPool.execute(() -> {
+            protocol.settleReplacements();
+            protocol.resumeRestores();
+        });
     }
 
     @Override
@@ -78,6 +89,32 @@ public class Peer implements RemoteInterface {
         threadPool.execute(() -> protocol.backup(filename, replicationLevel));
     }
 
+    @Override
+    public void backup(String filename, int replicationLevel, String codec) throws RemoteException {
+        int codecCode = parseCodec(codec);
+        threadPool.execute(() -> protocol.backup(filename, replicationLevel, 0, 0, codecCode));
+    }
+
+    @Override
+    public void backupErasureCoded(String filename, int dataFragments, int parityFragments, String codec) throws RemoteException {
+        int codecCode = parseCodec(codec);
+        threadPool.execute(() -> protocol.backup(filename, 1, dataFragments, parityFragments, codecCode));
+    }
+
+    @Override
+    public void backupDeduplicated(String filename, int replicationLevel, String codec) throws RemoteException {
+        int codecCode = parseCodec(codec);
+        threadPool.execute(() -> protocol.backupDeduplicated(filename, replicationLevel, codecCode));
+    }
+
+    private int parseCodec(String codec) throws RemoteException {
+        try {
+            return ChunkCodec.fromName(codec);
+        } catch (IllegalArgumentException e) {
+            throw new RemoteException(e.getMessage());
+        }
+    }
+
     @Override
     public void restore(String filename) throws RemoteException {
         threadPool.execute(() -> protocol.restore(filename));
@@ -96,6 +133,11 @@ public class Peer implements RemoteInterface {
         });
     }
 
+    @Override
+    public void verify(String filename) throws RemoteException {
+        threadPool.execute(() -> protocol.verify(filename));
+    }
+
     @Override
     public void reclaim(int value) throws RemoteException {
         threadPool.execute(() -> protocol.reclaim(value));
@@ -103,7 +145,9 @@ public class Peer implements RemoteInterface {
 
     @Override
     public String state() throws RemoteException {
-        return protocol.state();
+        StringBuilder stringBuilder = new StringBuilder(protocol.state());
+        receiverEngine.appendStatistics(stringBuilder);
+        return stringBuilder.toString();
     }
 
     private void heartbeatLoop() {
@@ -0,0 +1,94 @@
+package peer.channels;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers for the receive path. A buffer is borrowed per datagram and comes back once its message is handled.
+ * At most maxOutstanding direct buffers are lent at once and at most capacity are kept idle, so the direct memory of the pool never
+ * exceeds (maxOutstanding + capacity) * bufferSize. Past that limit a datagram is received into a heap buffer, which is not pooled
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxOutstanding;
+    private final BlockingQueue<ByteBuffer> free;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * @param bufferSize     Size of every buffer
+     * @param capacity       Maximum number of idle buffers kept
+     * @param maxOutstanding Maximum number of direct buffers lent at once
+     */
+    public BufferPool(int bufferSize, int capacity, int maxOutstanding) {
+        this.bufferSize = bufferSize;
+        this.maxOutstanding = maxOutstanding;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return A cleared buffer: an idle one, a new direct one if fewer than maxOutstanding are lent, a heap one otherwise
+     */
+    public ByteBuffer acquire() {
+        if (outstanding.incrementAndGet() > maxOutstanding) {
+            outstanding.decrementAndGet();
+            exhausted.incrementAndGet();
+            return ByteBuffer.allocate(bufferSize);
+        }
+
+        ByteBuffer buffer = free.poll();
+
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        } else {
+            hits.incrementAndGet();
+            buffer.clear();
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back. Heap buffers, and direct ones when the pool is already full, are left to the garbage collector
+     *
+     * @param buffer Buffer obtained from acquire
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect())
+            return;
+
+        outstanding.decrementAndGet();
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Buffers handed out on the heap because maxOutstanding direct buffers were lent
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public int getIdle() {
+        return free.size();
+    }
+}
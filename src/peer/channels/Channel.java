@@ -0,0 +1,10 @@
+package peer.channels;
+
+/**
+ * The three multicast channels every peer talks in
+ */
+public enum Channel {
+    MC,
+    MDB,
+    MDR
+}
@@ -0,0 +1,109 @@
+package peer.channels;
+
+import peer.protocols.messages.Message;
+import peer.protocols.protocols.Protocol;
+import peer.protocols.reply_worker_strategy.ReplyWorkerStrategy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of decoded messages of one channel. The receiver only enqueues, the handlers run in the shared dispatch pool
+ */
+public class ChannelDispatcher {
+    private final Channel channel;
+    private final ReplyWorkerStrategy replyStrategy;
+    private final Protocol protocol;
+    private final ExecutorService dispatchPool;
+    private final BlockingQueue<Message> queue;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    /**
+     * @param channel       Channel served
+     * @param replyStrategy Worker Strategy to reply to requests
+     * @param protocol      Protocol version
+     * @param dispatchPool  Pool where the handlers run
+     * @param queueCapacity Maximum number of messages waiting for a handler
+     */
+    public ChannelDispatcher(Channel channel, ReplyWorkerStrategy replyStrategy, Protocol protocol, ExecutorService dispatchPool, int queueCapacity) {
+        this.channel = channel;
+        this.replyStrategy = replyStrategy;
+        this.protocol = protocol;
+        this.dispatchPool = dispatchPool;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Never blocks. If the queue is full the message is dropped, as the kernel would have done with a full socket buffer
+     *
+     * @param message Decoded message
+     * @return False if the message was dropped
+     */
+    public boolean enqueue(Message message) {
+        received.incrementAndGet();
+
+        if (!queue.offer(message)) {
+            message.release();
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+
+        try {
+            dispatchPool.execute(this::handleNext);
+        } catch (RejectedExecutionException e) {
+            if (queue.remove(message))
+                message.release();
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void handleNext() {
+        Message message = queue.poll();
+
+        if (message == null)
+            return;
+
+        try {
+            replyStrategy.reply(message, protocol);
+        } finally {
+            message.release();
+            handled.incrementAndGet();
+        }
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getHandled() {
+        return handled.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
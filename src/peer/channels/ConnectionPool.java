@@ -0,0 +1,244 @@
+package peer.channels;
+
+import peer.utils.Constants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long lived TCP connections to restoring peers, one per destination. Every chunk sent to the same destination is written as a
+ * frame over the same connection, the frame body goes from the chunk file to the socket with transferTo.
+ * Frames are written by a sender thread of their own, so a slow restorer never holds back the datagrams of the MDR channel.
+ * That thread takes the tokens of each frame from the MDR pacer, so frames and datagrams share the same egress rate
+ */
+public class ConnectionPool {
+    private final ConcurrentHashMap<InetSocketAddress, PooledConnection> connections = new ConcurrentHashMap<>();
+    private final long idleTimeout;
+    private final SendQueue queue;
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param scheduler   Executor that runs the sweep of idle connections
+     * @param idleTimeout Time in ms a connection may stay unused before it is closed
+     * @param pacer       Bucket every frame takes its size from before it is written, shared with the MDR channel
+     */
+    public ConnectionPool(ScheduledExecutorService scheduler, long idleTimeout, TokenBucket pacer) {
+        this.idleTimeout = idleTimeout;
+        this.queue = new SendQueue("TCP sender", pacer, Constants.SEND_QUEUE_CAPACITY);
+
+        scheduler.scheduleAtFixedRate(this::closeIdle, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues one frame to the destination. Never blocks, the body is closed once the frame is written or dropped
+     *
+     * @param destination Address of the restoring peer
+     * @param header      Frame header between position and limit
+     * @param body        File whose whole content is the frame body
+     * @throws IOException
+     */
+    public void send(InetSocketAddress destination, ByteBuffer header, FileChannel body) throws IOException {
+        long bodyLength;
+
+        try {
+            bodyLength = body.size();
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+
+        boolean queued = queue.enqueue(new SendQueue.Write() {
+            @Override
+            public long size() {
+                return header.remaining() + bodyLength;
+            }
+
+            @Override
+            public void write() throws IOException {
+                try {
+                    ConnectionPool.this.write(destination, header, body, bodyLength);
+                } finally {
+                    body.close();
+                }
+            }
+
+            @Override
+            public void discard() {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+
+        if (!queued)
+            throw new IOException("Send queue full, frame to " + destination + " dropped");
+    }
+
+    /**
+     * A connection the other side already closed is replaced once before giving up
+     */
+    private void write(InetSocketAddress destination, ByteBuffer header, FileChannel body, long bodyLength) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            PooledConnection connection = connectionTo(destination);
+
+            try {
+                connection.write(header.duplicate(), body, bodyLength);
+                framesSent.incrementAndGet();
+                bytesSent.addAndGet(header.remaining() + bodyLength);
+                return;
+            } catch (IOException e) {
+                connection.close();
+                connections.remove(destination, connection);
+
+                if (attempt > 0)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Connecting blocks, so it happens outside of the map. Of two connections opened to the same destination at once, the one
+     * installed second is closed and the first one is used
+     */
+    private PooledConnection connectionTo(InetSocketAddress destination) throws IOException {
+        while (true) {
+            PooledConnection current = connections.get(destination);
+
+            if (current != null) {
+                if (current.isOpen()) {
+                    connectionsReused.incrementAndGet();
+                    return current;
+                }
+
+                connections.remove(destination, current);
+                continue;
+            }
+
+            SocketChannel socketChannel = SocketChannel.open(destination);
+            PooledConnection opened;
+
+            try {
+                opened = new PooledConnection(socketChannel);
+            } catch (IOException e) {
+                socketChannel.close();
+                throw e;
+            }
+
+            if (connections.putIfAbsent(destination, opened) == null) {
+                connectionsOpened.incrementAndGet();
+                return opened;
+            }
+
+            opened.close();
+        }
+    }
+
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+
+        for (InetSocketAddress address : connections.keySet()) {
+            connections.computeIfPresent(address, (k, connection) -> {
+                if (connection.isOpen() && now - connection.getLastUsed() < idleTimeout)
+                    return connection;
+
+                connection.close();
+                return null;
+            });
+        }
+    }
+
+    public void close() {
+        for (PooledConnection connection : connections.values())
+            connection.close();
+
+        connections.clear();
+    }
+
+    /**
+     * @return Queue of the frames waiting to be written
+     */
+    public SendQueue getQueue() {
+        return queue;
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private static class PooledConnection {
+        private final SocketChannel socketChannel;
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(SocketChannel socketChannel) throws IOException {
+            this.socketChannel = socketChannel;
+            this.socketChannel.socket().setTcpNoDelay(true);
+        }
+
+        /**
+         * Writers of the same connection take turns so frames never interleave
+         */
+        synchronized void write(ByteBuffer header, FileChannel body, long bodyLength) throws IOException {
+            //The restorer never writes back, end of stream means it closed its side after the last restore
+            socketChannel.configureBlocking(false);
+            probe.clear();
+            int read = socketChannel.read(probe);
+            socketChannel.configureBlocking(true);
+
+            if (read < 0)
+                throw new IOException("Connection closed by the restoring peer");
+
+            while (header.hasRemaining())
+                socketChannel.write(header);
+
+            long position = 0;
+            while (position < bodyLength)
+                position += body.transferTo(position, bodyLength - position, socketChannel);
+
+            lastUsed = System.currentTimeMillis();
+        }
+
+        boolean isOpen() {
+            return socketChannel.isOpen();
+        }
+
+        long getLastUsed() {
+            return lastUsed;
+        }
+
+        void close() {
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
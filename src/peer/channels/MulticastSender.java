@@ -0,0 +1,123 @@
+package peer.channels;
+
+import peer.utils.Constants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long lived sender of one multicast channel. The destination is resolved once and the same DatagramChannel is reused by every sender.
+ * A paced channel hands its datagrams to its send queue, whose thread waits for the tokens, an unpaced one sends them right away
+ */
+public class MulticastSender {
+    private final Channel channel;
+    private final InetSocketAddress destination;
+    private final DatagramChannel datagramChannel;
+    private final SendQueue queue;
+
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param channel Channel this sender writes to
+     * @param ip      Multicast group IP
+     * @param port    Multicast group port
+     * @throws IOException
+     */
+    public MulticastSender(Channel channel, String ip, int port) throws IOException {
+        this(channel, ip, port, null);
+    }
+
+    /**
+     * @param channel Channel this sender writes to
+     * @param ip      Multicast group IP
+     * @param port    Multicast group port
+     * @param pacer   Bucket every datagram takes its size from before it is sent, null to send right away
+     * @throws IOException
+     */
+    public MulticastSender(Channel channel, String ip, int port, TokenBucket pacer) throws IOException {
+        this.channel = channel;
+        this.queue = pacer != null ? new SendQueue(channel + " sender", pacer, Constants.SEND_QUEUE_CAPACITY) : null;
+        this.destination = new InetSocketAddress(ip, port);
+
+        if (destination.isUnresolved())
+            throw new IOException("Unable to resolve the address of channel " + channel + ": " + ip);
+
+        this.datagramChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        this.datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    }
+
+    /**
+     * Sends one datagram to the channel group, or queues it if the channel is paced. Never blocks
+     *
+     * @param data Raw datagram, not modified afterwards
+     * @throws IOException
+     */
+    public void send(byte[] data) throws IOException {
+        if (queue == null) {
+            write(ByteBuffer.wrap(data));
+            return;
+        }
+
+        if (!datagramChannel.isOpen())
+            throw new IOException("Sender of channel " + channel + " is closed");
+
+        queue.enqueue(new SendQueue.Write() {
+            @Override
+            public long size() {
+                return data.length;
+            }
+
+            @Override
+            public void write() throws IOException {
+                MulticastSender.this.write(ByteBuffer.wrap(data));
+            }
+        });
+    }
+
+    /**
+     * DatagramChannel serializes concurrent writers, so it is safe to call from any thread
+     */
+    private void write(ByteBuffer data) throws IOException {
+        int sent = datagramChannel.send(data, destination);
+
+        datagramsSent.incrementAndGet();
+        bytesSent.addAndGet(sent);
+    }
+
+    public void close() throws IOException {
+        datagramChannel.close();
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public TokenBucket getPacer() {
+        return queue != null ? queue.getPacer() : null;
+    }
+
+    /**
+     * @return Queue of the paced datagrams, null if the channel is not paced
+     */
+    public SendQueue getQueue() {
+        return queue;
+    }
+
+    public InetSocketAddress getDestination() {
+        return destination;
+    }
+
+    public long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+}
@@ -0,0 +1,179 @@
+package peer.channels;
+
+import peer.protocols.messages.Message;
+import peer.protocols.protocols.Protocol;
+import peer.protocols.reply_worker_strategy.ReplyWorkerStrategy;
+import peer.utils.Constants;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Listens to all the multicast channels of a peer in a single thread. The loop only decodes the datagrams and hands them to the dispatcher of their channel
+ */
+public class ReceiverEngine implements Runnable {
+    private final Protocol protocol;
+    private final Selector selector;
+    private final ExecutorService dispatchPool;
+    private final int queueCapacity;
+    private final List<ChannelDispatcher> dispatchers;
+    private final BufferPool bufferPool;
+
+    //Buffer borrowed for the next datagram, kept while receive finds nothing
+    private ByteBuffer receiveBuffer;
+
+    private final AtomicLong malformed = new AtomicLong();
+
+    /**
+     * @param protocol      Protocol version
+     * @param poolSize      Number of threads running the handlers
+     * @param queueCapacity Maximum number of messages waiting per channel
+     * @throws IOException
+     */
+    public ReceiverEngine(Protocol protocol, int poolSize, int queueCapacity) throws IOException {
+        this.protocol = protocol;
+        this.selector = Selector.open();
+        this.dispatchPool = Executors.newFixedThreadPool(poolSize);
+        this.queueCapacity = queueCapacity;
+        this.dispatchers = new ArrayList<>();
+        this.bufferPool = new BufferPool(Constants.MAX_MESSAGE_SIZE, Constants.RECEIVE_BUFFER_POOL_SIZE, Constants.RECEIVE_BUFFER_LIMIT);
+    }
+
+    /**
+     * Joins the multicast group of a channel and registers it in the selector
+     *
+     * @param channel       Channel to listen
+     * @param replyStrategy Worker Strategy to reply to requests
+     * @param ip            IP to listen in the socket
+     * @param port          Port to listen in the socket
+     * @throws IOException
+     */
+    public void register(Channel channel, ReplyWorkerStrategy replyStrategy, String ip, int port) throws IOException {
+        InetAddress group = InetAddress.getByName(ip);
+
+        DatagramChannel datagramChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        datagramChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        datagramChannel.bind(new InetSocketAddress(port));
+        datagramChannel.join(group, multicastInterface(group, port));
+        datagramChannel.configureBlocking(false);
+
+        ChannelDispatcher dispatcher = new ChannelDispatcher(channel, replyStrategy, protocol, dispatchPool, queueCapacity);
+        dispatchers.add(dispatcher);
+
+        datagramChannel.register(selector, SelectionKey.OP_READ, dispatcher);
+    }
+
+    /**
+     * Selector loop
+     */
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (key.isValid() && key.isReadable())
+                        drain((DatagramChannel) key.channel(), (ChannelDispatcher) key.attachment());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error Receiving message");
+            }
+        }
+    }
+
+    /**
+     * Reads every datagram already queued in the socket, so one select serves a burst
+     */
+    private void drain(DatagramChannel datagramChannel, ChannelDispatcher dispatcher) throws IOException {
+        while (true) {
+            if (receiveBuffer == null)
+                receiveBuffer = bufferPool.acquire();
+
+            if (datagramChannel.receive(receiveBuffer) == null)
+                return;
+
+            ByteBuffer datagram = receiveBuffer;
+            receiveBuffer = null;
+            datagram.flip();
+
+            try {
+                dispatcher.enqueue(new Message(datagram, bufferPool));
+            } catch (Exception e) {
+                bufferPool.release(datagram);
+                malformed.incrementAndGet();
+                System.err.println("Unable to decode datagram received in " + dispatcher.getChannel());
+            }
+        }
+    }
+
+    /**
+     * @param stringBuilder Where the receiving statistics of every channel are written
+     */
+    public void appendStatistics(StringBuilder stringBuilder) {
+        stringBuilder.append("Datagrams Received:\n");
+        for (ChannelDispatcher dispatcher : dispatchers) {
+            stringBuilder.append("  ").append(dispatcher.getChannel()).append(": ")
+                    .append(dispatcher.getReceived()).append(" received, ")
+                    .append(dispatcher.getHandled()).append(" handled, ")
+                    .append(dispatcher.getDropped()).append(" dropped, queue ")
+                    .append(dispatcher.getQueueDepth()).append(" (max ").append(dispatcher.getMaxQueueDepth()).append(")\n");
+        }
+        stringBuilder.append("  Malformed: ").append(malformed.get()).append("\n");
+        stringBuilder.append("Receive Buffers: ").append(bufferPool.getHits()).append(" hits, ")
+                .append(bufferPool.getMisses()).append(" misses, ")
+                .append(bufferPool.getOutstanding()).append(" outstanding, ")
+                .append(bufferPool.getExhausted()).append(" on heap, ")
+                .append(bufferPool.getIdle()).append(" idle\n");
+    }
+
+    /**
+     * Picks the interface the kernel would route the group through, so the join matches the interface the senders use
+     */
+    private static NetworkInterface multicastInterface(InetAddress group, int port) throws IOException {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(group, port);
+            NetworkInterface routed = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (routed != null)
+                return routed;
+        } catch (IOException ignored) {
+        }
+
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+
+            if (!networkInterface.isUp() || !networkInterface.supportsMulticast())
+                continue;
+
+            if (!networkInterface.isLoopback())
+                return networkInterface;
+
+            loopback = networkInterface;
+        }
+
+        if (loopback == null)
+            loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+
+        return loopback;
+    }
+}
@@ -0,0 +1,281 @@
+package peer.channels;
+
+import peer.filesystem.FileRestorer;
+import peer.protocols.messages.ChunkFrame;
+import peer.utils.Constants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * TCP server of a peer for the chunks of its restores. It listens on an ephemeral port for the whole life of the peer and reads every
+ * holder connection in a single selector thread. The selector only frames the bytes, each whole frame is queued and written to the
+ * restore session of its fileId in the handler pool, so a slow disk or a paced request never stops the other connections.
+ * If the queue is full the frame is dropped, the restore asks for the chunk again
+ */
+public class RestoreServer implements Runnable {
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ConcurrentHashMap<String, FileRestorer> sessions = new ConcurrentHashMap<>();
+    private final Consumer<String> chunkWritten;
+    private final ExecutorService handlerPool;
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(Constants.RESTORE_FRAME_QUEUE_CAPACITY);
+
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framesDiscarded = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * @param chunkWritten Called with the fileId after a chunk of a session is written, in the handler pool
+     * @param handlerPool  Pool where the frames are written
+     * @throws IOException
+     */
+    public RestoreServer(Consumer<String> chunkWritten, ExecutorService handlerPool) throws IOException {
+        this.chunkWritten = chunkWritten;
+        this.handlerPool = handlerPool;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(0));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts routing the frames of a file to its restore state
+     *
+     * @return False if that file is already being restored
+     */
+    public boolean register(String fileId, FileRestorer restorer) {
+        return sessions.putIfAbsent(fileId, restorer) == null;
+    }
+
+    /**
+     * @return False if the session was already removed, so only one caller finishes it
+     */
+    public boolean unregister(String fileId, FileRestorer restorer) {
+        return sessions.remove(fileId, restorer);
+    }
+
+    public FileRestorer getSession(String fileId) {
+        return sessions.get(fileId);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Selector loop
+     */
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        read(key);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error in the restore server");
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socketChannel = serverChannel.accept();
+
+        if (socketChannel == null)
+            return;
+
+        socketChannel.configureBlocking(false);
+        socketChannel.register(selector, SelectionKey.OP_READ, new FrameReader());
+        connectionsAccepted.incrementAndGet();
+    }
+
+    /**
+     * Reads what the connection has available, the frame in progress is kept until the next event
+     */
+    private void read(SelectionKey key) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        FrameReader reader = (FrameReader) key.attachment();
+
+        try {
+            while (true) {
+                ByteBuffer buffer = reader.frame == null ? reader.header : reader.body;
+                int read = socketChannel.read(buffer);
+
+                if (read < 0) {
+                    close(key);
+                    return;
+                }
+
+                bytesReceived.addAndGet(read);
+
+                if (buffer.hasRemaining())
+                    return;
+
+                if (reader.frame == null)
+                    reader.startBody();
+                else
+                    deliver(reader);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error reading chunk frames from a holder connection");
+            close(key);
+        }
+    }
+
+    /**
+     * Copies the body out of the buffer of the connection, which goes on with the next frame, and queues the frame
+     */
+    private void deliver(FrameReader reader) {
+        ChunkFrame header = reader.frame;
+        byte[] body = new byte[header.getBodyLength()];
+        reader.body.flip().get(body);
+        reader.reset();
+        framesReceived.incrementAndGet();
+
+        Frame frame = new Frame(header, body);
+
+        if (!queue.offer(frame)) {
+            framesDropped.incrementAndGet();
+            return;
+        }
+
+        try {
+            handlerPool.execute(this::handleNext);
+        } catch (RejectedExecutionException e) {
+            if (queue.remove(frame))
+                framesDropped.incrementAndGet();
+        }
+    }
+
+    private void handleNext() {
+        Frame frame = queue.poll();
+
+        if (frame == null)
+            return;
+
+        String fileId = frame.header.getFileId();
+        FileRestorer restorer = sessions.get(fileId);
+
+        //Late chunk of a restore already finished
+        if (restorer == null) {
+            framesDiscarded.incrementAndGet();
+            return;
+        }
+
+        try {
+            if (restorer.writeChunk(frame.header.getChunkNo(), ByteBuffer.wrap(frame.body), frame.header.getCodec()))
+                chunkWritten.accept(fileId);
+        } catch (IOException | IllegalArgumentException e) {
+            framesDiscarded.incrementAndGet();
+            System.err.println("Unable to write chunk " + frame.header.getChunkNo() + " of " + fileId + ": " + e.getMessage());
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void close() throws IOException {
+        selector.close();
+        serverChannel.close();
+    }
+
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    public long getFramesDiscarded() {
+        return framesDiscarded.get();
+    }
+
+    /**
+     * @return Frames dropped because the queue of the handlers was full
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Whole frame waiting for a handler
+     */
+    private static class Frame {
+        private final ChunkFrame header;
+        private final byte[] body;
+
+        Frame(ChunkFrame header, byte[] body) {
+            this.header = header;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Frame in progress of one connection
+     */
+    private static class FrameReader {
+        private final ByteBuffer header = ByteBuffer.allocate(ChunkFrame.HEADER_LENGTH);
+        private final ByteBuffer body = ByteBuffer.allocateDirect(Constants.MAX_CHUNK_SIZE);
+        private ChunkFrame frame;
+
+        void startBody() {
+            frame = ChunkFrame.decodeHeader(header.flip());
+
+            if (frame.getBodyLength() > Constants.MAX_CHUNK_SIZE)
+                throw new IllegalArgumentException("Invalid chunk frame length " + frame.getBodyLength());
+
+            body.clear().limit(frame.getBodyLength());
+        }
+
+        void reset() {
+            frame = null;
+            header.clear();
+        }
+    }
+}
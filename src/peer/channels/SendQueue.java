@@ -0,0 +1,110 @@
+package peer.channels;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of the writes of one channel, drained in order by a dedicated thread. The pacing wait happens on that thread,
+ * so a sender never sleeps, it only enqueues. A write that finds the queue full is dropped, as a datagram the network lost
+ */
+public class SendQueue {
+    private final TokenBucket pacer;
+    private final BlockingQueue<Write> queue;
+    private final Thread sender;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    /**
+     * One write of the queue
+     */
+    public interface Write {
+        /**
+         * @return Bytes the write takes from the bucket
+         */
+        long size();
+
+        void write() throws IOException;
+
+        /**
+         * The write was dropped or failed, whatever it holds is released
+         */
+        default void discard() {
+        }
+    }
+
+    /**
+     * @param name     Name of the sender thread
+     * @param pacer    Bucket every write takes its size from before it is written
+     * @param capacity Maximum number of writes waiting
+     */
+    public SendQueue(String name, TokenBucket pacer, int capacity) {
+        this.pacer = pacer;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sender = new Thread(this::drain, name);
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * Never blocks
+     *
+     * @return False if the write was dropped
+     */
+    public boolean enqueue(Write write) {
+        if (!queue.offer(write)) {
+            write.discard();
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+        return true;
+    }
+
+    private void drain() {
+        while (true) {
+            Write write;
+
+            try {
+                write = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            pacer.acquire(write.size());
+
+            try {
+                write.write();
+            } catch (IOException e) {
+                write.discard();
+                failed.incrementAndGet();
+                System.err.println("Error writing to " + sender.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public TokenBucket getPacer() {
+        return pacer;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+}
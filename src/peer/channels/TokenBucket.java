@@ -0,0 +1,108 @@
+package peer.channels;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Egress pacer of a channel. Tokens are bytes, refilled at a fixed rate up to the burst size. The sender thread of the channel takes
+ * the tokens of each write and, if the bucket is in debt, waits until the debt is paid, so writes go out in the order they were queued.
+ * The MDR bucket also paces the TCP frames of the restores, from the thread of their own queue
+ */
+public class TokenBucket {
+    private final long rate;
+    private final long burst;
+
+    private double tokens;
+    private long lastRefill;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong totalDelay = new AtomicLong();
+    private final AtomicLong maxDelay = new AtomicLong();
+
+    /**
+     * @param rate  Bytes per second, 0 to never throttle
+     * @param burst Bytes that may be sent at once after an idle period
+     */
+    public TokenBucket(long rate, long burst) {
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Blocks until the given bytes may be sent
+     *
+     * @param bytes Size of what is about to be sent
+     */
+    public void acquire(long bytes) {
+        acquisitions.incrementAndGet();
+
+        if (rate <= 0)
+            return;
+
+        long wait;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            wait = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+        }
+
+        if (wait <= 0)
+            return;
+
+        throttled.incrementAndGet();
+
+        long start = System.nanoTime();
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        long delay = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        totalDelay.addAndGet(delay);
+        maxDelay.accumulateAndGet(delay, Math::max);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return Time in microseconds senders spent waiting for tokens
+     */
+    public long getTotalDelay() {
+        return totalDelay.get();
+    }
+
+    public long getMaxDelay() {
+        return maxDelay.get();
+    }
+
+    public void appendStatistics(StringBuilder stringBuilder) {
+        long count = Math.max(1, acquisitions.get());
+
+        stringBuilder.append(rate).append(" B/s, burst ").append(burst).append(" B: ")
+                .append(throttled.get()).append("/").append(acquisitions.get()).append(" sends throttled, queue delay avg ")
+                .append(totalDelay.get() / count / 1000.0).append(" ms, max ")
+                .append(maxDelay.get() / 1000.0).append(" ms");
+    }
+}
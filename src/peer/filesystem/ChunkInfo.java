@@ -1,19 +1,55 @@
 package peer.filesystem;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
  * Class that stores all the information regarding the storage of a specific chunk
  */
 public class ChunkInfo implements Serializable {
+    //Of the first layout, whose Java serialized metadata files are still converted
+    private static final long serialVersionUID = -2900394298349859604L;
+    private static final int FRAGMENTS = 1;
+    private static final int HAS_DIGEST = 2;
+    private static final int HAS_CHECKSUM = 4;
+    private static final int HAS_STRIPE = 8;
+
     private int size;
     private final int desiredReplicationLevel;
     private int perceivedReplicationLevel;
 
+    //Erasure coding of the file, 0 when the chunk is a plain replicated chunk
+    private final int dataFragments;
+    private final int parityFragments;
+
+    //Fragments of the stripe of a fragment held for another peer, 0 when the chunk is a plain replicated chunk
+    private int stripeWidth;
+
+    //Codec the chunk is stored with, chunks held for other peers are kept as they were received
+    private int codec;
+
+    //Digest of the content when the chunk is content addressed, the content is then stored once for all the chunks with that digest
+    private String digest;
+
+    //SHA-256 of the raw content, the leaf of the chunk in the Merkle tree of its file. Null for the chunks stored before it was kept
+    private String checksum;
+
     public ChunkInfo(int size, int desiredReplicationLevel, int perceivedReplicationLevel) {
+        this(size, desiredReplicationLevel, perceivedReplicationLevel, 0, 0);
+    }
+
+    /**
+     * @param dataFragments   Data fragments of the stripe of this fragment
+     * @param parityFragments Parity fragments of the stripe of this fragment
+     */
+    public ChunkInfo(int size, int desiredReplicationLevel, int perceivedReplicationLevel, int dataFragments, int parityFragments) {
         this.size = size;
         this.desiredReplicationLevel = desiredReplicationLevel;
         this.perceivedReplicationLevel = perceivedReplicationLevel;
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
     }
 
     public int getSize() {
@@ -36,7 +72,112 @@ public class ChunkInfo implements Serializable {
         perceivedReplicationLevel--;
     }
 
+    public boolean isErasureCoded() {
+        return parityFragments > 0;
+    }
+
+    public int getDataFragments() {
+        return dataFragments;
+    }
+
+    public int getParityFragments() {
+        return parityFragments;
+    }
+
+    /**
+     * @return Fragments of the stripe of the chunk, 0 if it is not a fragment
+     */
+    public int getStripeWidth() {
+        return stripeWidth != 0 ? stripeWidth : dataFragments + parityFragments;
+    }
+
+    public void setStripeWidth(int stripeWidth) {
+        this.stripeWidth = stripeWidth;
+    }
+
     public void setSize(int size) {
         this.size = size;
     }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public void setCodec(int codec) {
+        this.codec = codec;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * @return SHA-256 of the raw content in the same hex form as the file ids, null if it is not known yet
+     */
+    public String getChecksum() {
+        return checksum != null ? checksum : digest;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Writes the chunk in the binary metadata format
+     * <pre>
+     * flags(byte) size(zigzag) desired(zigzag) perceived(zigzag) codec(byte) [data(varint) parity(varint)] [digest(32)] [checksum(32)] [stripe(varint)]
+     * </pre>
+     *
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        boolean fragments = dataFragments != 0 || parityFragments != 0;
+        int flags = (fragments ? FRAGMENTS : 0) | (digest != null ? HAS_DIGEST : 0) | (checksum != null ? HAS_CHECKSUM : 0) | (stripeWidth != 0 ? HAS_STRIPE : 0);
+
+        out.writeByte(flags);
+        MetadataCodec.writeSignedVarInt(out, size);
+        MetadataCodec.writeSignedVarInt(out, desiredReplicationLevel);
+        MetadataCodec.writeSignedVarInt(out, perceivedReplicationLevel);
+        out.writeByte(codec);
+
+        if (fragments) {
+            MetadataCodec.writeVarInt(out, dataFragments);
+            MetadataCodec.writeVarInt(out, parityFragments);
+        }
+        if (digest != null)
+            MetadataCodec.writeId(out, digest);
+        if (checksum != null)
+            MetadataCodec.writeId(out, checksum);
+        if (stripeWidth != 0)
+            MetadataCodec.writeVarInt(out, stripeWidth);
+    }
+
+    /**
+     * @return Chunk written by writeTo
+     * @throws IOException
+     */
+    public static ChunkInfo readFrom(DataInput in) throws IOException {
+        int flags = in.readByte();
+        int size = MetadataCodec.readSignedVarInt(in);
+        int desiredReplicationLevel = MetadataCodec.readSignedVarInt(in);
+        int perceivedReplicationLevel = MetadataCodec.readSignedVarInt(in);
+        int codec = in.readByte();
+
+        ChunkInfo chunkInfo = (flags & FRAGMENTS) != 0
+                ? new ChunkInfo(size, desiredReplicationLevel, perceivedReplicationLevel, MetadataCodec.readVarInt(in), MetadataCodec.readVarInt(in))
+                : new ChunkInfo(size, desiredReplicationLevel, perceivedReplicationLevel);
+
+        chunkInfo.codec = codec;
+        if ((flags & HAS_DIGEST) != 0)
+            chunkInfo.digest = MetadataCodec.readId(in);
+        if ((flags & HAS_CHECKSUM) != 0)
+            chunkInfo.checksum = MetadataCodec.readId(in);
+        if ((flags & HAS_STRIPE) != 0)
+            chunkInfo.stripeWidth = MetadataCodec.readVarInt(in);
+        return chunkInfo;
+    }
 }
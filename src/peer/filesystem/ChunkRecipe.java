@@ -0,0 +1,187 @@
+package peer.filesystem;
+
+import peer.protocols.messages.BinaryHeaderCodec;
+import peer.utils.Constants;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Chunks of a file cut where its content says, not at fixed offsets. A Gear rolling hash over the last 64 bytes picks the boundaries,
+ * so inserting or removing bytes only moves the boundaries around the change and the chunks after it keep their content.
+ * Each chunk is addressed by the SHA-256 of its content, which lets the peers store the chunks shared by several files once
+ */
+public class ChunkRecipe implements Serializable {
+    private static final int SCAN_BUFFER_SIZE = 1 << 20;
+
+    //Random but fixed, every peer must cut the same content at the same places
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EEDCDCL);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    //The top bits of the hash depend on the last 64 bytes, the low ones only on the last few
+    private static final int AVERAGE_BITS = Integer.numberOfTrailingZeros(Constants.CDC_AVERAGE_CHUNK_SIZE);
+    private static final long BOUNDARY_MASK = ((1L << AVERAGE_BITS) - 1) << (Long.SIZE - AVERAGE_BITS);
+
+    //Chunk i spans [offsets[i], offsets[i + 1])
+    private final long[] offsets;
+    private final String[] digests;
+
+    private ChunkRecipe(long[] offsets, String[] digests) {
+        this.offsets = offsets;
+        this.digests = digests;
+    }
+
+    /**
+     * Reads the whole file once, cutting and hashing its chunks as they stream by
+     *
+     * @param file Open file
+     * @return Chunks of the file, a file with no content still has one empty chunk
+     * @throws IOException
+     */
+    public static ChunkRecipe of(FileChannel file) throws IOException {
+        MessageDigest sha;
+
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        List<Long> offsets = new ArrayList<>();
+        List<String> digests = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+
+        long position = 0;
+        long chunkStart = 0;
+        long hash = 0;
+
+        offsets.add(0L);
+
+        while (file.read(buffer.clear(), position) > 0) {
+            buffer.flip();
+            int from = 0;
+
+            for (int i = 0; i < buffer.limit(); i++) {
+                long length = position + i + 1 - chunkStart;
+
+                //No boundary is looked for before the minimum size, so the hash starts fresh for every chunk
+                if (length <= Constants.CDC_MIN_CHUNK_SIZE - Long.SIZE)
+                    continue;
+
+                hash = (hash << 1) + GEAR[buffer.get(i) & 0xFF];
+
+                if ((length >= Constants.CDC_MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) || length >= Constants.MAX_CHUNK_SIZE) {
+                    sha.update(buffer.array(), buffer.arrayOffset() + from, i + 1 - from);
+                    from = i + 1;
+
+                    chunkStart += length;
+                    offsets.add(chunkStart);
+                    digests.add(BinaryHeaderCodec.bytesToFileId(sha.digest()));
+                    hash = 0;
+                }
+            }
+
+            sha.update(buffer.array(), buffer.arrayOffset() + from, buffer.limit() - from);
+            position += buffer.limit();
+        }
+
+        if (position > chunkStart || digests.isEmpty()) {
+            offsets.add(position);
+            digests.add(BinaryHeaderCodec.bytesToFileId(sha.digest()));
+        }
+
+        long[] offsetArray = new long[offsets.size()];
+        for (int i = 0; i < offsetArray.length; i++)
+            offsetArray[i] = offsets.get(i);
+
+        return new ChunkRecipe(offsetArray, digests.toArray(new String[0]));
+    }
+
+    public int getNumberOfChunks() {
+        return digests.length;
+    }
+
+    public long getOffset(int chunkNo) {
+        return offsets[chunkNo];
+    }
+
+    public int getLength(int chunkNo) {
+        return (int) (offsets[chunkNo + 1] - offsets[chunkNo]);
+    }
+
+    /**
+     * @return SHA-256 of the content of the chunk, in the same hex form as the file ids
+     */
+    public String getDigest(int chunkNo) {
+        return digests[chunkNo];
+    }
+
+    /**
+     * @return Chunks of the file with different content
+     */
+    public int getNumberOfUniqueChunks() {
+        return (int) Arrays.stream(digests).distinct().count();
+    }
+
+    /**
+     * @return Digests of the content of the chunks, each once
+     */
+    public Set<String> getDigests() {
+        return new HashSet<>(Arrays.asList(digests));
+    }
+
+    /**
+     * Writes the recipe in the binary metadata format
+     * <pre>
+     * chunks(varint) { length(varlong) digest(32) }*
+     * </pre>
+     *
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        MetadataCodec.writeVarInt(out, digests.length);
+
+        for (int i = 0; i < digests.length; i++) {
+            MetadataCodec.writeVarLong(out, offsets[i + 1] - offsets[i]);
+            MetadataCodec.writeId(out, digests[i]);
+        }
+    }
+
+    /**
+     * @return Recipe written by writeTo
+     * @throws IOException
+     */
+    public static ChunkRecipe readFrom(DataInput in) throws IOException {
+        int chunks = MetadataCodec.readVarInt(in);
+
+        if (chunks < 1)
+            throw new IOException("Invalid chunk recipe");
+
+        long[] offsets = new long[chunks + 1];
+        String[] digests = new String[chunks];
+
+        for (int i = 0; i < chunks; i++) {
+            offsets[i + 1] = offsets[i] + MetadataCodec.readVarLong(in);
+            digests[i] = MetadataCodec.readId(in);
+        }
+
+        return new ChunkRecipe(offsets, digests);
+    }
+}
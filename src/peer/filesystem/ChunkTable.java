@@ -0,0 +1,13 @@
+package peer.filesystem;
+
+/**
+ * Tables of chunks kept by the file system, each one FileId-FileChunks
+ */
+public enum ChunkTable {
+    //Chunks of the files backed up by this peer
+    INTERNAL,
+    //Chunks stored for other peers
+    EXTERNAL,
+    //Perceived replication level of the chunks seen on the network
+    ENVIRONMENT
+}
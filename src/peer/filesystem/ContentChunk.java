@@ -0,0 +1,45 @@
+package peer.filesystem;
+
+/**
+ * A chunk stored once for every chunk of the other peers' files with the same content. It is rebuilt from the chunks stored when
+ * the peer starts, so it is never saved to disk
+ */
+public class ContentChunk {
+    private final int size;
+    private final int codec;
+
+    //Chunks of files stored that point to this content
+    private int references;
+
+    /**
+     * @param size  Bytes on disk, compressed if the codec is not NONE
+     * @param codec Codec the content was received and is stored with
+     */
+    public ContentChunk(int size, int codec) {
+        this.size = size;
+        this.codec = codec;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public int getReferences() {
+        return references;
+    }
+
+    public void addReference() {
+        references++;
+    }
+
+    /**
+     * @return References left
+     */
+    public int removeReference() {
+        return --references;
+    }
+}
@@ -0,0 +1,436 @@
+package peer.filesystem;
+
+import peer.protocols.messages.BinaryHeaderCodec;
+import peer.utils.Constants;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Chunks of one file in a table of the file system, indexed by chunk number. The chunks live in pages of PAGE_SIZE, each field of
+ * a page a primitive array and the digests packed raw, so a chunk costs a few bytes instead of a boxed key, a map node and a ChunkInfo.
+ * Pages are allocated with their first chunk and never move, only the array of pages is copied when it grows, so the replication
+ * levels are updated without locks while chunks come and go. Adding and removing chunks is serialized on the table.
+ * ChunkInfo is only the copy of a chunk handed to the paths that need all of it
+ */
+public class FileChunks {
+    private static final int PAGE_BITS = 6;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int DIGEST_LENGTH = BinaryHeaderCodec.FILE_ID_LENGTH;
+
+    //Flags of a chunk, a chunk is in the table once PRESENT is set
+    private static final int PRESENT = 1;
+    private static final int HAS_DIGEST = 2;
+    private static final int HAS_CHECKSUM = 4;
+
+    private static class Page {
+        private final AtomicIntegerArray flags = new AtomicIntegerArray(PAGE_SIZE);
+        private final AtomicIntegerArray perceived = new AtomicIntegerArray(PAGE_SIZE);
+        private final int[] sizes = new int[PAGE_SIZE];
+        private final int[] desired = new int[PAGE_SIZE];
+        private final byte[] codecs = new byte[PAGE_SIZE];
+
+        //Raw digests and checksums, allocated with the first chunk of the page that has one
+        private byte[] digests;
+        private byte[] checksums;
+    }
+
+    private volatile Page[] pages;
+    private final AtomicInteger count = new AtomicInteger();
+
+    //Erasure coding of the file, the same for all its chunks
+    private volatile int dataFragments;
+    private volatile int parityFragments;
+
+    //Fragments of each stripe of a file whose fragments are held for another peer, which knows no data and parity split
+    private volatile int stripeWidth;
+
+    public FileChunks() {
+        this.pages = new Page[0];
+    }
+
+    /**
+     * Every chunk of a file about to be backed up, none of them stored yet
+     *
+     * @param numberOfChunks  Chunks of the file
+     * @param dataFragments   Data fragments of each stripe, 0 when the chunks are replicated
+     * @param parityFragments Parity fragments of each stripe
+     */
+    public FileChunks(int numberOfChunks, int desiredReplicationLevel, int dataFragments, int parityFragments) {
+        this.pages = new Page[(numberOfChunks + PAGE_MASK) >>> PAGE_BITS];
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+
+        for (int chunkNo = 0; chunkNo < numberOfChunks; chunkNo++) {
+            Page page = getOrCreatePage(chunkNo);
+            int i = chunkNo & PAGE_MASK;
+
+            page.sizes[i] = -1;
+            page.desired[i] = desiredReplicationLevel;
+            page.flags.set(i, PRESENT);
+        }
+        count.set(numberOfChunks);
+    }
+
+    /**
+     * @param chunks Chunks of a file as kept before this table, ChunkNo-ChunkInfo
+     * @return Table with the same chunks
+     */
+    public static FileChunks of(Map<Integer, ChunkInfo> chunks) {
+        FileChunks table = new FileChunks();
+        chunks.forEach(table::put);
+        return table;
+    }
+
+    //Chunks
+
+    public boolean contains(int chunkNo) {
+        Page page = getPage(chunkNo);
+        return page != null && (page.flags.get(chunkNo & PAGE_MASK) & PRESENT) != 0;
+    }
+
+    /**
+     * @return Copy of the chunk, null if it is not in the table
+     */
+    public ChunkInfo get(int chunkNo) {
+        Page page = getPage(chunkNo);
+
+        if (page == null)
+            return null;
+
+        int i = chunkNo & PAGE_MASK;
+        int flags = page.flags.get(i);
+
+        if ((flags & PRESENT) == 0)
+            return null;
+
+        ChunkInfo chunkInfo = new ChunkInfo(page.sizes[i], page.desired[i], page.perceived.get(i), dataFragments, parityFragments);
+        chunkInfo.setCodec(page.codecs[i]);
+        chunkInfo.setStripeWidth(stripeWidth);
+
+        if ((flags & HAS_DIGEST) != 0)
+            chunkInfo.setDigest(readDigest(page.digests, i));
+        if ((flags & HAS_CHECKSUM) != 0)
+            chunkInfo.setChecksum(readDigest(page.checksums, i));
+        return chunkInfo;
+    }
+
+    /**
+     * Adds the chunk or replaces it
+     */
+    public synchronized void put(int chunkNo, ChunkInfo chunkInfo) {
+        Page page = getOrCreatePage(chunkNo);
+        int i = chunkNo & PAGE_MASK;
+        int flags = PRESENT;
+
+        if (dataFragments == 0 && parityFragments == 0) {
+            dataFragments = chunkInfo.getDataFragments();
+            parityFragments = chunkInfo.getParityFragments();
+        }
+
+        if (stripeWidth == 0 && dataFragments == 0)
+            stripeWidth = chunkInfo.getStripeWidth();
+
+        page.sizes[i] = chunkInfo.getSize();
+        page.desired[i] = chunkInfo.getDesiredReplicationLevel();
+        page.perceived.set(i, chunkInfo.getPerceivedReplicationLevel());
+        page.codecs[i] = (byte) chunkInfo.getCodec();
+
+        if (chunkInfo.getDigest() != null) {
+            if (page.digests == null)
+                page.digests = new byte[PAGE_SIZE * DIGEST_LENGTH];
+            writeDigest(page.digests, i, chunkInfo.getDigest());
+            flags |= HAS_DIGEST;
+        }
+
+        //The checksum of a content addressed chunk is its digest
+        if (chunkInfo.getChecksum() != null && !chunkInfo.getChecksum().equals(chunkInfo.getDigest())) {
+            if (page.checksums == null)
+                page.checksums = new byte[PAGE_SIZE * DIGEST_LENGTH];
+            writeDigest(page.checksums, i, chunkInfo.getChecksum());
+            flags |= HAS_CHECKSUM;
+        }
+
+        //Published last, a reader that sees the chunk present sees all of it
+        if ((page.flags.getAndSet(i, flags) & PRESENT) == 0)
+            count.incrementAndGet();
+    }
+
+    /**
+     * @return True if the chunk was not in the table and was added
+     */
+    public synchronized boolean putIfAbsent(int chunkNo, ChunkInfo chunkInfo) {
+        if (contains(chunkNo))
+            return false;
+
+        put(chunkNo, chunkInfo);
+        return true;
+    }
+
+    /**
+     * @return Copy of the chunk removed, null if it was not in the table
+     */
+    public synchronized ChunkInfo remove(int chunkNo) {
+        ChunkInfo chunkInfo = get(chunkNo);
+
+        if (chunkInfo == null)
+            return null;
+
+        getPage(chunkNo).flags.set(chunkNo & PAGE_MASK, 0);
+        count.decrementAndGet();
+        return chunkInfo;
+    }
+
+    /**
+     * @return Chunks in the table
+     */
+    public int size() {
+        return count.get();
+    }
+
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    /**
+     * @return Lowest chunk in the table, -1 if it is empty
+     */
+    public int first() {
+        return next(-1);
+    }
+
+    /**
+     * @return Highest chunk in the table, -1 if it is empty
+     */
+    public int last() {
+        Page[] pages = this.pages;
+
+        for (int index = pages.length - 1; index >= 0; index--) {
+            Page page = pages[index];
+
+            if (page == null)
+                continue;
+
+            for (int i = PAGE_MASK; i >= 0; i--) {
+                if ((page.flags.get(i) & PRESENT) != 0)
+                    return (index << PAGE_BITS) | i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Lowest chunk in the table after chunkNo, -1 if there is none
+     */
+    public int next(int chunkNo) {
+        Page[] pages = this.pages;
+
+        for (int n = chunkNo + 1; (n >>> PAGE_BITS) < pages.length; n++) {
+            Page page = pages[n >>> PAGE_BITS];
+
+            if (page == null) {
+                n |= PAGE_MASK;
+                continue;
+            }
+
+            if ((page.flags.get(n & PAGE_MASK) & PRESENT) != 0)
+                return n;
+        }
+        return -1;
+    }
+
+    //Fields of a chunk in the table
+
+    public int getSize(int chunkNo) {
+        return getPage(chunkNo).sizes[chunkNo & PAGE_MASK];
+    }
+
+    public void setSize(int chunkNo, int size) {
+        getPage(chunkNo).sizes[chunkNo & PAGE_MASK] = size;
+    }
+
+    public int getDesiredReplicationLevel(int chunkNo) {
+        return getPage(chunkNo).desired[chunkNo & PAGE_MASK];
+    }
+
+    public int getPerceivedReplicationLevel(int chunkNo) {
+        return getPage(chunkNo).perceived.get(chunkNo & PAGE_MASK);
+    }
+
+    /**
+     * @return Replication level after the increment
+     */
+    public int incrementReplicationLevel(int chunkNo) {
+        return getPage(chunkNo).perceived.incrementAndGet(chunkNo & PAGE_MASK);
+    }
+
+    /**
+     * @return Replication level after the decrement
+     */
+    public int decrementReplicationLevel(int chunkNo) {
+        return getPage(chunkNo).perceived.decrementAndGet(chunkNo & PAGE_MASK);
+    }
+
+    public int getCodec(int chunkNo) {
+        return getPage(chunkNo).codecs[chunkNo & PAGE_MASK];
+    }
+
+    /**
+     * @return Digest of the content when the chunk is content addressed, null otherwise
+     */
+    public String getDigest(int chunkNo) {
+        Page page = getPage(chunkNo);
+        int i = chunkNo & PAGE_MASK;
+
+        return (page.flags.get(i) & HAS_DIGEST) != 0 ? readDigest(page.digests, i) : null;
+    }
+
+    /**
+     * @return SHA-256 of the raw content in the same hex form as the file ids, null if it is not known yet
+     */
+    public String getChecksum(int chunkNo) {
+        Page page = getPage(chunkNo);
+        int i = chunkNo & PAGE_MASK;
+        int flags = page.flags.get(i);
+
+        if ((flags & HAS_CHECKSUM) != 0)
+            return readDigest(page.checksums, i);
+        return (flags & HAS_DIGEST) != 0 ? readDigest(page.digests, i) : null;
+    }
+
+    public synchronized void setChecksum(int chunkNo, String checksum) {
+        Page page = getPage(chunkNo);
+        int i = chunkNo & PAGE_MASK;
+
+        if (page.checksums == null)
+            page.checksums = new byte[PAGE_SIZE * DIGEST_LENGTH];
+        writeDigest(page.checksums, i, checksum);
+
+        int flags = page.flags.get(i);
+        if ((flags & PRESENT) != 0)
+            page.flags.set(i, flags | HAS_CHECKSUM);
+    }
+
+    public boolean isErasureCoded() {
+        return parityFragments > 0;
+    }
+
+    public int getDataFragments() {
+        return dataFragments;
+    }
+
+    public int getParityFragments() {
+        return parityFragments;
+    }
+
+    /**
+     * @return Fragments of each stripe, 0 if the chunks are replicated
+     */
+    public int getStripeWidth() {
+        return stripeWidth != 0 ? stripeWidth : dataFragments + parityFragments;
+    }
+
+    //Binary metadata format
+
+    /**
+     * Writes the chunks in the binary metadata format
+     * <pre>
+     * count(varint) { chunkNo(varint) chunk }*
+     * </pre>
+     *
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        List<Integer> chunkNos = new ArrayList<>(size());
+        List<ChunkInfo> chunks = new ArrayList<>(size());
+
+        //Copied first, so the count matches the chunks written while others come and go
+        for (int chunkNo = first(); chunkNo >= 0; chunkNo = next(chunkNo)) {
+            ChunkInfo chunkInfo = get(chunkNo);
+
+            if (chunkInfo != null) {
+                chunkNos.add(chunkNo);
+                chunks.add(chunkInfo);
+            }
+        }
+
+        MetadataCodec.writeVarInt(out, chunks.size());
+
+        for (int i = 0; i < chunks.size(); i++) {
+            MetadataCodec.writeVarInt(out, chunkNos.get(i));
+            chunks.get(i).writeTo(out);
+        }
+    }
+
+    /**
+     * @return Chunks written by writeTo
+     * @throws IOException
+     */
+    public static FileChunks readFrom(DataInput in) throws IOException {
+        FileChunks table = new FileChunks();
+
+        for (int i = MetadataCodec.readVarInt(in); i > 0; i--) {
+            int chunkNo = MetadataCodec.readVarInt(in);
+
+            if (chunkNo < 0)
+                throw new IOException("Invalid chunk number " + chunkNo);
+
+            table.put(chunkNo, ChunkInfo.readFrom(in));
+        }
+        return table;
+    }
+
+    //Pages
+
+    private Page getPage(int chunkNo) {
+        Page[] pages = this.pages;
+        int index = chunkNo >>> PAGE_BITS;
+
+        return index < pages.length ? pages[index] : null;
+    }
+
+    /**
+     * Only called holding the lock of the table, or before it is shared
+     *
+     * @throws IllegalArgumentException If the chunk number is negative or over MAX_CHUNKS_PER_FILE
+     */
+    private Page getOrCreatePage(int chunkNo) {
+        if (chunkNo < 0 || chunkNo >= Constants.MAX_CHUNKS_PER_FILE)
+            throw new IllegalArgumentException("Chunk number " + chunkNo + " is out of range");
+
+        int index = chunkNo >>> PAGE_BITS;
+        Page[] pages = this.pages;
+
+        if (index >= pages.length) {
+            Page[] grown = new Page[Math.max(index + 1, pages.length * 2)];
+            System.arraycopy(pages, 0, grown, 0, pages.length);
+            pages = grown;
+        } else if (pages[index] != null) {
+            return pages[index];
+        } else {
+            pages = pages.clone();
+        }
+
+        //A new array of pages is published whole, with the pages already in it
+        pages[index] = new Page();
+        this.pages = pages;
+        return pages[index];
+    }
+
+    private static void writeDigest(byte[] digests, int i, String digest) {
+        System.arraycopy(BinaryHeaderCodec.fileIdToBytes(digest), 0, digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+    }
+
+    private static String readDigest(byte[] digests, int i) {
+        byte[] raw = new byte[DIGEST_LENGTH];
+        System.arraycopy(digests, i * DIGEST_LENGTH, raw, 0, DIGEST_LENGTH);
+        return BinaryHeaderCodec.bytesToFileId(raw);
+    }
+}
@@ -1,21 +1,79 @@
 package peer.filesystem;
 
+import peer.utils.ChunkCodec;
+import peer.utils.Constants;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
  * Class That stores the information useful about a specific file backed up
  */
 public class FileInfo implements Serializable {
+    //Of the first layout, whose Java serialized metadata files are still converted
+    private static final long serialVersionUID = -761930651699708491L;
+    private static final int HAS_RECIPE = 1;
+    private static final int HAS_MERKLE_TREE = 2;
+    private static final int HAS_PREVIOUS_VERSION = 4;
+
     private final String fileName;
     private final String fileId;
     private final int numberOfChunks;
     private final int desiredReplicationLevel;
 
+    //Erasure coding - each stripe of dataFragments chunks is stored with parityFragments more, 0 when the chunks are replicated
+    private final int dataFragments;
+    private final int parityFragments;
+    private final long fileSize;
+
+    //Codec the chunks are compressed with, each chunk that does not compress is still sent raw
+    private final int codec;
+
+    //Content defined chunks of the file, null when it is cut at fixed offsets
+    private final ChunkRecipe recipe;
+
+    //Digests of the chunks as sent, set once every chunk was read for its first PUTCHUNK
+    private volatile MerkleTree merkleTree;
+
+    //Version of the file this one replaces, kept backed up until every chunk of this one reaches its replication level
+    private volatile FileInfo previousVersion;
+
     public FileInfo(String fileName, String fileId, int numberOfChunks, int replicationLevel) {
+        this(fileName, fileId, numberOfChunks, replicationLevel, 0, 0, -1, ChunkCodec.NONE);
+    }
+
+    /**
+     * @param numberOfChunks  Chunks stored, the fragments of every stripe when the file is erasure coded
+     * @param dataFragments   Chunks of the file in each stripe
+     * @param parityFragments Parity fragments of each stripe
+     * @param fileSize        Size of the file, the data fragments of the last stripe may go past it
+     * @param codec           Codec of the chunks, ChunkCodec.NONE to send them raw
+     */
+    public FileInfo(String fileName, String fileId, int numberOfChunks, int replicationLevel, int dataFragments, int parityFragments, long fileSize, int codec) {
+        this(fileName, fileId, numberOfChunks, replicationLevel, dataFragments, parityFragments, fileSize, codec, null);
+    }
+
+    /**
+     * A file cut in content defined chunks, each stored under the digest of its content
+     *
+     * @param recipe Chunks of the file
+     */
+    public FileInfo(String fileName, String fileId, int replicationLevel, long fileSize, int codec, ChunkRecipe recipe) {
+        this(fileName, fileId, recipe.getNumberOfChunks(), replicationLevel, 0, 0, fileSize, codec, recipe);
+    }
+
+    private FileInfo(String fileName, String fileId, int numberOfChunks, int replicationLevel, int dataFragments, int parityFragments, long fileSize, int codec, ChunkRecipe recipe) {
         this.fileName = fileName;
         this.numberOfChunks = numberOfChunks;
         this.fileId = fileId;
         this.desiredReplicationLevel = replicationLevel;
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+        this.fileSize = fileSize;
+        this.codec = codec;
+        this.recipe = recipe;
     }
 
     public String getFileName() {
@@ -33,4 +91,121 @@ public class FileInfo implements Serializable {
     public int getDesiredReplicationLevel() {
         return desiredReplicationLevel;
     }
+
+    public boolean isErasureCoded() {
+        return parityFragments > 0;
+    }
+
+    public int getDataFragments() {
+        return dataFragments;
+    }
+
+    public int getParityFragments() {
+        return parityFragments;
+    }
+
+    /**
+     * @return Fragments of each stripe
+     */
+    public int getStripeWidth() {
+        return dataFragments + parityFragments;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public boolean isDeduplicated() {
+        return recipe != null;
+    }
+
+    public ChunkRecipe getRecipe() {
+        return recipe;
+    }
+
+    /**
+     * @return Tree of the chunks stored, null until the backup is complete
+     */
+    public MerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    public void setMerkleTree(MerkleTree merkleTree) {
+        this.merkleTree = merkleTree;
+    }
+
+    public FileInfo getPreviousVersion() {
+        return previousVersion;
+    }
+
+    public void setPreviousVersion(FileInfo previousVersion) {
+        this.previousVersion = previousVersion;
+    }
+
+    /**
+     * @return Offset of a chunk in the file
+     */
+    public long getChunkOffset(int chunkNo) {
+        return recipe != null ? recipe.getOffset(chunkNo) : (long) chunkNo * Constants.MAX_CHUNK_SIZE;
+    }
+
+    /**
+     * Writes the file in the binary metadata format, with the version it replaces if any
+     * <pre>
+     * flags(byte) name(utf) fileId(32) chunks(varint) desired(varint) data(varint) parity(varint) size(zigzag) codec(byte)
+     * [recipe] [tree] [previous version]
+     * </pre>
+     *
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        MerkleTree merkleTree = this.merkleTree;
+        FileInfo previousVersion = this.previousVersion;
+
+        out.writeByte((recipe != null ? HAS_RECIPE : 0) | (merkleTree != null ? HAS_MERKLE_TREE : 0) | (previousVersion != null ? HAS_PREVIOUS_VERSION : 0));
+        out.writeUTF(fileName);
+        MetadataCodec.writeId(out, fileId);
+        MetadataCodec.writeVarInt(out, numberOfChunks);
+        MetadataCodec.writeVarInt(out, desiredReplicationLevel);
+        MetadataCodec.writeVarInt(out, dataFragments);
+        MetadataCodec.writeVarInt(out, parityFragments);
+        MetadataCodec.writeSignedVarLong(out, fileSize);
+        out.writeByte(codec);
+
+        if (recipe != null)
+            recipe.writeTo(out);
+        if (merkleTree != null)
+            merkleTree.writeTo(out);
+        if (previousVersion != null)
+            previousVersion.writeTo(out);
+    }
+
+    /**
+     * @return File written by writeTo
+     * @throws IOException
+     */
+    public static FileInfo readFrom(DataInput in) throws IOException {
+        int flags = in.readByte();
+        String fileName = in.readUTF();
+        String fileId = MetadataCodec.readId(in);
+        int numberOfChunks = MetadataCodec.readVarInt(in);
+        int desiredReplicationLevel = MetadataCodec.readVarInt(in);
+        int dataFragments = MetadataCodec.readVarInt(in);
+        int parityFragments = MetadataCodec.readVarInt(in);
+        long fileSize = MetadataCodec.readSignedVarLong(in);
+        int codec = in.readByte();
+
+        ChunkRecipe recipe = (flags & HAS_RECIPE) != 0 ? ChunkRecipe.readFrom(in) : null;
+        FileInfo fileInfo = new FileInfo(fileName, fileId, numberOfChunks, desiredReplicationLevel, dataFragments, parityFragments, fileSize, codec, recipe);
+
+        if ((flags & HAS_MERKLE_TREE) != 0)
+            fileInfo.merkleTree = MerkleTree.readFrom(in);
+        if ((flags & HAS_PREVIOUS_VERSION) != 0)
+            fileInfo.previousVersion = readFrom(in);
+        return fileInfo;
+    }
 }
@@ -1,34 +1,267 @@
 package peer.filesystem;
 
 import peer.protocols.messages.Message;
+import peer.utils.ChunkCodec;
 
-import java.io.Serializable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
- * This class encapsulates the state of a restore file request
+ * This class encapsulates the state of a restore file request.
+ * Chunks are written to the partial file at their offset as they arrive, only the bitmap of the chunks received is kept.
+ * The bitmap is saved next to the partial file, so a restore interrupted by a crash resumes from the chunks already written
  */
-public class FileRestorer implements Serializable {
+public class FileRestorer {
 
-    private final ConcurrentHashMap<Integer, byte[]> chunks;
+    private final BitSet received;
+    private long bytesReceived;
+
+    //End of the furthest chunk written, the partial file is cut there when the restore ends
+    private long length;
+
+    //Partial file, open while the restore is in progress
+    private volatile FileChannel target;
+
+    //File restored, places each chunk in the partial file
+    private volatile FileInfo fileInfo;
+
+    //Chunks received since the progress was last saved
+    private boolean dirty;
 
     public FileRestorer() {
-        this.chunks = new ConcurrentHashMap<>();
+        this.received = new BitSet();
+    }
+
+    private FileRestorer(BitSet received, long bytesReceived, long length) {
+        this.received = received;
+        this.bytesReceived = bytesReceived;
+        this.length = length;
+    }
+
+    /**
+     * @param message CHUNK received in the MDR channel
+     * @return True if the chunk was new
+     * @throws IOException
+     */
+    public boolean collectChunk(Message message) throws IOException {
+        return writeChunk(message.getHeader().getChunkNo(), message.getBodyBuffer(), message.getHeader().getCodec());
+    }
+
+    /**
+     * Decompresses a chunk and writes it, chunks received before are skipped without decompressing them
+     *
+     * @param chunkNo Chunk number
+     * @param data    Chunk as sent between position and limit
+     * @param codec   Codec the chunk was sent with
+     * @return True if the chunk was new
+     * @throws IOException
+     */
+    public boolean writeChunk(int chunkNo, ByteBuffer data, int codec) throws IOException {
+        if (hasChunk(chunkNo))
+            return false;
+
+        return writeChunk(chunkNo, ChunkCodec.decompress(data, codec));
+    }
+
+    /**
+     * Writes a chunk at its offset in the partial file, chunks received before are skipped.
+     * The chunk only counts as received once it is written, so the file is never closed under a pending write.
+     * A file backed up with its Merkle tree only takes chunks matching their leaf, a corrupted copy is left for another holder to send
+     *
+     * @param chunkNo Chunk number
+     * @param data    Chunk content between position and limit
+     * @return True if the chunk was new
+     * @throws IOException If the target is not open or the chunk does not match its leaf
+     */
+    public boolean writeChunk(int chunkNo, ByteBuffer data) throws IOException {
+        if (hasChunk(chunkNo))
+            return false;
+
+        FileChannel channel = target;
+
+        if (channel == null)
+            throw new IOException("Restore target is not open");
+
+        MerkleTree tree = fileInfo.getMerkleTree();
+
+        if (tree != null && chunkNo < tree.getNumberOfLeaves() && !Arrays.equals(tree.getLeaf(chunkNo), MerkleTree.digestOf(data)))
+            throw new IOException("Chunk " + chunkNo + " does not match the Merkle tree of its file");
+
+        int size = data.remaining();
+        long position = fileInfo.getChunkOffset(chunkNo);
+        long end = position + size;
+
+        while (data.hasRemaining())
+            position += channel.write(data, position);
+
+        synchronized (this) {
+            if (received.get(chunkNo))
+                return false;
+
+            received.set(chunkNo);
+            bytesReceived += size;
+            length = Math.max(length, end);
+            dirty = true;
+        }
+        return true;
+    }
+
+    public synchronized boolean hasChunk(int chunkNo) {
+        return received.get(chunkNo);
+    }
+
+    public synchronized int getNumberOfChunksStored() {
+        return received.cardinality();
+    }
+
+    /**
+     * @param fileInfo File restored
+     * @return True if every chunk arrived, or for an erasure coded file enough fragments of every stripe to rebuild it
+     */
+    public synchronized boolean isComplete(FileInfo fileInfo) {
+        if (!fileInfo.isErasureCoded())
+            return received.cardinality() >= fileInfo.getNumberOfChunks();
+
+        for (int stripe = 0; stripe * fileInfo.getStripeWidth() < fileInfo.getNumberOfChunks(); stripe++)
+            if (getFragmentsOfStripe(fileInfo, stripe) < fileInfo.getDataFragments())
+                return false;
+
+        return true;
+    }
+
+    /**
+     * @return Fragments of the stripe already received
+     */
+    public synchronized int getFragmentsOfStripe(FileInfo fileInfo, int stripe) {
+        int first = stripe * fileInfo.getStripeWidth();
+        return received.get(first, first + fileInfo.getStripeWidth()).cardinality();
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
     }
 
-    public void collectChunk(Message message) {
+    /**
+     * Writes the bitmap and the counters as they are now, the chunks in it are the ones already written to the partial file
+     *
+     * @param out Progress file
+     * @throws IOException
+     */
+    public void writeProgress(DataOutput out) throws IOException {
+        byte[] bitmap;
+        long bytes;
+        long end;
 
-        if (chunks.get(message.getHeader().getChunkNo()) != null)
-            return;
+        synchronized (this) {
+            bitmap = received.toByteArray();
+            bytes = bytesReceived;
+            end = length;
+            dirty = false;
+        }
 
-        chunks.put(message.getHeader().getChunkNo(), message.getBody());
+        out.writeLong(end);
+        out.writeLong(bytes);
+        out.writeInt(bitmap.length);
+        out.write(bitmap);
     }
 
-    public int getNumberOfChunksStored() {
-        return chunks.size();
+    /**
+     * @param in Progress file, positioned where writeProgress started
+     * @return Restore state with the chunks of the bitmap, its partial file still has to be opened
+     * @throws IOException
+     */
+    public static FileRestorer readProgress(DataInput in) throws IOException {
+        long length = in.readLong();
+        long bytesReceived = in.readLong();
+        int bitmapLength = in.readInt();
+
+        if (length < 0 || bytesReceived < 0 || bitmapLength < 0 || bitmapLength > Integer.MAX_VALUE / 8)
+            throw new IOException("Invalid restore progress");
+
+        byte[] bitmap = new byte[bitmapLength];
+        in.readFully(bitmap);
+
+        return new FileRestorer(BitSet.valueOf(bitmap), bytesReceived, length);
     }
 
-    public ConcurrentHashMap<Integer, byte[]> getChunks() {
-        return chunks;
+    /**
+     * @param numberOfChunks Chunks of the file
+     * @return State of a restore already finished
+     */
+    public static FileRestorer restored(int numberOfChunks) {
+        BitSet received = new BitSet(numberOfChunks);
+        received.set(0, numberOfChunks);
+        return new FileRestorer(received, 0, 0);
+    }
+
+    /**
+     * Forces the chunks written so far to the storage device
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        FileChannel channel = target;
+
+        if (channel != null)
+            channel.force(false);
+    }
+
+    public boolean isOpen() {
+        return target != null;
+    }
+
+    /**
+     * @param target   Partial file, pre-sized to hold every chunk, or holding the chunks of the saved bitmap
+     * @param fileInfo File restored
+     */
+    public void open(FileChannel target, FileInfo fileInfo) {
+        this.fileInfo = fileInfo;
+        this.target = target;
+    }
+
+    /**
+     * Cuts the partial file to the size of the restored file and closes it
+     *
+     * @return False if the restore was already completed
+     * @throws IOException
+     */
+    public boolean complete() throws IOException {
+        FileChannel channel;
+        long size;
+
+        synchronized (this) {
+            channel = target;
+            target = null;
+            size = length;
+        }
+
+        if (channel == null)
+            return false;
+
+        channel.truncate(size);
+        channel.force(true);
+        channel.close();
+        return true;
+    }
+
+    public void close() throws IOException {
+        FileChannel channel;
+
+        synchronized (this) {
+            channel = target;
+            target = null;
+        }
+
+        if (channel != null)
+            channel.close();
     }
 }
@@ -1,28 +1,52 @@
 package peer.filesystem;
 
+import peer.protocols.messages.BinaryHeaderCodec;
+import peer.protocols.messages.Header;
 import peer.protocols.messages.Message;
+import peer.utils.ChunkCodec;
 import peer.utils.Constants;
 import peer.utils.Logger;
+import peer.utils.ReedSolomon;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This classes keeps the reference to all the data structures used in this project
  */
 public class FileSystem {
+    private static final int RESTORE_PROGRESS_MAGIC = 0x52535450;
+    private static final byte RESTORE_PROGRESS_VERSION = 1;
+    private static final String CONTENT_DIRECTORY = "content";
+    //Content written and not yet published, left behind only by a crash
+    private static final String PART_SUFFIX = ".part";
+
+    //Journal records
+    private static final byte RECORD_CHUNK = 1;
+    private static final byte RECORD_CHUNK_REMOVED = 2;
+    private static final byte RECORD_FILE = 3;
+    private static final byte RECORD_FILE_REMOVED = 4;
+    private static final byte RECORD_FILE_INFO = 5;
+    private static final byte RECORD_FILE_INFO_REMOVED = 6;
+    private static final byte RECORD_PEERS_STORING = 7;
+    private static final byte RECORD_DELETE_WAITING = 8;
+    private static final byte RECORD_PEERS_REMOVED = 9;
+    private static final byte RECORD_CAPACITY = 10;
+
     private final int peerId;
     private final Logger log;
     private int capacity;
@@ -32,15 +56,19 @@ public class FileSystem {
     private final File externalFilesDir;
     private final File metadataDirectory;
     private final File restoreDirectory;
+    private final MetadataJournal journal;
+
+    //Some metadata file was written by Java serialization, they are all written again in the binary format
+    private boolean convertSerializedFiles = false;
 
 
     //I'm the source
     //FileId-(ChunkNo-Replication Level)
-    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> internalFiles;
+    private ConcurrentHashMap<String, FileChunks> internalFiles;
     //-----
     //I'm the destination
     //FileId-ChunkNo
-    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> externalFiles;
+    private ConcurrentHashMap<String, FileChunks> externalFiles;
     //-----
     //FileId-FileRestorer(Chunks)
     private ConcurrentHashMap<String, FileRestorer> fileRestorers;
@@ -55,14 +83,20 @@ public class FileSystem {
     //FileId-<SenderId-List of Chunk NO>
     private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, CopyOnWriteArrayList<Integer>>> storesReceived;
     //To be able to implement the backup enhancement, this map has to be introduced
-    //FileId-ChunkNo-ChunkInfo (Replication levels)
-    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> environmentFilesRepLevel;
+    //FileId-FileChunks (Replication levels)
+    private ConcurrentHashMap<String, FileChunks> environmentFilesRepLevel;
     //This hashmap stores all the alive peers
     private ConcurrentHashMap<Integer, PeerStatus> alivePeers;
     //File Id - (Chunk No-List<Integer>Peer Id)
     private ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> peerThatStoreAChunk;
     //FileId-PeerIds That didnt yet ack
     private ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> fileDeletedWaitingForAck;
+    //Content addressed chunks stored, each shared by every stored chunk with its digest
+    //Digest-ContentChunk
+    private final ConcurrentHashMap<String, ContentChunk> contentChunks;
+    //Merkle tree of the chunks stored of each file, built on the first GETTREE after a chunk of the file is stored or deleted
+    //FileId-MerkleTree
+    private final ConcurrentHashMap<String, MerkleTree> heldTrees;
 
     public FileSystem(int peerId) {
         this.peerId = peerId;
@@ -85,6 +119,8 @@ public class FileSystem {
         this.peerThatStoreAChunk = new ConcurrentHashMap<>();
         this.alivePeers = new ConcurrentHashMap<>();
         this.fileDeletedWaitingForAck = new ConcurrentHashMap<>();
+        this.contentChunks = new ConcurrentHashMap<>();
+        this.heldTrees = new ConcurrentHashMap<>();
 
         this.capacity = bootstrapPeerCapacity();
 
@@ -98,7 +134,6 @@ public class FileSystem {
 
         if (externalFilesDir.exists()) {
             bootstrapChunksDirectory();
-            calculateOccupiedSpace();
         } else {
             externalFilesDir.mkdirs();
         }
@@ -106,6 +141,26 @@ public class FileSystem {
         if (!metadataDirectory.exists())
             metadataDirectory.mkdirs();
 
+        //The changes since the last snapshot, before anything is derived from the metadata
+        this.journal = new MetadataJournal(metadataDirectory, this::writeSnapshot, log);
+        try {
+            journal.open(this::replayRecord, "journal-" + peerId);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+
+        if (convertSerializedFiles) {
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (externalFilesDir.exists())
+            calculateOccupiedSpace();
+
         if (restoreDirectory.exists()) {
             bootstrapFileRestorers();
         } else {
@@ -114,56 +169,105 @@ public class FileSystem {
 
     }
 
+    /**
+     * @return If every chunk of a file this peer backed up reached its desired replication level
+     */
+    public boolean isBackedUp(FileInfo fileInfo) {
+        FileChunks chunks = internalFiles.get(fileInfo.getFileId());
+
+        if (chunks == null || chunks.size() < fileInfo.getNumberOfChunks())
+            return false;
+
+        for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo))
+            if (chunks.getPerceivedReplicationLevel(chunkNo) < chunks.getDesiredReplicationLevel(chunkNo))
+                return false;
+
+        return true;
+    }
+
     public File openFile(String filename) {
         String fullPath = internalFilesDir.getAbsolutePath() + File.separator + filename;
         return new File(fullPath);
     }
 
     /**
-     * Reads the requested FILE in chunk items
-     *
-     * @param file
-     * @return
-     * @throws IOException
-     * @throws ExecutionException
-     * @throws InterruptedException
+     * @param file File to backup
+     * @return Number of chunks of the file, the last one is always shorter than MAX_CHUNK_SIZE, empty if needed
      */
-    public List<byte[]> readFileInChunks(File file) throws IOException, ExecutionException, InterruptedException {
-        List<byte[]> response = new ArrayList<>();
-        int bytesMissingToRead = (int) file.length();
-        int number_chunks = (int) Math.ceil((double) file.length() / Constants.MAX_CHUNK_SIZE);
+    public int getNumberOfChunks(File file) {
+        return (int) (file.length() / Constants.MAX_CHUNK_SIZE) + 1;
+    }
 
-        //If the file is soo small. The integer division return 0
-        if (number_chunks == 0 && file.length() % Constants.MAX_CHUNK_SIZE != 0)
-            number_chunks++;
+    /**
+     * @param file            File to backup
+     * @param dataFragments   Chunks in each stripe
+     * @param parityFragments Parity fragments of each stripe
+     * @return Fragments of the file, data and parity, the last stripe is completed with empty chunks
+     */
+    public int getNumberOfFragments(File file, int dataFragments, int parityFragments) {
+        int stripes = (getNumberOfChunks(file) + dataFragments - 1) / dataFragments;
+        return stripes * (dataFragments + parityFragments);
+    }
 
-        AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(Paths.get(file.getAbsolutePath()), StandardOpenOption.READ);
+    /**
+     * Computes the parity fragments of one stripe of an erasure coded file from its chunks, shorter chunks count as zero padded
+     *
+     * @param file     Open file
+     * @param fileInfo File being backed up
+     * @param stripe   Stripe number
+     * @return Parity fragments, as long as the longest chunk of the stripe
+     * @throws IOException
+     */
+    public byte[][] encodeStripeParity(FileChannel file, FileInfo fileInfo, int stripe) throws IOException {
+        ReedSolomon coder = new ReedSolomon(fileInfo.getDataFragments(), fileInfo.getParityFragments());
+        byte[][] data = new byte[fileInfo.getDataFragments()][];
+        int length = 0;
+
+        for (int j = 0; j < data.length; j++) {
+            data[j] = readFileChunk(file, stripe * fileInfo.getDataFragments() + j);
+            length = Math.max(length, data[j].length);
+        }
 
-        for (int i = 0; i < number_chunks; i++) {
-            int filePointOffset = Constants.MAX_CHUNK_SIZE * i;
+        return coder.encodeParity(data, length);
+    }
 
-            int bufferSize = Constants.MAX_CHUNK_SIZE;
+    /**
+     * Reads one chunk of a file being backed up
+     *
+     * @param file    Open file
+     * @param chunkNo Chunk number
+     * @return Chunk content
+     * @throws IOException
+     */
+    public byte[] readFileChunk(FileChannel file, int chunkNo) throws IOException {
+        long position = (long) chunkNo * Constants.MAX_CHUNK_SIZE;
+        return readFileRange(file, position, (int) Math.max(0, Math.min(Constants.MAX_CHUNK_SIZE, file.size() - position)));
+    }
 
-            if (bytesMissingToRead < Constants.MAX_CHUNK_SIZE)
-                bufferSize = bytesMissingToRead;
+    /**
+     * Reads a content defined chunk of a file being backed up
+     *
+     * @param file     Open file
+     * @param fileInfo File with its chunk recipe
+     * @param chunkNo  Chunk number
+     * @return Chunk content
+     * @throws IOException
+     */
+    public byte[] readFileChunk(FileChannel file, FileInfo fileInfo, int chunkNo) throws IOException {
+        return readFileRange(file, fileInfo.getRecipe().getOffset(chunkNo), fileInfo.getRecipe().getLength(chunkNo));
+    }
 
-            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+    private byte[] readFileRange(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
 
-            fileChannel.read(buffer, filePointOffset).get();
-            buffer.flip();
-            byte[] data = new byte[buffer.limit()];
-            buffer.get(data);
-            buffer.clear();
-            response.add(data.clone());
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position + buffer.position());
 
-            bytesMissingToRead = bytesMissingToRead - bufferSize;
+            if (read < 0)
+                throw new EOFException("File shorter than when its backup started");
         }
 
-        if (file.length() % Constants.MAX_CHUNK_SIZE == 0)
-            response.add(new byte[0]);
-
-        return response;
-
+        return buffer.array();
     }
 
     /**
@@ -173,98 +277,315 @@ public class FileSystem {
      * @param message
      * @throws IOException
      */
-    public synchronized void writeChunkToDisk(File file, Message message) throws IOException {
-        AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-        ByteBuffer buffer = ByteBuffer.wrap(message.getBody());
-        fileChannel.write(buffer, 0);
+    public void writeChunkToDisk(File file, Message message) throws IOException {
+        //Written straight from the received buffer, before the message is released
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = message.getBodyBuffer();
+            while (buffer.hasRemaining())
+                fileChannel.write(buffer);
+        }
     }
 
     /**
-     * Stored chunks record save to disk
+     * Saves the bitmap of a restore in progress next to its partial file. The partial file is forced first,
+     * so every chunk in the bitmap survives a crash. Nothing is written if no chunk arrived since the last save
      *
+     * @param fileInfo     File being restored
+     * @param fileRestorer Restore state
      * @throws IOException
      */
-    public synchronized void writeExternalFileChunksMetadataToDisk() throws IOException {
-        ObjectOutputStream outputStream = new ObjectOutputStream(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataDirectory.getAbsolutePath() + File.separator + "stored", false))));
-        outputStream.writeObject(externalFiles);
-        outputStream.close();
+    public synchronized void writeRestoreProgressToDisk(FileInfo fileInfo, FileRestorer fileRestorer) throws IOException {
+        if (!fileRestorer.isDirty())
+            return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream progress = new DataOutputStream(bytes);
+        progress.writeInt(RESTORE_PROGRESS_MAGIC);
+        progress.writeByte(RESTORE_PROGRESS_VERSION);
+        progress.writeUTF(fileInfo.getFileId());
+        progress.writeInt(fileInfo.getNumberOfChunks());
+        fileRestorer.writeProgress(progress);
+
+        fileRestorer.sync();
+
+        Path file = getRestoreProgressFile(fileInfo).toPath();
+        Path temporary = Paths.get(file + ".tmp");
+        Files.write(temporary, bytes.toByteArray());
+
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //Journal
+
+    /**
+     * Waits until every change journaled so far is on disk
+     */
+    public void flushJournal() {
+        journal.flush();
     }
 
     /**
-     * Stores the record of the backup files to disk
+     * Journals the current state of a chunk, or its removal when the table no longer has it
      *
-     * @throws IOException
+     * @param table   Table of the chunk
+     * @param fileId  File of the chunk
+     * @param chunkNo Chunk number
      */
-    public synchronized void writeInternalFileMetadataToDisk() throws IOException {
-        ObjectOutputStream outputStream = new ObjectOutputStream(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataDirectory.getAbsolutePath() + File.separator + "backup", false))));
-        outputStream.writeObject(internalFiles);
-        outputStream.close();
+    public void journalChunk(ChunkTable table, String fileId, int chunkNo) {
+        journal.append(fileId, out -> {
+            FileChunks chunks = getChunkTable(table).get(fileId);
+            ChunkInfo chunkInfo = chunks == null ? null : chunks.get(chunkNo);
+
+            out.writeByte(chunkInfo != null ? RECORD_CHUNK : RECORD_CHUNK_REMOVED);
+            out.writeByte(table.ordinal());
+            MetadataCodec.writeId(out, fileId);
+            MetadataCodec.writeVarInt(out, chunkNo);
+
+            if (chunkInfo != null)
+                chunkInfo.writeTo(out);
+        });
+    }
 
-        outputStream = new ObjectOutputStream(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataDirectory.getAbsolutePath() + File.separator + "backup_fileinfo", false))));
-        outputStream.writeObject(filenameFileInfo);
-        outputStream.close();
+    /**
+     * Journals every chunk a table has of a file, or the removal of the file when the table no longer has it
+     *
+     * @param table  Table of the file
+     * @param fileId File
+     */
+    public void journalChunks(ChunkTable table, String fileId) {
+        journal.append(fileId, out -> {
+            FileChunks chunks = getChunkTable(table).get(fileId);
+
+            out.writeByte(chunks != null ? RECORD_FILE : RECORD_FILE_REMOVED);
+            out.writeByte(table.ordinal());
+            MetadataCodec.writeId(out, fileId);
 
-        writeFileRestorerStateToDisk();
+            if (chunks != null)
+                chunks.writeTo(out);
+        });
     }
 
     /**
-     * Keeps the information about the restoration state to disk
+     * Journals the file backed up under a name, or the removal of the name
      *
-     * @throws IOException
+     * @param filename Name of the file
      */
-    public synchronized void writeFileRestorerStateToDisk() throws IOException {
-        ObjectOutputStream outputStream;
-        outputStream = new ObjectOutputStream(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataDirectory.getAbsolutePath() + File.separator + "restored", false))));
-        outputStream.writeObject(fileRestorers);
-        outputStream.close();
+    public void journalFileInfo(String filename) {
+        journal.append(filename, out -> {
+            FileInfo fileInfo = filenameFileInfo.get(filename);
+
+            out.writeByte(fileInfo != null ? RECORD_FILE_INFO : RECORD_FILE_INFO_REMOVED);
+            out.writeUTF(filename);
+
+            if (fileInfo != null)
+                fileInfo.writeTo(out);
+        });
     }
 
     /**
-     * Information about which peer stores what chunks in which files to disk
+     * Journals the peers storing chunks of a file
      *
-     * @throws IOException
+     * @param fileId File
      */
-    public synchronized void writePeerStoringChunksToDisk() throws IOException {
-        ObjectOutputStream outputStream;
-        outputStream = new ObjectOutputStream(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataDirectory.getAbsolutePath() + File.separator + "peer_storing_chunks", false))));
-        outputStream.writeObject(peerThatStoreAChunk);
-        outputStream.close();
+    public void journalPeersStoring(String fileId) {
+        journalPeers(RECORD_PEERS_STORING, peerThatStoreAChunk, fileId);
     }
 
     /**
-     * Saves the records about files that didnt ack a delete yet to disk
+     * Journals the peers that did not acknowledge the delete of a file yet
      *
-     * @throws IOException
+     * @param fileId File
      */
-    public synchronized void writeFileDeletedWaitingForAckToDisk() throws IOException {
-        ObjectOutputStream outputStream;
-        outputStream = new ObjectOutputStream(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataDirectory.getAbsolutePath() + File.separator + "file_waiting_for_delete", false))));
-        outputStream.writeObject(fileDeletedWaitingForAck);
-        outputStream.close();
+    public void journalFileDeletedWaitingForAck(String fileId) {
+        journalPeers(RECORD_DELETE_WAITING, fileDeletedWaitingForAck, fileId);
+    }
+
+    private void journalPeers(byte type, ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> peers, String fileId) {
+        journal.append(fileId, out -> {
+            CopyOnWriteArrayList<Integer> list = peers.get(fileId);
+
+            out.writeByte(list != null ? type : RECORD_PEERS_REMOVED);
+            out.writeByte(type);
+            MetadataCodec.writeId(out, fileId);
+
+            if (list != null)
+                writePeers(out, list);
+        });
     }
 
     /**
-     * Stores the value of disk capacity of other peers left in disk
+     * Applies a record of the journal of the last run
      *
-     * @throws IOException
+     * @throws IOException If the record is not valid
      */
-    public synchronized void writePeerCapacityToDisk() throws IOException {
-        ObjectOutputStream outputStream;
-        outputStream = new ObjectOutputStream(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataDirectory.getAbsolutePath() + File.separator + "peer_capacity", false))));
-        outputStream.writeObject(capacity);
-        outputStream.close();
+    private void replayRecord(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+
+        switch (type) {
+            case RECORD_CHUNK:
+            case RECORD_CHUNK_REMOVED: {
+                ConcurrentHashMap<String, FileChunks> table = getChunkTable(readChunkTable(in));
+                String fileId = MetadataCodec.readId(in);
+                int chunkNo = MetadataCodec.readVarInt(in);
+
+                if (type == RECORD_CHUNK) {
+                    table.computeIfAbsent(fileId, id -> new FileChunks()).put(chunkNo, ChunkInfo.readFrom(in));
+                } else if (table.containsKey(fileId)) {
+                    table.get(fileId).remove(chunkNo);
+                }
+                break;
+            }
+            case RECORD_FILE:
+            case RECORD_FILE_REMOVED: {
+                ConcurrentHashMap<String, FileChunks> table = getChunkTable(readChunkTable(in));
+                String fileId = MetadataCodec.readId(in);
+
+                if (type == RECORD_FILE_REMOVED)
+                    table.remove(fileId);
+                else
+                    table.put(fileId, FileChunks.readFrom(in));
+                break;
+            }
+            case RECORD_FILE_INFO:
+                filenameFileInfo.put(in.readUTF(), FileInfo.readFrom(in));
+                break;
+            case RECORD_FILE_INFO_REMOVED:
+                filenameFileInfo.remove(in.readUTF());
+                break;
+            case RECORD_PEERS_STORING:
+            case RECORD_DELETE_WAITING:
+            case RECORD_PEERS_REMOVED: {
+                ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> peers = in.readByte() == RECORD_PEERS_STORING ? peerThatStoreAChunk : fileDeletedWaitingForAck;
+                String fileId = MetadataCodec.readId(in);
+
+                if (type == RECORD_PEERS_REMOVED)
+                    peers.remove(fileId);
+                else
+                    peers.put(fileId, readPeers(in));
+                break;
+            }
+            case RECORD_CAPACITY:
+                capacity = MetadataCodec.readVarInt(in);
+                break;
+            default:
+                throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    private static ChunkTable readChunkTable(DataInputStream in) throws IOException {
+        int table = in.readByte();
+
+        if (table < 0 || table >= ChunkTable.values().length)
+            throw new IOException("Unknown chunk table " + table);
+
+        return ChunkTable.values()[table];
+    }
+
+    private ConcurrentHashMap<String, FileChunks> getChunkTable(ChunkTable table) {
+        switch (table) {
+            case INTERNAL:
+                return internalFiles;
+            case EXTERNAL:
+                return externalFiles;
+            default:
+                return environmentFilesRepLevel;
+        }
     }
 
     /**
-     * The perception of the environment save to disk
+     * Writes the whole metadata the journal is compacted into, each file replaced at once. Taken while the handlers keep changing it,
+     * the records appended meanwhile are replayed over it
      *
      * @throws IOException
      */
-    public synchronized void writeEnvironmentFilesRepLevelToDisk() throws IOException {
-        ObjectOutputStream outputStream;
-        outputStream = new ObjectOutputStream(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataDirectory.getAbsolutePath() + File.separator + "environment", false))));
-        outputStream.writeObject(environmentFilesRepLevel);
-        outputStream.close();
+    private void writeSnapshot() throws IOException {
+        writeChunkTableFile("stored", externalFiles);
+        writeChunkTableFile("backup", internalFiles);
+        writeFileInfosFile("backup_fileinfo", filenameFileInfo);
+        writePeerListsFile("peer_storing_chunks", peerThatStoreAChunk);
+        writePeerListsFile("file_waiting_for_delete", fileDeletedWaitingForAck);
+        writeCapacityFile("peer_capacity", capacity);
+        writeChunkTableFile("environment", environmentFilesRepLevel);
+    }
+
+    /**
+     * A record per file: fileId(32) chunks
+     */
+    private void writeChunkTableFile(String name, ConcurrentHashMap<String, FileChunks> table) throws IOException {
+        try (MetadataCodec.Writer writer = new MetadataCodec.Writer(getMetadataFile(name), MetadataCodec.CHUNK_TABLE)) {
+            for (Map.Entry<String, FileChunks> file : table.entrySet()) {
+                DataOutputStream out = writer.record();
+                MetadataCodec.writeId(out, file.getKey());
+                file.getValue().writeTo(out);
+                writer.endRecord();
+            }
+            writer.commit();
+        }
+    }
+
+    /**
+     * A record per name: name(utf) file
+     */
+    private void writeFileInfosFile(String name, ConcurrentHashMap<String, FileInfo> fileInfos) throws IOException {
+        try (MetadataCodec.Writer writer = new MetadataCodec.Writer(getMetadataFile(name), MetadataCodec.FILE_INFOS)) {
+            for (Map.Entry<String, FileInfo> file : fileInfos.entrySet()) {
+                DataOutputStream out = writer.record();
+                out.writeUTF(file.getKey());
+                file.getValue().writeTo(out);
+                writer.endRecord();
+            }
+            writer.commit();
+        }
+    }
+
+    /**
+     * A record per file: fileId(32) peers
+     */
+    private void writePeerListsFile(String name, ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> peerLists) throws IOException {
+        try (MetadataCodec.Writer writer = new MetadataCodec.Writer(getMetadataFile(name), MetadataCodec.PEER_LISTS)) {
+            for (Map.Entry<String, CopyOnWriteArrayList<Integer>> file : peerLists.entrySet()) {
+                DataOutputStream out = writer.record();
+                MetadataCodec.writeId(out, file.getKey());
+                writePeers(out, file.getValue());
+                writer.endRecord();
+            }
+            writer.commit();
+        }
+    }
+
+    /**
+     * A single record: capacity(varint)
+     */
+    private void writeCapacityFile(String name, int capacity) throws IOException {
+        try (MetadataCodec.Writer writer = new MetadataCodec.Writer(getMetadataFile(name), MetadataCodec.CAPACITY)) {
+            MetadataCodec.writeVarInt(writer.record(), capacity);
+            writer.endRecord();
+            writer.commit();
+        }
+    }
+
+    /**
+     * count(varint) { peerId(varint) }*
+     */
+    private static void writePeers(DataOutput out, CopyOnWriteArrayList<Integer> peers) throws IOException {
+        Object[] list = peers.toArray();
+        MetadataCodec.writeVarInt(out, list.length);
+
+        for (Object peer : list)
+            MetadataCodec.writeVarInt(out, (Integer) peer);
+    }
+
+    private static CopyOnWriteArrayList<Integer> readPeers(DataInput in) throws IOException {
+        int count = MetadataCodec.readVarInt(in);
+        Integer[] peers = new Integer[count];
+
+        for (int i = 0; i < count; i++)
+            peers[i] = MetadataCodec.readVarInt(in);
+        return new CopyOnWriteArrayList<>(peers);
     }
 
     /**
@@ -274,16 +595,20 @@ public class FileSystem {
      * @throws IOException
      */
     public void storeChunk(Message message) throws IOException {
-        ConcurrentHashMap<Integer, ChunkInfo> fileHashMap = externalFiles.get(message.getHeader().getFileId());
-
-        if (fileHashMap == null)
-            fileHashMap = new ConcurrentHashMap<>();
-
-        fileHashMap.put(message.getHeader().getChunkNo(), new ChunkInfo(message.getBody().length, message.getHeader().getDesiredReplicationLevel(), 1));
+        if (message.getHeader().getDigest() != null) {
+            storeContentChunk(message);
+            return;
+        }
 
-        externalFiles.put(message.getHeader().getFileId(), fileHashMap);
+        //Compressed chunks are kept compressed, so they take their compressed size
+        ChunkInfo chunkInfo = new ChunkInfo(message.getBodyLength(), message.getHeader().getDesiredReplicationLevel(), 1);
+        chunkInfo.setCodec(message.getHeader().getCodec());
+        chunkInfo.setStripeWidth(message.getHeader().getStripeWidth());
+        chunkInfo.setChecksum(BinaryHeaderCodec.bytesToFileId(MerkleTree.digestOf(ChunkCodec.decompress(message.getBodyBuffer(), chunkInfo.getCodec()))));
+        externalFiles.computeIfAbsent(message.getHeader().getFileId(), fileId -> new FileChunks()).put(message.getHeader().getChunkNo(), chunkInfo);
+        heldTrees.remove(message.getHeader().getFileId());
 
-        occupiedSpace.set(occupiedSpace.addAndGet(message.getBody().length));
+        occupiedSpace.set(occupiedSpace.addAndGet(message.getBodyLength()));
 
         //Need to be here after hashmap update, since it may lead to inconsistency in the threads
         File newChunkPath = getChunkPath(message.getHeader().getFileId());
@@ -292,10 +617,125 @@ public class FileSystem {
             newChunkPath.mkdirs();
 
         writeChunkToDisk(new File(newChunkPath.getAbsolutePath() + File.separator + message.getHeader().getChunkNo()), message);
-        writeExternalFileChunksMetadataToDisk();
+        journalChunk(ChunkTable.EXTERNAL, message.getHeader().getFileId(), message.getHeader().getChunkNo());
 
     }
 
+    /**
+     * Stores a content addressed chunk. Its content is checked against the digest and written to a part file outside of the lock,
+     * the lock is only held to publish it, or to count one more reference if another chunk published the same content meanwhile
+     *
+     * @param message PUTCHUNK with a digest
+     * @throws IOException If the content does not match the digest
+     */
+    private void storeContentChunk(Message message) throws IOException {
+        Header header = message.getHeader();
+
+        if (storeChunkReference(header))
+            return;
+
+        byte[] body = message.getBody();
+
+        if (!header.getDigest().equals(digestOf(ChunkCodec.decompress(body, header.getCodec()))))
+            throw new IOException("Chunk " + header.getChunkNo() + " does not match its digest");
+
+        File content = getContentChunkFile(header.getDigest());
+        content.getParentFile().mkdirs();
+        File part = File.createTempFile(header.getDigest() + ".", PART_SUFFIX, content.getParentFile());
+
+        try {
+            writeChunkToDisk(part, message);
+
+            synchronized (contentChunks) {
+                if (!contentChunks.containsKey(header.getDigest())) {
+                    Files.move(part.toPath(), content.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    contentChunks.put(header.getDigest(), new ContentChunk(body.length, header.getCodec()));
+                    occupiedSpace.addAndGet(body.length);
+                }
+
+                addContentReference(header);
+            }
+        } finally {
+            Files.deleteIfExists(part.toPath());
+        }
+
+        journalChunk(ChunkTable.EXTERNAL, header.getFileId(), header.getChunkNo());
+    }
+
+    /**
+     * @return Bytes storing the chunk takes, none for a content addressed chunk whose content is already stored
+     */
+    public int getSpaceNeeded(Message message) {
+        String digest = message.getHeader().getDigest();
+
+        return digest != null && contentChunks.containsKey(digest) ? 0 : message.getBodyLength();
+    }
+
+    /**
+     * Stores a chunk of a file as one more reference to content already stored, nothing is written but the metadata
+     *
+     * @param header PUTREF or PUTCHUNK with a digest
+     * @return False if no content with that digest is stored
+     * @throws IOException
+     */
+    public boolean storeChunkReference(Header header) throws IOException {
+        synchronized (contentChunks) {
+            if (!addContentReference(header))
+                return false;
+        }
+
+        journalChunk(ChunkTable.EXTERNAL, header.getFileId(), header.getChunkNo());
+        return true;
+    }
+
+    private boolean addContentReference(Header header) {
+        ContentChunk content = contentChunks.get(header.getDigest());
+
+        if (content == null)
+            return false;
+
+        ChunkInfo chunkInfo = new ChunkInfo(content.getSize(), header.getDesiredReplicationLevel(), 1);
+        chunkInfo.setCodec(content.getCodec());
+        chunkInfo.setDigest(header.getDigest());
+        chunkInfo.setStripeWidth(header.getStripeWidth());
+
+        if (externalFiles.computeIfAbsent(header.getFileId(), fileId -> new FileChunks()).putIfAbsent(header.getChunkNo(), chunkInfo)) {
+            content.addReference();
+            heldTrees.remove(header.getFileId());
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops the reference of a stored chunk to its content, the content is deleted with its last reference
+     */
+    private void releaseContentChunk(String digest) {
+        synchronized (contentChunks) {
+            ContentChunk content = contentChunks.get(digest);
+
+            if (content == null || content.removeReference() > 0)
+                return;
+
+            contentChunks.remove(digest);
+            occupiedSpace.addAndGet(-content.getSize());
+
+            if (!getContentChunkFile(digest).delete())
+                log.warn("Unable to remove the content chunk " + digest);
+        }
+    }
+
+    /**
+     * @return SHA-256 of the data, in the same hex form as the file ids
+     */
+    private static String digestOf(byte[] data) throws IOException {
+        try {
+            return BinaryHeaderCodec.bytesToFileId(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+    }
+
     /**
      * Reads chunks from disk
      *
@@ -307,7 +747,7 @@ public class FileSystem {
     public byte[] readChunk(String fileId, Integer chunkNo) throws IOException {
 
 
-        File file = new File(getChunkPath(fileId).getAbsolutePath() + File.separator + chunkNo);
+        File file = getChunkFile(fileId, chunkNo);
 
         if (!file.exists()) {
             System.err.println("File not found in the Filesystem");
@@ -322,6 +762,157 @@ public class FileSystem {
         return buffer;
     }
 
+    /**
+     * @return Codec a stored chunk was received with, ChunkCodec.NONE if it is not stored
+     */
+    public int getChunkCodec(String fileId, int chunkNo) {
+        FileChunks chunks = externalFiles.get(fileId);
+
+        return chunks == null || !chunks.contains(chunkNo) ? ChunkCodec.NONE : chunks.getCodec(chunkNo);
+    }
+
+    /**
+     * @return Digest of a stored chunk, null if it is not content addressed or not stored
+     */
+    public String getChunkDigest(String fileId, int chunkNo) {
+        FileChunks chunks = externalFiles.get(fileId);
+
+        return chunks == null || !chunks.contains(chunkNo) ? null : chunks.getDigest(chunkNo);
+    }
+
+    /**
+     * @return Fragments of the stripe of a stored fragment, 0 if it is a plain chunk or not stored
+     */
+    public int getChunkStripeWidth(String fileId, int chunkNo) {
+        FileChunks chunks = externalFiles.get(fileId);
+
+        return chunks == null || !chunks.contains(chunkNo) ? 0 : chunks.getStripeWidth();
+    }
+
+    /**
+     * @return Leaf of a stored chunk in the Merkle tree of its file, null if it is not stored. The chunks stored before the
+     * checksums were kept are hashed from disk once
+     * @throws IOException
+     */
+    public byte[] getChunkChecksum(String fileId, int chunkNo) throws IOException {
+        FileChunks chunks = externalFiles.get(fileId);
+
+        if (chunks == null || !chunks.contains(chunkNo))
+            return null;
+
+        String checksum = chunks.getChecksum(chunkNo);
+
+        if (checksum == null) {
+            byte[] chunk = readChunk(fileId, chunkNo);
+
+            if (chunk == null)
+                return null;
+
+            checksum = BinaryHeaderCodec.bytesToFileId(MerkleTree.digestOf(ChunkCodec.decompress(ByteBuffer.wrap(chunk), chunks.getCodec(chunkNo))));
+            chunks.setChecksum(chunkNo, checksum);
+        }
+
+        return BinaryHeaderCodec.fileIdToBytes(checksum);
+    }
+
+    /**
+     * Tree over the chunks of a file this peer stores, the chunks it does not store are left out. The tree is kept until a chunk
+     * of the file is stored or deleted, a store or delete waits for a build in progress and then drops what it built.
+     * A leaf count other than the one of the tree kept gets a tree of its own, the one kept stays
+     *
+     * @param leafCount Number of chunks of the file
+     * @return Tree of the chunks stored, null if none is stored
+     * @throws IOException
+     * @throws IllegalArgumentException If the leaf count leaves out a chunk held or is over MAX_CHUNKS_PER_FILE
+     */
+    public MerkleTree getHeldTree(String fileId, int leafCount) throws IOException {
+        MerkleTree[] tree = new MerkleTree[1];
+
+        try {
+            heldTrees.compute(fileId, (id, current) -> {
+                FileChunks chunks = externalFiles.get(fileId);
+
+                if (chunks == null)
+                    return null;
+
+                if (leafCount <= chunks.last() || leafCount > Constants.MAX_CHUNKS_PER_FILE)
+                    throw new IllegalArgumentException("Invalid leaf count " + leafCount + " of " + fileId);
+
+                if (current != null && current.getNumberOfLeaves() == leafCount) {
+                    tree[0] = current;
+                    return current;
+                }
+
+                byte[][] leaves = new byte[leafCount][];
+
+                try {
+                    for (int chunkNo = chunks.first(); chunkNo >= 0 && chunkNo < leafCount; chunkNo = chunks.next(chunkNo))
+                        leaves[chunkNo] = getChunkChecksum(fileId, chunkNo);
+
+                    tree[0] = MerkleTree.of(leaves);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                return current != null ? current : tree[0];
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return tree[0];
+    }
+
+    /**
+     * Opens a stored chunk for reading, used to send it without copying it to the heap
+     *
+     * @param fileId
+     * @param chunkNo
+     * @return Channel positioned at the start of the chunk, null if the chunk is not stored
+     * @throws IOException
+     */
+    public FileChannel openChunk(String fileId, int chunkNo) throws IOException {
+        File file = getChunkFile(fileId, chunkNo);
+
+        if (!file.exists()) {
+            System.err.println("File not found in the Filesystem");
+            return null;
+        }
+
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Opens the partial file of a restore, chunks are written to it at their offset as they arrive.
+     * A fresh restore starts from a file pre-sized to hold every chunk
+     *
+     * @param fileInfo     File being restored
+     * @param fileRestorer Restore state
+     * @throws IOException
+     */
+    public void openRestoreTarget(FileInfo fileInfo, FileRestorer fileRestorer) throws IOException {
+        File partial = getPartialRestoreFile(fileInfo);
+
+        if (fileRestorer.getNumberOfChunksStored() == 0) {
+            //Sparse on most file systems, the extra space is cut when the restore completes
+            try (RandomAccessFile file = new RandomAccessFile(partial, "rw")) {
+                file.setLength(0);
+                file.setLength(fileInfo.isDeduplicated() ? fileInfo.getFileSize() : (long) fileInfo.getNumberOfChunks() * Constants.MAX_CHUNK_SIZE);
+            }
+            fileRestorer.open(FileChannel.open(partial.toPath(), StandardOpenOption.WRITE), fileInfo);
+        } else {
+            fileRestorer.open(FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE), fileInfo);
+        }
+    }
+
+    private File getPartialRestoreFile(FileInfo fileInfo) {
+        return new File(restoreDirectory.getAbsolutePath() + File.separator + fileInfo.getFileName() + ".part");
+    }
+
+    private File getRestoreProgressFile(FileInfo fileInfo) {
+        return new File(restoreDirectory.getAbsolutePath() + File.separator + fileInfo.getFileName() + ".progress");
+    }
+
     public void deleteEmptyFolders() {
         for (File folder : externalFilesDir.listFiles()) {
             if (folder.isDirectory() && folder.listFiles().length == 0) {
@@ -330,7 +921,7 @@ public class FileSystem {
         }
 
         List<String> emptyExtFiles = new ArrayList<>();
-        for (Map.Entry<String, ConcurrentHashMap<Integer, ChunkInfo>> extFile : externalFiles.entrySet()) {
+        for (Map.Entry<String, FileChunks> extFile : externalFiles.entrySet()) {
             if (extFile.getValue().size() == 0) {
                 emptyExtFiles.add(extFile.getKey());
             }
@@ -338,12 +929,8 @@ public class FileSystem {
 
         for (String fileId : emptyExtFiles) {
             externalFiles.remove(fileId);
-        }
-
-        try {
-            writeExternalFileChunksMetadataToDisk();
-        } catch (IOException e) {
-            e.printStackTrace();
+            heldTrees.remove(fileId);
+            journalChunks(ChunkTable.EXTERNAL, fileId);
         }
     }
 
@@ -354,6 +941,13 @@ public class FileSystem {
      * @throws IOException
      */
     public void deleteChunks(String fileId) throws IOException {
+        //Taken out first, so a DELETE handled twice at once releases the shared contents once
+        FileChunks chunks = externalFiles.remove(fileId);
+        heldTrees.remove(fileId);
+
+        if (chunks == null)
+            return;
+
         File folder = getChunkPath(fileId);
         File[] content = folder.listFiles();
         if (content != null) {
@@ -368,16 +962,20 @@ public class FileSystem {
         log.info("Current occupied space: " + occupiedSpace);
         log.info("Deleting chunks...");
 
-        for (ChunkInfo chunk : externalFiles.get(fileId).values()) {
-            occupiedSpace.set(occupiedSpace.addAndGet(-chunk.getSize()));
+        for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo)) {
+            String digest = chunks.getDigest(chunkNo);
+
+            if (digest != null)
+                releaseContentChunk(digest);
+            else
+                occupiedSpace.set(occupiedSpace.addAndGet(-chunks.getSize(chunkNo)));
         }
 
 
         log.info("Current occupied space: " + occupiedSpace);
-        externalFiles.remove(fileId);
         log.info("Removed from external");
 
-        writeExternalFileChunksMetadataToDisk();
+        journalChunks(ChunkTable.EXTERNAL, fileId);
     }
 
     /**
@@ -401,11 +999,22 @@ public class FileSystem {
                 }
             }
         }
-        occupiedSpace.set(occupiedSpace.addAndGet(-externalFiles.get(fileId).get(chunkNumber).getSize()));
+        FileChunks chunks = externalFiles.get(fileId);
+        ChunkInfo chunkInfo = chunks == null ? null : chunks.remove(chunkNumber);
+
+        if (chunkInfo == null)
+            return;
+
+        heldTrees.remove(fileId);
+
+        if (chunkInfo.getDigest() != null)
+            releaseContentChunk(chunkInfo.getDigest());
+        else
+            occupiedSpace.set(occupiedSpace.addAndGet(-chunkInfo.getSize()));
+
         log.info("Current space usage " + occupiedSpace + " out of " + capacity);
-        externalFiles.get(fileId).remove(chunkNumber);
 
-        writeExternalFileChunksMetadataToDisk();
+        journalChunk(ChunkTable.EXTERNAL, fileId, chunkNumber);
     }
 
     /**
@@ -417,77 +1026,151 @@ public class FileSystem {
      */
     public void restoreFile(FileInfo fileInfo, FileRestorer fileRestorer) throws IOException {
 
-        File file = new File(restoreDirectory.getAbsolutePath() + File.separator + fileInfo.getFileName());
-        FileOutputStream outputStream = new FileOutputStream(file);
+        //Every chunk is already in the partial file, it only takes its final name
+        if (!fileRestorer.complete())
+            return;
 
-        for (int i = 0; i < fileInfo.getNumberOfChunks(); i++) {
-            byte[] data = fileRestorer.getChunks().get(i);
-            outputStream.write(data);
+        Path partial = getPartialRestoreFile(fileInfo).toPath();
+        Path file = new File(restoreDirectory.getAbsolutePath() + File.separator + fileInfo.getFileName()).toPath();
+
+        //The partial file holds fragments, the file is rebuilt next to it
+        if (fileInfo.isErasureCoded()) {
+            Path decoded = Paths.get(partial + ".decoded");
+            decodeFragments(fileInfo, fileRestorer, partial, decoded);
+            Files.delete(partial);
+            partial = decoded;
         }
 
-        outputStream.close();
+        try {
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING);
+        }
 
+        Files.deleteIfExists(getRestoreProgressFile(fileInfo).toPath());
     }
 
-    //Bootstraps
-
     /**
-     * Loads the information about the files backup from disk
+     * Rebuilds an erasure coded file one stripe at a time, from its data fragments when they all arrived and from any
+     * dataFragments of the fragments of the stripe otherwise
+     *
+     * @param fileInfo     File restored
+     * @param fileRestorer Restore state, tells which fragments arrived
+     * @param fragments    Partial file, each fragment at its offset
+     * @param target       File to write
+     * @throws IOException
      */
-    private void bootstrapFilesDirectory() {
-        try {
-            ObjectInputStream inputStream = new ObjectInputStream(new DataInputStream(new BufferedInputStream(new FileInputStream(metadataDirectory + File.separator + "backup"))));
-            internalFiles = (ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>>) inputStream.readObject();
-            inputStream.close();
+    private void decodeFragments(FileInfo fileInfo, FileRestorer fileRestorer, Path fragments, Path target) throws IOException {
+        ReedSolomon coder = new ReedSolomon(fileInfo.getDataFragments(), fileInfo.getParityFragments());
+        int width = fileInfo.getStripeWidth();
+        int numberOfChunks = (int) (fileInfo.getFileSize() / Constants.MAX_CHUNK_SIZE) + 1;
+
+        try (FileChannel in = FileChannel.open(fragments, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            for (int stripe = 0; stripe * width < fileInfo.getNumberOfChunks(); stripe++) {
+                byte[][] shards = new byte[width][];
+                boolean[] present = new boolean[width];
+
+                for (int j = 0, found = 0; j < width && found < fileInfo.getDataFragments(); j++) {
+                    if (!fileRestorer.hasChunk(stripe * width + j))
+                        continue;
+
+                    //Fragments end before MAX_CHUNK_SIZE only with zeros, which is the padding of the encoding
+                    ByteBuffer shard = ByteBuffer.allocate(Constants.MAX_CHUNK_SIZE);
+                    long position = (long) (stripe * width + j) * Constants.MAX_CHUNK_SIZE;
+                    while (shard.hasRemaining()) {
+                        if (in.read(shard, position + shard.position()) < 0)
+                            break;
+                    }
 
-            inputStream = new ObjectInputStream(new DataInputStream(new BufferedInputStream(new FileInputStream(metadataDirectory + File.separator + "backup_fileinfo"))));
-            filenameFileInfo = (ConcurrentHashMap<String, FileInfo>) inputStream.readObject();
-            inputStream.close();
+                    shards[j] = shard.array();
+                    present[j] = true;
+                    found++;
+                }
 
+                byte[][] data = coder.decode(shards, present, Constants.MAX_CHUNK_SIZE);
 
-        } catch (FileNotFoundException ignored) {
-        } catch (Exception e) {
-            e.printStackTrace();
+                for (int j = 0; j < data.length; j++) {
+                    int chunkNo = stripe * fileInfo.getDataFragments() + j;
+
+                    if (chunkNo >= numberOfChunks)
+                        break;
+
+                    int size = (int) Math.min(Constants.MAX_CHUNK_SIZE, fileInfo.getFileSize() - (long) chunkNo * Constants.MAX_CHUNK_SIZE);
+                    ByteBuffer chunk = ByteBuffer.wrap(data[j], 0, size);
+                    while (chunk.hasRemaining())
+                        out.write(chunk);
+                }
+            }
+
+            out.force(true);
         }
     }
 
+    //Bootstraps
+
+    /**
+     * Loads the information about the files backup from disk
+     */
+    private void bootstrapFilesDirectory() {
+        internalFiles = readChunkTableFile("backup");
+        filenameFileInfo = readFileInfosFile("backup_fileinfo");
+    }
+
     /**
-     * Loads the information about the files restored from disk
+     * Rebuilds the restore state of every backed up file from the restore directory, only the bitmaps are read.
+     * A file already restored counts as complete and a partial file with its progress is resumed from the chunks in it
      */
     private void bootstrapFileRestorers() {
-        try {
-            ObjectInputStream inputStream = new ObjectInputStream(new DataInputStream(new BufferedInputStream(new FileInputStream(metadataDirectory + File.separator + "restored"))));
-            ConcurrentHashMap<String, FileRestorer> restorersFromMeta = (ConcurrentHashMap<String, FileRestorer>) inputStream.readObject();
-            inputStream.close();
+        //Restore state of older versions, chunk contents included
+        new File(metadataDirectory + File.separator + "restored").delete();
 
-            // fileRestorers = restorers from metadata, still present in the file system
+        for (FileInfo fileInfo : filenameFileInfo.values()) {
+            File partial = getPartialRestoreFile(fileInfo);
+            File progress = getRestoreProgressFile(fileInfo);
 
-            // collect internal files
-            HashMap<String, File> internal = new HashMap<>();
-            for (File file : internalFilesDir.listFiles()) {
-                internal.put(file.getName(), file);
-            }
+            if (partial.exists() && progress.exists()) {
+                try {
+                    FileRestorer fileRestorer = readRestoreProgress(fileInfo, progress);
 
-            // keep only files present in the system
-            Set<String> keep = new HashSet<>();
-            for (File file : restoreDirectory.listFiles()) {
-                if (internal.containsKey(file.getName())) {
-                    keep.add(generateFileId(internal.get(file.getName())));
-                }
-            }
+                    if (fileRestorer == null)
+                        continue;
+
+                    fileRestorers.put(fileInfo.getFileId(), fileRestorer);
 
-            ConcurrentHashMap<String, FileRestorer> presentRestorers = new ConcurrentHashMap<>();
-            for (String fileId : restorersFromMeta.keySet()) {
-                if (keep.contains(fileId)) {
-                    presentRestorers.put(fileId, restorersFromMeta.get(fileId));
+                    //Stopped between the last chunk and the rename
+                    if (fileRestorer.isComplete(fileInfo)) {
+                        openRestoreTarget(fileInfo, fileRestorer);
+                        restoreFile(fileInfo, fileRestorer);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
+            } else if (new File(restoreDirectory.getAbsolutePath() + File.separator + fileInfo.getFileName()).exists()) {
+                fileRestorers.put(fileInfo.getFileId(), FileRestorer.restored(fileInfo.getNumberOfChunks()));
             }
+        }
+    }
 
-            fileRestorers = presentRestorers;
+    /**
+     * @return Restore state saved in the progress file, null if it belongs to another version of the file
+     * @throws IOException
+     */
+    private FileRestorer readRestoreProgress(FileInfo fileInfo, File progress) throws IOException {
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(progress)))) {
+            if (inputStream.readInt() != RESTORE_PROGRESS_MAGIC || inputStream.readByte() != RESTORE_PROGRESS_VERSION)
+                throw new IOException("Unknown restore progress format in " + progress);
 
-        } catch (FileNotFoundException ignored) {
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (!inputStream.readUTF().equals(fileInfo.getFileId()) || inputStream.readInt() != fileInfo.getNumberOfChunks())
+                return null;
+
+            FileRestorer fileRestorer = FileRestorer.readProgress(inputStream);
+
+            if (fileRestorer.getNumberOfChunksStored() > fileInfo.getNumberOfChunks())
+                throw new IOException("Invalid restore progress in " + progress);
+
+            return fileRestorer;
         }
     }
 
@@ -495,42 +1178,27 @@ public class FileSystem {
      * Loads the chunks stored info from disk
      */
     private void bootstrapChunksDirectory() {
-        try {
-            ObjectInputStream inputStream = new ObjectInputStream(new DataInputStream(new BufferedInputStream(new FileInputStream(metadataDirectory + File.separator + "stored"))));
-            externalFiles = (ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>>) inputStream.readObject();
-            inputStream.close();
-        } catch (FileNotFoundException ignored) {
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        externalFiles = readChunkTableFile("stored");
+
+        File[] parts = new File(externalFilesDir, CONTENT_DIRECTORY).listFiles((directory, name) -> name.endsWith(PART_SUFFIX));
+
+        for (int i = 0; parts != null && i < parts.length; i++)
+            if (!parts[i].delete())
+                log.warn("Unable to remove the partial content " + parts[i].getName());
     }
 
     /**
      * Loads the info about which peer stores each chunk from disk
      */
     private void bootstrapPeersStoringChunks() {
-        try {
-            ObjectInputStream inputStream = new ObjectInputStream(new DataInputStream(new BufferedInputStream(new FileInputStream(metadataDirectory + File.separator + "peer_storing_chunks"))));
-            peerThatStoreAChunk = (ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>>) inputStream.readObject();
-            inputStream.close();
-        } catch (FileNotFoundException ignored) {
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        peerThatStoreAChunk = readPeerListsFile("peer_storing_chunks");
     }
 
     /**
      * Loads the info about peers missing their delete acks from disk
      */
     private void bootstrapFileDeletedWaitingForAck() {
-        try {
-            ObjectInputStream inputStream = new ObjectInputStream(new DataInputStream(new BufferedInputStream(new FileInputStream(metadataDirectory + File.separator + "file_waiting_for_delete"))));
-            fileDeletedWaitingForAck = (ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>>) inputStream.readObject();
-            inputStream.close();
-        } catch (FileNotFoundException ignored) {
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        fileDeletedWaitingForAck = readPeerListsFile("file_waiting_for_delete");
     }
 
     /**
@@ -539,14 +1207,24 @@ public class FileSystem {
      * @return
      */
     private int bootstrapPeerCapacity() {
+        File file = getMetadataFile("peer_capacity");
+
         try {
-            ObjectInputStream inputStream = new ObjectInputStream(new DataInputStream(new BufferedInputStream(new FileInputStream(metadataDirectory + File.separator + "peer_capacity"))));
-            int cap = (Integer) inputStream.readObject();
-            inputStream.close();
-            return cap;
-        } catch (FileNotFoundException ignored) {
+            if (!file.exists())
+                return Constants.MAX_DISK_CAPACITY;
+
+            if (MetadataCodec.isSerialized(file))
+                return (Integer) readSerializedFile(file);
+
+            try (MetadataCodec.Reader reader = new MetadataCodec.Reader(file, MetadataCodec.CAPACITY)) {
+                DataInputStream in = reader.next();
+
+                if (in != null)
+                    return MetadataCodec.readVarInt(in);
+            }
         } catch (Exception e) {
             e.printStackTrace();
+            keepUnreadable(file);
         }
         return Constants.MAX_DISK_CAPACITY;
     }
@@ -556,26 +1234,150 @@ public class FileSystem {
      *
      * @return
      */
-    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> bootstrapEnvironmentFilesRepLevel() {
+    private ConcurrentHashMap<String, FileChunks> bootstrapEnvironmentFilesRepLevel() {
+        return readChunkTableFile("environment");
+    }
+
+    /**
+     * Reads a table of chunks one file at a time
+     *
+     * @return Table in the file, what was read before an error if the file is not valid
+     */
+    private ConcurrentHashMap<String, FileChunks> readChunkTableFile(String name) {
+        ConcurrentHashMap<String, FileChunks> table = new ConcurrentHashMap<>();
+        File file = getMetadataFile(name);
+
         try {
-            ObjectInputStream inputStream = new ObjectInputStream(new DataInputStream(new BufferedInputStream(new FileInputStream(metadataDirectory + File.separator + "environment"))));
-            ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> env = (ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>>) inputStream.readObject();
-            inputStream.close();
-            return env;
-        } catch (FileNotFoundException ignored) {
+            if (!file.exists())
+                return table;
+
+            if (MetadataCodec.isSerialized(file))
+                return fromSerializedChunkTable((ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>>) readSerializedFile(file));
+
+            try (MetadataCodec.Reader reader = new MetadataCodec.Reader(file, MetadataCodec.CHUNK_TABLE)) {
+                for (DataInputStream in = reader.next(); in != null; in = reader.next())
+                    table.put(MetadataCodec.readId(in), FileChunks.readFrom(in));
+            }
         } catch (Exception e) {
             e.printStackTrace();
+            keepUnreadable(file);
         }
-        return new ConcurrentHashMap<>();
+        return table;
+    }
+
+    /**
+     * @param serialized Table as kept before the chunks of a file were dense, FileId-ChunkNo-ChunkInfo
+     */
+    private static ConcurrentHashMap<String, FileChunks> fromSerializedChunkTable(ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> serialized) {
+        ConcurrentHashMap<String, FileChunks> table = new ConcurrentHashMap<>();
+
+        serialized.forEach((fileId, chunks) -> table.put(fileId, FileChunks.of(chunks)));
+        return table;
+    }
+
+    /**
+     * @return Files backed up by name, what was read before an error if the file is not valid
+     */
+    private ConcurrentHashMap<String, FileInfo> readFileInfosFile(String name) {
+        ConcurrentHashMap<String, FileInfo> fileInfos = new ConcurrentHashMap<>();
+        File file = getMetadataFile(name);
+
+        try {
+            if (!file.exists())
+                return fileInfos;
+
+            if (MetadataCodec.isSerialized(file))
+                return (ConcurrentHashMap<String, FileInfo>) readSerializedFile(file);
+
+            try (MetadataCodec.Reader reader = new MetadataCodec.Reader(file, MetadataCodec.FILE_INFOS)) {
+                for (DataInputStream in = reader.next(); in != null; in = reader.next())
+                    fileInfos.put(in.readUTF(), FileInfo.readFrom(in));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            keepUnreadable(file);
+        }
+        return fileInfos;
+    }
+
+    /**
+     * @return Peers of each file, what was read before an error if the file is not valid
+     */
+    private ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> readPeerListsFile(String name) {
+        ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>> peerLists = new ConcurrentHashMap<>();
+        File file = getMetadataFile(name);
+
+        try {
+            if (!file.exists())
+                return peerLists;
+
+            if (MetadataCodec.isSerialized(file))
+                return (ConcurrentHashMap<String, CopyOnWriteArrayList<Integer>>) readSerializedFile(file);
+
+            try (MetadataCodec.Reader reader = new MetadataCodec.Reader(file, MetadataCodec.PEER_LISTS)) {
+                for (DataInputStream in = reader.next(); in != null; in = reader.next())
+                    peerLists.put(MetadataCodec.readId(in), readPeers(in));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            keepUnreadable(file);
+        }
+        return peerLists;
+    }
+
+    /**
+     * Reads a file written by Java serialization by earlier versions, it is written again in the binary format once everything is loaded
+     *
+     * @return Object in the file
+     * @throws IOException
+     */
+    private Object readSerializedFile(File file) throws IOException, ClassNotFoundException {
+        log.info("Converting " + file.getName() + " from Java serialization to the binary metadata format");
+        Object object;
+
+        try (ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            object = inputStream.readObject();
+        }
+
+        //Only a file read whole is written again, the next snapshot replaces it
+        convertSerializedFiles = true;
+        return object;
+    }
+
+    /**
+     * Moves aside a metadata file that could not be read whole, so the next snapshot does not overwrite what it holds
+     */
+    private void keepUnreadable(File file) {
+        File kept = new File(file.getPath() + "." + System.currentTimeMillis() + ".bak");
+
+        if (file.renameTo(kept))
+            log.error("Unable to read " + file.getName() + ", it is kept as " + kept.getName());
+        else
+            log.error("Unable to read " + file.getName() + " and to keep it aside");
     }
 
     /**
      * Calculates the space that chunks are occupying at a given moment in the filesystem
      */
     private void calculateOccupiedSpace() {
-        for (String fileId : externalFiles.keySet()) {
-            for (Integer chunkNum : externalFiles.get(fileId).keySet()) {
-                occupiedSpace.set(occupiedSpace.addAndGet(externalFiles.get(fileId).get(chunkNum).getSize()));
+        for (FileChunks chunks : externalFiles.values()) {
+            for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo)) {
+                ChunkInfo chunkInfo = chunks.get(chunkNo);
+
+                //The content shared by several chunks is counted once
+                if (chunkInfo.getDigest() != null) {
+                    ContentChunk content = contentChunks.get(chunkInfo.getDigest());
+
+                    if (content == null) {
+                        content = new ContentChunk(chunkInfo.getSize(), chunkInfo.getCodec());
+                        contentChunks.put(chunkInfo.getDigest(), content);
+                        occupiedSpace.addAndGet(content.getSize());
+                    }
+                    content.addReference();
+                    continue;
+                }
+
+                occupiedSpace.set(occupiedSpace.addAndGet(chunkInfo.getSize()));
             }
         }
     }
@@ -609,6 +1411,30 @@ public class FileSystem {
         return new File(externalFilesDir.getAbsolutePath() + File.separator + fileId + File.separator);
     }
 
+    private File getMetadataFile(String name) {
+        return new File(metadataDirectory, name);
+    }
+
+    private File getContentChunkFile(String digest) {
+        return new File(externalFilesDir.getAbsolutePath() + File.separator + CONTENT_DIRECTORY + File.separator + digest);
+    }
+
+    /**
+     * @return Where a stored chunk is, shared with the other chunks of the same content when it is content addressed
+     */
+    private File getChunkFile(String fileId, int chunkNo) {
+        String digest = getChunkDigest(fileId, chunkNo);
+
+        if (digest != null)
+            return getContentChunkFile(digest);
+
+        return new File(getChunkPath(fileId).getAbsolutePath() + File.separator + chunkNo);
+    }
+
+    public ConcurrentHashMap<String, ContentChunk> getContentChunks() {
+        return contentChunks;
+    }
+
     public File getInternalFilesDir() {
         return internalFilesDir;
     }
@@ -618,11 +1444,11 @@ public class FileSystem {
     }
 
 
-    public ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> getInternalFiles() {
+    public ConcurrentHashMap<String, FileChunks> getInternalFiles() {
         return internalFiles;
     }
 
-    public ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> getExternalFiles() {
+    public ConcurrentHashMap<String, FileChunks> getExternalFiles() {
         return externalFiles;
     }
 
@@ -649,18 +1475,17 @@ public class FileSystem {
     public void setCapacity(int capacity) {
         this.capacity = capacity;
 
-        try {
-            writePeerCapacityToDisk();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        journal.append(RECORD_CAPACITY, out -> {
+            out.writeByte(RECORD_CAPACITY);
+            MetadataCodec.writeVarInt(out, this.capacity);
+        });
     }
 
     public int getOccupiedSpace() {
         return occupiedSpace.get();
     }
 
-    public ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> getEnvironmentFilesRepLevel() {
+    public ConcurrentHashMap<String, FileChunks> getEnvironmentFilesRepLevel() {
         return environmentFilesRepLevel;
     }
 
@@ -0,0 +1,174 @@
+package peer.filesystem;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Merkle tree over the SHA-256 digests of the chunks of a file, the leaves in chunk order. Each node is the digest of its two children,
+ * so two trees over the same chunks differ at a node only if some chunk under it differs, and the chunks that differ are found walking
+ * down from the root through the nodes that differ only. A chunk left out of the tree, one a holder does not store, is a leaf of zeros,
+ * and a node with nothing under it is zeros too
+ */
+public class MerkleTree implements Serializable {
+    public static final int DIGEST_LENGTH = 32;
+
+    private static final byte[] EMPTY = new byte[DIGEST_LENGTH];
+
+    //levels[0] are the leaves, the last level is the root alone
+    private final byte[][][] levels;
+
+    private MerkleTree(byte[][][] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * @param leaves Digest of each chunk, null for a chunk left out
+     * @return Tree over the chunks, a file with no chunks has a root of zeros
+     * @throws IOException If SHA-256 is not available
+     */
+    public static MerkleTree of(byte[][] leaves) throws IOException {
+        MessageDigest sha;
+
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        int height = 1;
+        for (int width = Math.max(leaves.length, 1); width > 1; width = (width + 1) / 2)
+            height++;
+
+        byte[][][] levels = new byte[height][][];
+        levels[0] = new byte[Math.max(leaves.length, 1)][];
+
+        for (int i = 0; i < levels[0].length; i++)
+            levels[0][i] = i < leaves.length && leaves[i] != null ? leaves[i] : EMPTY;
+
+        for (int level = 1; level < height; level++) {
+            byte[][] children = levels[level - 1];
+            byte[][] nodes = new byte[(children.length + 1) / 2][];
+
+            for (int i = 0; i < nodes.length; i++) {
+                byte[] left = children[2 * i];
+                byte[] right = 2 * i + 1 < children.length ? children[2 * i + 1] : EMPTY;
+
+                if (Arrays.equals(left, EMPTY) && Arrays.equals(right, EMPTY)) {
+                    nodes[i] = EMPTY;
+                    continue;
+                }
+
+                sha.update(left);
+                sha.update(right);
+                nodes[i] = sha.digest();
+            }
+            levels[level] = nodes;
+        }
+
+        return new MerkleTree(levels);
+    }
+
+    /**
+     * @param data Raw content of a chunk between position and limit, left as it is
+     * @return Leaf of the chunk
+     * @throws IOException If SHA-256 is not available
+     */
+    public static byte[] digestOf(ByteBuffer data) throws IOException {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(data.duplicate());
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @param present Chunks kept, the other leaves are left out
+     * @return Tree of the chunks a holder is expected to store
+     * @throws IOException
+     */
+    public MerkleTree masked(boolean[] present) throws IOException {
+        byte[][] leaves = new byte[getNumberOfLeaves()][];
+
+        for (int i = 0; i < leaves.length; i++)
+            leaves[i] = i < present.length && present[i] ? levels[0][i] : null;
+
+        return of(leaves);
+    }
+
+    public int getNumberOfLeaves() {
+        return levels[0].length;
+    }
+
+    /**
+     * @return Levels of the tree, the root is at getHeight() - 1
+     */
+    public int getHeight() {
+        return levels.length;
+    }
+
+    /**
+     * @return Nodes in a level
+     */
+    public int getWidth(int level) {
+        return levels[level].length;
+    }
+
+    public byte[] getNode(int level, int index) {
+        return levels[level][index];
+    }
+
+    public byte[] getRoot() {
+        return levels[levels.length - 1][0];
+    }
+
+    /**
+     * @return Digest of a chunk, zeros if it was left out
+     */
+    public byte[] getLeaf(int chunkNo) {
+        return levels[0][chunkNo];
+    }
+
+    public boolean matches(int level, int index, byte[] digest) {
+        return Arrays.equals(levels[level][index], digest);
+    }
+
+    /**
+     * Writes the leaves of the tree in the binary metadata format, the other levels are built again when it is read
+     * <pre>
+     * leaves(varint) { digest(32) }*
+     * </pre>
+     *
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        MetadataCodec.writeVarInt(out, levels[0].length);
+
+        for (byte[] leaf : levels[0])
+            out.write(leaf);
+    }
+
+    /**
+     * @return Tree written by writeTo
+     * @throws IOException
+     */
+    public static MerkleTree readFrom(DataInput in) throws IOException {
+        int count = MetadataCodec.readVarInt(in);
+
+        if (count < 1)
+            throw new IOException("Invalid Merkle tree");
+
+        byte[][] leaves = new byte[count][DIGEST_LENGTH];
+        for (byte[] leaf : leaves)
+            in.readFully(leaf);
+
+        return of(leaves);
+    }
+}
@@ -0,0 +1,243 @@
+package peer.filesystem;
+
+import peer.protocols.messages.BinaryHeaderCodec;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary format of the metadata files and of the records of the journal.
+ * <pre>
+ * file: magic(int) version(byte) kind(byte) { length(varint) record(length) }* 0(varint)
+ * </pre>
+ * File ids and digests are their 32 raw bytes, chunk numbers and counts are varints and the counters that may go negative zigzag varints.
+ * A file is read one record at a time and a file cut short before its last, empty, record is not valid.
+ * The files written by Java serialization before this format are told apart by their stream magic
+ */
+public final class MetadataCodec {
+    private static final int MAGIC = 0x42534D44;
+    private static final byte VERSION = 1;
+    private static final int SERIALIZED_MAGIC = 0xACED;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    //Kinds of file, each with its own record
+    public static final byte CHUNK_TABLE = 1;
+    public static final byte FILE_INFOS = 2;
+    public static final byte PEER_LISTS = 3;
+    public static final byte CAPACITY = 4;
+
+    private MetadataCodec() {
+    }
+
+    /**
+     * @return If the file was written by Java serialization
+     * @throws IOException
+     */
+    public static boolean isSerialized(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readUnsignedShort() == SERIALIZED_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a file next to its target, which it replaces at once when committed
+     */
+    public static class Writer implements Closeable {
+        private final Path target;
+        private final Path temporary;
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private final DataOutputStream recordOut = new DataOutputStream(record);
+        private boolean committed = false;
+
+        public Writer(File target, byte kind) throws IOException {
+            this.target = target.toPath();
+            this.temporary = Paths.get(target + ".tmp");
+            this.file = new FileOutputStream(temporary.toFile());
+            this.out = new DataOutputStream(new BufferedOutputStream(file));
+
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(kind);
+        }
+
+        /**
+         * @return Where the next record is written, it goes to the file with endRecord
+         */
+        public DataOutputStream record() {
+            record.reset();
+            return recordOut;
+        }
+
+        public void endRecord() throws IOException {
+            recordOut.flush();
+            writeVarInt(out, record.size());
+            record.writeTo(out);
+        }
+
+        /**
+         * Ends the file, forces it and puts it in place of the target
+         *
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            writeVarInt(out, 0);
+            out.flush();
+            file.getFD().sync();
+            out.close();
+            committed = true;
+
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed)
+                return;
+
+            out.close();
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Reads the records of a file as they are needed
+     */
+    public static class Reader implements Closeable {
+        private final File file;
+        private final DataInputStream in;
+
+        /**
+         * @param kind Kind the file must be
+         * @throws IOException If the file is not of that kind or of a version this one can not read
+         */
+        public Reader(File file, byte kind) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                if (in.readInt() != MAGIC || in.readByte() != VERSION || in.readByte() != kind)
+                    throw new IOException("Unknown metadata format in " + file);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return Next record, null after the last one
+         * @throws IOException If the file ends before its last record
+         */
+        public DataInputStream next() throws IOException {
+            int length = readVarInt(in);
+
+            if (length == 0)
+                return null;
+
+            if (length < 0 || length > MAX_RECORD_SIZE)
+                throw new IOException("Invalid record in " + file);
+
+            byte[] record = new byte[length];
+            in.readFully(record);
+            return new DataInputStream(new ByteArrayInputStream(record));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    //Fields
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    /**
+     * Zigzag varint, small negative values take one byte too
+     */
+    public static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    public static int readSignedVarInt(DataInput in) throws IOException {
+        int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static long readSignedVarLong(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @param id File id or digest, in the hex form of BinaryHeaderCodec
+     */
+    public static void writeId(DataOutput out, String id) throws IOException {
+        try {
+            out.write(BinaryHeaderCodec.fileIdToBytes(id));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public static String readId(DataInput in) throws IOException {
+        byte[] raw = new byte[BinaryHeaderCodec.FILE_ID_LENGTH];
+        in.readFully(raw);
+        return BinaryHeaderCodec.bytesToFileId(raw);
+    }
+}
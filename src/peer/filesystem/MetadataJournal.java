@@ -0,0 +1,359 @@
+package peer.filesystem;
+
+import peer.utils.Constants;
+import peer.utils.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the metadata changes. Records are appended to a buffer in memory and written by a committer thread in batches,
+ * each batch forced to disk once, so every change costs its own record and a share of one force however many handlers append at once.
+ * <pre>
+ * segment: magic(int) version(byte) { frame }*
+ * frame:   length(int) record(length) crc32(int)
+ * </pre>
+ * The journal lives in numbered segments. When the segment grows past JOURNAL_SNAPSHOT_SIZE, or JOURNAL_SNAPSHOT_INTERVAL passed since the
+ * last snapshot, the committer moves to a new segment, writes a snapshot of the metadata and deletes the older segments. Records carry the
+ * whole new state of what they change, so a snapshot taken while handlers keep appending is made whole by the records that follow it.
+ * At startup the segments are replayed in order over the last snapshot, each one up to its first torn or corrupt frame
+ */
+public class MetadataJournal {
+    private static final String SEGMENT_PREFIX = "journal.";
+    private static final int SEGMENT_MAGIC = 0x42534A4E;
+    private static final byte SEGMENT_VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final int KEY_STRIPES = 64;
+
+    /**
+     * Writes the payload of a record
+     */
+    public interface Record {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Applies a record read back from the journal
+     */
+    public interface Replayer {
+        void replay(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Writes the whole metadata
+     */
+    public interface SnapshotWriter {
+        void writeSnapshot() throws IOException;
+    }
+
+    private final File directory;
+    private final SnapshotWriter snapshotWriter;
+    private final Logger log;
+
+    //Frames appended and not yet handed to the committer
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    //Records of keys in the same stripe are encoded and appended one at a time
+    private final Object[] keyStripes = new Object[KEY_STRIPES];
+
+    //Records appended and records forced to disk, flush waits for the second to reach the first
+    private long appended = 0;
+    private long committed = 0;
+    private boolean closed = false;
+
+    //Owned by the committer thread
+    private long segment;
+    private FileChannel channel;
+    private long segmentSize = 0;
+    private long lastSnapshot;
+    private boolean snapshotDue = false;
+    private Thread committer;
+
+    /**
+     * @param directory      Where the segments are
+     * @param snapshotWriter Writes the metadata the journal is compacted into
+     * @param log            Logger reference
+     */
+    public MetadataJournal(File directory, SnapshotWriter snapshotWriter, Logger log) {
+        this.directory = directory;
+        this.snapshotWriter = snapshotWriter;
+        this.log = log;
+
+        for (int i = 0; i < keyStripes.length; i++)
+            keyStripes[i] = new Object();
+    }
+
+    /**
+     * Replays the segments left by the last run, then compacts them into a snapshot and starts committing
+     *
+     * @param replayer Applies each record
+     * @param name     Name of the committer thread
+     * @throws IOException If the new segment can not be created
+     */
+    public void open(Replayer replayer, String name) throws IOException {
+        List<Long> segments = listSegments();
+        int records = 0;
+
+        for (long number : segments)
+            records += replaySegment(getSegmentFile(number), replayer);
+
+        if (records > 0)
+            log.info("Replayed " + records + " metadata records from " + segments.size() + " journal segments");
+
+        segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        channel = openSegment(segment);
+
+        if (!segments.isEmpty())
+            snapshot();
+        lastSnapshot = System.currentTimeMillis();
+
+        committer = new Thread(this::commitLoop, name);
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends a record, it reaches the disk with the next batch. The record is encoded outside of the lock of the journal, under
+     * the lock of its key, so of two records of the same key the one appended last holds its latest state
+     *
+     * @param key    What the record changes
+     * @param record Encodes the record
+     */
+    public void append(Object key, Record record) {
+        synchronized (keyStripes[Math.floorMod(key.hashCode(), keyStripes.length)]) {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+            try {
+                DataOutputStream out = new DataOutputStream(frame);
+                out.writeInt(0);
+                record.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                log.error("Unable to journal a metadata change");
+                return;
+            }
+
+            byte[] bytes = frame.toByteArray();
+            int length = bytes.length - Integer.BYTES;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, Integer.BYTES, length);
+
+            ByteBuffer.wrap(bytes).putInt(length);
+            appendFrame(bytes, (int) crc.getValue());
+        }
+    }
+
+    private synchronized void appendFrame(byte[] bytes, int crc) {
+        if (closed)
+            return;
+
+        pending.write(bytes, 0, bytes.length);
+        pending.write(crc >>> 24);
+        pending.write(crc >>> 16);
+        pending.write(crc >>> 8);
+        pending.write(crc);
+
+        appended++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until every record appended so far is on disk
+     */
+    public synchronized void flush() {
+        long target = appended;
+        notifyAll();
+
+        while (committed < target && committer != null && committer.isAlive()) {
+            try {
+                wait(Constants.JOURNAL_COMMIT_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Commits the records appended so far and stops the committer
+     */
+    public void close() {
+        flush();
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            long batchEnd;
+
+            synchronized (this) {
+                while (pending.size() == 0 && !closed && !isSnapshotDue()) {
+                    try {
+                        wait(Constants.JOURNAL_COMMIT_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (closed && pending.size() == 0)
+                    break;
+
+                batch = pending;
+                batchEnd = appended;
+                pending = new ByteArrayOutputStream();
+            }
+
+            if (batch.size() > 0) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    channel.force(false);
+                    segmentSize += batch.size();
+                } catch (IOException e) {
+                    //The records of the batch are lost, a snapshot puts the state they carried on disk instead
+                    log.error("Unable to write the metadata journal, taking a snapshot");
+                    snapshotDue = true;
+                }
+            }
+
+            synchronized (this) {
+                committed = batchEnd;
+                notifyAll();
+            }
+
+            if (isSnapshotDue()) {
+                try {
+                    rotate();
+                    snapshot();
+                } catch (IOException e) {
+                    log.error("Unable to compact the metadata journal");
+                }
+                lastSnapshot = System.currentTimeMillis();
+                snapshotDue = false;
+            }
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private boolean isSnapshotDue() {
+        return snapshotDue || segmentSize > Constants.JOURNAL_SNAPSHOT_SIZE
+                || (segmentSize > 0 && System.currentTimeMillis() - lastSnapshot > Constants.JOURNAL_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * Moves to a new segment, every record appended from now on is replayed over the snapshot that follows
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        channel = openSegment(++segment);
+        segmentSize = 0;
+    }
+
+    /**
+     * Writes the metadata, then deletes the segments before the current one. A crash in between replays them over the new snapshot,
+     * which leaves the same state
+     */
+    private void snapshot() throws IOException {
+        snapshotWriter.writeSnapshot();
+
+        for (long number : listSegments())
+            if (number < segment)
+                getSegmentFile(number).delete();
+    }
+
+    /**
+     * @return Records applied
+     */
+    private int replaySegment(File file, Replayer replayer) {
+        int records = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            CRC32 crc = new CRC32();
+
+            //Records of another format would be misread
+            if (file.length() > 0 && (in.readInt() != SEGMENT_MAGIC || in.readByte() != SEGMENT_VERSION)) {
+                log.warn("Journal segment " + file.getName() + " is of an unknown format, it is ignored");
+                return 0;
+            }
+
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return records;
+                }
+
+                if (length < 0 || length > MAX_RECORD_SIZE)
+                    break;
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                crc.reset();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue())
+                    break;
+
+                replayer.replay(new DataInputStream(new ByteArrayInputStream(payload)));
+                records++;
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        log.warn("Journal segment " + file.getName() + " ends in a torn record after " + records + " records, the rest is ignored");
+        return records;
+    }
+
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return segments;
+
+        for (File file : files) {
+            if (!file.getName().startsWith(SEGMENT_PREFIX))
+                continue;
+
+            try {
+                segments.add(Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        segments.sort(null);
+        return segments;
+    }
+
+    private File getSegmentFile(long number) {
+        return new File(directory, SEGMENT_PREFIX + number);
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        FileChannel channel = FileChannel.open(getSegmentFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(5).putInt(SEGMENT_MAGIC).put(SEGMENT_VERSION);
+
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+        return channel;
+    }
+}
@@ -0,0 +1,225 @@
+package peer.protocols.messages;
+
+import peer.utils.ChunkCodec;
+import peer.utils.Constants;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed layout binary header used from protocol 1.2 on.
+ * <pre>
+ * magic(1) version(1) type(1) flags(1) senderId(varint) [fileId(32)] [chunkNo(varint)] [replication(1)] [tcpPort(2)] [codec(1)] [digest(32)] [stripeWidth(varint)] body
+ * </pre>
+ * The optional fields are present when their flag is set. The magic byte is not printable ASCII, so a binary datagram is told
+ * apart from a text one (which starts with the version digits) by its first byte
+ */
+public class BinaryHeaderCodec {
+    public static final String VERSION = "1.2";
+
+    public static final byte MAGIC = (byte) 0xB5;
+    private static final byte VERSION_BYTE = 0x12;
+
+    public static final int FILE_ID_LENGTH = 32;
+
+    //Flags
+    private static final int HAS_FILE_ID = 1;
+    private static final int HAS_CHUNK_NO = 1 << 1;
+    private static final int HAS_REPLICATION = 1 << 2;
+    private static final int HAS_TCP_PORT = 1 << 3;
+    private static final int HAS_CODEC = 1 << 4;
+    private static final int HAS_DIGEST = 1 << 5;
+    private static final int HAS_STRIPE = 1 << 6;
+
+    //Message types, the index is the code on the wire
+    private static final String[] TYPES = {null, "PUTCHUNK", "STORED", "GETCHUNK", "CHUNK", "DELETE", "DELETE_ACK", "REMOVED", "HEARTBEAT", "STORED_BATCH", "GETCHUNKS", "PUTREF", "GETTREE", "TREE"};
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * @return True if the datagram between position and limit starts with a binary header
+     */
+    public static boolean isBinary(ByteBuffer datagram) {
+        return datagram.hasRemaining() && datagram.get(datagram.position()) == MAGIC;
+    }
+
+    public static boolean isBinaryVersion(String protocolVersion) {
+        return VERSION.equals(protocolVersion);
+    }
+
+    /**
+     * @param header Header to encode
+     * @param body   Body appended after the header, may be null
+     * @return Whole datagram
+     */
+    public static byte[] encode(Header header, byte[] body) {
+        int bodyLength = body == null ? 0 : body.length;
+        ByteBuffer buffer = ByteBuffer.allocate(maxHeaderLength() + bodyLength);
+
+        writeHeader(header, buffer);
+
+        if (body != null)
+            buffer.put(body);
+
+        byte[] datagram = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(datagram);
+        return datagram;
+    }
+
+    /**
+     * Writes the header at the position of the buffer
+     */
+    public static void writeHeader(Header header, ByteBuffer buffer) {
+        int flags = 0;
+
+        if (header.getFileId() != null)
+            flags |= HAS_FILE_ID;
+        if (header.getChunkNo() >= 0)
+            flags |= HAS_CHUNK_NO;
+        if (header.hasDesiredReplicationLevel())
+            flags |= HAS_REPLICATION;
+        if (header.getTcpPort() > -1)
+            flags |= HAS_TCP_PORT;
+        if (header.getCodec() != ChunkCodec.NONE)
+            flags |= HAS_CODEC;
+        if (header.getDigest() != null)
+            flags |= HAS_DIGEST;
+        if (header.getStripeWidth() > 0)
+            flags |= HAS_STRIPE;
+
+        buffer.put(MAGIC);
+        buffer.put(VERSION_BYTE);
+        buffer.put(typeCode(header.getSubProtocol()));
+        buffer.put((byte) flags);
+        writeVarInt(buffer, header.getSenderId());
+
+        if ((flags & HAS_FILE_ID) != 0)
+            buffer.put(fileIdToBytes(header.getFileId()));
+        if ((flags & HAS_CHUNK_NO) != 0)
+            writeVarInt(buffer, header.getChunkNo());
+        if ((flags & HAS_REPLICATION) != 0)
+            buffer.put((byte) header.getDesiredReplicationLevel());
+        if ((flags & HAS_TCP_PORT) != 0)
+            buffer.putShort((short) header.getTcpPort());
+        if ((flags & HAS_CODEC) != 0)
+            buffer.put((byte) header.getCodec());
+        if ((flags & HAS_DIGEST) != 0)
+            buffer.put(fileIdToBytes(header.getDigest()));
+        if ((flags & HAS_STRIPE) != 0)
+            writeVarInt(buffer, header.getStripeWidth());
+    }
+
+    /**
+     * Reads the header at the position of the buffer, leaving the position at the first byte of the body
+     *
+     * @throws IllegalArgumentException If the bytes are not a valid binary header
+     */
+    public static Header decode(ByteBuffer buffer) {
+        if (buffer.remaining() < 5 || buffer.get() != MAGIC)
+            throw new IllegalArgumentException("Not a binary header");
+
+        if (buffer.get() != VERSION_BYTE)
+            throw new IllegalArgumentException("Unknown binary header version");
+
+        int type = buffer.get();
+        if (type <= 0 || type >= TYPES.length)
+            throw new IllegalArgumentException("Unknown message type " + type);
+
+        int flags = buffer.get() & 0xFF;
+        int senderId = readVarInt(buffer);
+
+        String fileId = null;
+        int chunkNo = -1;
+        Integer replication = null;
+        int tcpPort = -1;
+
+        if ((flags & HAS_FILE_ID) != 0) {
+            byte[] raw = new byte[FILE_ID_LENGTH];
+            buffer.get(raw);
+            fileId = bytesToFileId(raw);
+        }
+        if ((flags & HAS_CHUNK_NO) != 0) {
+            chunkNo = readVarInt(buffer);
+            if (chunkNo < 0 || chunkNo >= Constants.MAX_CHUNKS_PER_FILE)
+                throw new IllegalArgumentException("Chunk number " + chunkNo + " is out of range");
+        }
+        if ((flags & HAS_REPLICATION) != 0)
+            replication = buffer.get() & 0xFF;
+        if ((flags & HAS_TCP_PORT) != 0)
+            tcpPort = buffer.getShort() & 0xFFFF;
+
+        Header header = new Header(VERSION, TYPES[type], senderId, fileId, chunkNo, replication, tcpPort);
+
+        if ((flags & HAS_CODEC) != 0)
+            header.setCodec(buffer.get() & 0xFF);
+        if ((flags & HAS_DIGEST) != 0) {
+            byte[] raw = new byte[FILE_ID_LENGTH];
+            buffer.get(raw);
+            header.setDigest(bytesToFileId(raw));
+        }
+        if ((flags & HAS_STRIPE) != 0)
+            header.setStripeWidth(readVarInt(buffer));
+
+        return header;
+    }
+
+    public static int maxHeaderLength() {
+        return 4 + 5 + FILE_ID_LENGTH + 5 + 1 + 2 + 1 + FILE_ID_LENGTH + 5;
+    }
+
+    /**
+     * The file ids are SHA-256 digests written as 64 upper case hex characters, on the wire they travel as the 32 raw bytes
+     */
+    public static byte[] fileIdToBytes(String fileId) {
+        if (fileId.length() != FILE_ID_LENGTH * 2)
+            throw new IllegalArgumentException("Invalid file id " + fileId);
+
+        byte[] raw = new byte[FILE_ID_LENGTH];
+        for (int i = 0; i < FILE_ID_LENGTH; i++) {
+            int high = Character.digit(fileId.charAt(2 * i), 16);
+            int low = Character.digit(fileId.charAt(2 * i + 1), 16);
+
+            if (high < 0 || low < 0)
+                throw new IllegalArgumentException("Invalid file id " + fileId);
+
+            raw[i] = (byte) ((high << 4) | low);
+        }
+        return raw;
+    }
+
+    public static String bytesToFileId(byte[] raw) {
+        char[] chars = new char[raw.length * 2];
+        for (int i = 0; i < raw.length; i++) {
+            chars[2 * i] = HEX[(raw[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[raw[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    public static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static byte typeCode(String subProtocol) {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(subProtocol))
+                return (byte) i;
+        }
+        throw new IllegalArgumentException("Sub protocol without binary code: " + subProtocol);
+    }
+}
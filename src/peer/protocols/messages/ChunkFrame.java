@@ -0,0 +1,88 @@
+package peer.protocols.messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame of a chunk sent through a TCP connection to a restoring peer.
+ * <pre>
+ * magic(1) fileId(32) senderId(4) chunkNo(4) codec(1) bodyLength(4) body
+ * </pre>
+ * The header has a fixed size, so the body can follow straight from the chunk file and be read straight into the restore target.
+ * The body is the chunk as the holder stored it, compressed with the codec of the header
+ */
+public class ChunkFrame {
+    public static final byte MAGIC = (byte) 0xC5;
+    public static final int HEADER_LENGTH = 1 + BinaryHeaderCodec.FILE_ID_LENGTH + 3 * Integer.BYTES + 1;
+
+    private final String fileId;
+    private final int senderId;
+    private final int chunkNo;
+    private final int codec;
+    private final int bodyLength;
+
+    public ChunkFrame(String fileId, int senderId, int chunkNo, int codec, int bodyLength) {
+        this.fileId = fileId;
+        this.senderId = senderId;
+        this.chunkNo = chunkNo;
+        this.codec = codec;
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * @return Header ready to be written, the body is sent apart
+     */
+    public ByteBuffer encodeHeader() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+
+        buffer.put(MAGIC);
+        buffer.put(BinaryHeaderCodec.fileIdToBytes(fileId));
+        buffer.putInt(senderId);
+        buffer.putInt(chunkNo);
+        buffer.put((byte) codec);
+        buffer.putInt(bodyLength);
+
+        return buffer.flip();
+    }
+
+    /**
+     * @param buffer Exactly HEADER_LENGTH bytes between position and limit
+     * @return Frame described by the header
+     */
+    public static ChunkFrame decodeHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_LENGTH || buffer.get() != MAGIC)
+            throw new IllegalArgumentException("Invalid chunk frame header");
+
+        byte[] raw = new byte[BinaryHeaderCodec.FILE_ID_LENGTH];
+        buffer.get(raw);
+
+        int senderId = buffer.getInt();
+        int chunkNo = buffer.getInt();
+        int codec = buffer.get() & 0xFF;
+        int bodyLength = buffer.getInt();
+
+        if (chunkNo < 0 || bodyLength < 0)
+            throw new IllegalArgumentException("Invalid chunk frame header");
+
+        return new ChunkFrame(BinaryHeaderCodec.bytesToFileId(raw), senderId, chunkNo, codec, bodyLength);
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public int getChunkNo() {
+        return chunkNo;
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+}
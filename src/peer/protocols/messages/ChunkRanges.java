@@ -0,0 +1,195 @@
+package peer.protocols.messages;
+
+import peer.utils.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of chunk numbers of one file, sent in message bodies as a list of ranges.
+ * <pre>
+ * rangeCount(varint) { firstChunkNo(varint) length(varint) }*
+ * </pre>
+ * Consecutive chunks collapse into one range, so the acknowledgement of a whole file usually costs a handful of bytes
+ */
+public class ChunkRanges {
+    //Keeps a body under the control channel datagram size
+    public final static int MAX_RANGES_PER_MESSAGE = 2000;
+
+    private final BitSet chunks;
+
+    public ChunkRanges() {
+        this.chunks = new BitSet();
+    }
+
+    private ChunkRanges(BitSet chunks) {
+        this.chunks = chunks;
+    }
+
+    public static ChunkRanges of(int chunkNo) {
+        ChunkRanges ranges = new ChunkRanges();
+        ranges.add(chunkNo);
+        return ranges;
+    }
+
+    /**
+     * @param from First chunk number
+     * @param to   Last chunk number, exclusive
+     */
+    public static ChunkRanges range(int from, int to) {
+        ChunkRanges ranges = new ChunkRanges();
+        ranges.chunks.set(from, to);
+        return ranges;
+    }
+
+    public void add(int chunkNo) {
+        chunks.set(chunkNo);
+    }
+
+    public void addAll(ChunkRanges other) {
+        chunks.or(other.chunks);
+    }
+
+    public void remove(int chunkNo) {
+        chunks.clear(chunkNo);
+    }
+
+    public boolean contains(int chunkNo) {
+        return chunkNo >= 0 && chunks.get(chunkNo);
+    }
+
+    public boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    /**
+     * @return Number of chunks in the set
+     */
+    public int size() {
+        return chunks.cardinality();
+    }
+
+    /**
+     * @return Lowest chunk number, -1 if the set is empty
+     */
+    public int first() {
+        return chunks.nextSetBit(0);
+    }
+
+    /**
+     * @return Lowest chunk number after the given one, -1 if there is none
+     */
+    public int next(int chunkNo) {
+        return chunks.nextSetBit(chunkNo + 1);
+    }
+
+    /**
+     * Visits the chunk numbers in ascending order
+     */
+    public void forEach(IntConsumer consumer) {
+        for (int chunkNo = chunks.nextSetBit(0); chunkNo >= 0; chunkNo = chunks.nextSetBit(chunkNo + 1))
+            consumer.accept(chunkNo);
+    }
+
+    /**
+     * @return Chunk numbers in ascending order
+     */
+    public int[] toArray() {
+        return chunks.stream().toArray();
+    }
+
+    public ChunkRanges copy() {
+        return new ChunkRanges((BitSet) chunks.clone());
+    }
+
+    /**
+     * Encodes the set in as many bodies as needed so none of them holds more than maxRanges ranges
+     *
+     * @param maxRanges Maximum number of ranges per body
+     * @return Bodies in ascending chunk order
+     */
+    public List<byte[]> encode(int maxRanges) {
+        List<byte[]> bodies = new ArrayList<>();
+        List<int[]> ranges = new ArrayList<>();
+
+        int start = chunks.nextSetBit(0);
+        while (start >= 0) {
+            int end = chunks.nextClearBit(start);
+            ranges.add(new int[]{start, end - start});
+
+            if (ranges.size() == maxRanges) {
+                bodies.add(encodeRanges(ranges));
+                ranges.clear();
+            }
+            start = chunks.nextSetBit(end);
+        }
+
+        if (!ranges.isEmpty() || bodies.isEmpty())
+            bodies.add(encodeRanges(ranges));
+
+        return bodies;
+    }
+
+    public byte[] encode() {
+        return encode(Integer.MAX_VALUE).get(0);
+    }
+
+    /**
+     * @param body Body of a message between position and limit
+     * @throws IllegalArgumentException If the body is not a valid list of ranges, or a range goes past MAX_CHUNKS_PER_FILE
+     */
+    public static ChunkRanges decode(ByteBuffer body) {
+        ChunkRanges ranges = new ChunkRanges();
+
+        try {
+            int count = BinaryHeaderCodec.readVarInt(body);
+            for (int i = 0; i < count; i++) {
+                int first = BinaryHeaderCodec.readVarInt(body);
+                int length = BinaryHeaderCodec.readVarInt(body);
+
+                if (first < 0 || length < 0 || first > Constants.MAX_CHUNKS_PER_FILE - length)
+                    throw new IllegalArgumentException("Invalid chunk range");
+
+                ranges.chunks.set(first, first + length);
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed chunk ranges", e);
+        }
+        return ranges;
+    }
+
+    private static byte[] encodeRanges(List<int[]> ranges) {
+        ByteBuffer buffer = ByteBuffer.allocate(5 + ranges.size() * 10);
+        BinaryHeaderCodec.writeVarInt(buffer, ranges.size());
+
+        for (int[] range : ranges) {
+            BinaryHeaderCodec.writeVarInt(buffer, range[0]);
+            BinaryHeaderCodec.writeVarInt(buffer, range[1]);
+        }
+
+        byte[] body = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(body);
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        int start = chunks.nextSetBit(0);
+
+        while (start >= 0) {
+            int end = chunks.nextClearBit(start);
+            if (stringBuilder.length() > 0)
+                stringBuilder.append(",");
+            stringBuilder.append(start);
+            if (end - 1 > start)
+                stringBuilder.append("-").append(end - 1);
+            start = chunks.nextSetBit(end);
+        }
+        return stringBuilder.toString();
+    }
+}
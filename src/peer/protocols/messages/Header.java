@@ -1,5 +1,6 @@
 package peer.protocols.messages;
 
+import peer.utils.ChunkCodec;
 import peer.utils.Constants;
 
 import java.io.Serializable;
@@ -14,6 +15,15 @@ public class Header implements Serializable {
     private String subProtocol;
     private int tcpPort = -1;
 
+    //Codec of the body of a PUTCHUNK or CHUNK, the 1.0 headers cannot carry it and their bodies are always raw
+    private int codec = ChunkCodec.NONE;
+
+    //SHA-256 of the raw content of the chunk, in the same hex form as the file ids. Only set for content addressed chunks
+    private String digest;
+
+    //Fragments in the stripe of a PUTCHUNK of an erasure coded file, 0 for a replicated chunk
+    private int stripeWidth = 0;
+
     /**
      * @param protocolVersion
      * @param senderId
@@ -91,67 +101,16 @@ public class Header implements Serializable {
     }
 
     /**
-     * @param headerArray Array of raw data from a socket read. Parsing required
+     * Used by the parsers, every field as read from the wire
      */
-    public Header(String[] headerArray) {
-
-        if (headerArray.length == 0) {
-            System.err.println("No header Line");
-            return;
-        }
-
-        String[] headerFirstRow = headerArray[0].split(" ");
-
-        switch (headerFirstRow[1]) {
-            case "PUTCHUNK":
-                if (headerFirstRow.length != 6)
-                    return;
-                this.protocolVersion = headerFirstRow[0];
-                this.subProtocol = headerFirstRow[1];
-                this.senderId = Integer.parseInt(headerFirstRow[2]);
-                this.fileId = headerFirstRow[3];
-                this.chunkNo = Integer.parseInt(headerFirstRow[4]);
-                this.desiredReplicationLevel = Integer.parseInt(headerFirstRow[5]);
-                break;
-            case "GETCHUNK":
-                this.protocolVersion = headerFirstRow[0];
-                this.subProtocol = headerFirstRow[1];
-                this.senderId = Integer.parseInt(headerFirstRow[2]);
-                this.fileId = headerFirstRow[3];
-                this.chunkNo = Integer.parseInt(headerFirstRow[4]);
-
-                //For the protocol 1.1
-                if (this.protocolVersion.equals("1.1"))
-                    this.tcpPort = Integer.parseInt(headerArray[1]);
-
-                break;
-
-            case "STORED":
-            case "CHUNK":
-            case "REMOVED":
-
-                this.protocolVersion = headerFirstRow[0];
-                this.subProtocol = headerFirstRow[1];
-                this.senderId = Integer.parseInt(headerFirstRow[2]);
-                this.fileId = headerFirstRow[3];
-                this.chunkNo = Integer.parseInt(headerFirstRow[4]);
-
-                break;
-            case "DELETE":
-            case "DELETE_ACK":
-                this.protocolVersion = headerFirstRow[0];
-                this.subProtocol = headerFirstRow[1];
-                this.senderId = Integer.parseInt(headerFirstRow[2]);
-                this.fileId = headerFirstRow[3];
-                break;
-            case "HEARTBEAT":
-                this.protocolVersion = headerFirstRow[0];
-                this.subProtocol = headerFirstRow[1];
-                this.senderId = Integer.parseInt(headerFirstRow[2]);
-                break;
-            default:
-                System.err.println("Not implemented YET");
-        }
+    Header(String protocolVersion, String subProtocol, int senderId, String fileId, int chunkNo, Integer desiredReplicationLevel, int tcpPort) {
+        this.protocolVersion = protocolVersion;
+        this.subProtocol = subProtocol;
+        this.senderId = senderId;
+        this.fileId = fileId;
+        this.chunkNo = chunkNo;
+        this.desiredReplicationLevel = desiredReplicationLevel;
+        this.tcpPort = tcpPort;
     }
 
     public Header(Header header) {
@@ -167,10 +126,20 @@ public class Header implements Serializable {
 
         this.subProtocol = header.getSubProtocol();
         this.tcpPort = header.getTcpPort();
+        this.codec = header.getCodec();
+        this.digest = header.getDigest();
+        this.stripeWidth = header.getStripeWidth();
     }
 
     /**
-     * @return Makes the conversion from a high level Message to a low level that the socket can send in the network
+     * @return True if headers of that version carry the codec, the content digest and the stripe width of the chunk
+     */
+    public static boolean carriesChunkAttributes(String protocolVersion) {
+        return !protocolVersion.equals("1.0");
+    }
+
+    /**
+     * @return Makes the conversion from a high level Message to a low level that the socket can send in the network. Null for the binary versions
      */
     public String getHeaderString() {
 
@@ -197,6 +166,15 @@ public class Header implements Serializable {
                 stringAux = stringAux + Constants.CRLF_STR + tcpPort;
             }
 
+            if (codec != ChunkCodec.NONE)
+                stringAux = stringAux + Constants.CRLF_STR + "CODEC " + codec;
+
+            if (digest != null)
+                stringAux = stringAux + Constants.CRLF_STR + "DIGEST " + digest;
+
+            if (stripeWidth > 0)
+                stringAux = stringAux + Constants.CRLF_STR + "STRIPE " + stripeWidth;
+
             return stringAux + Constants.CRLF_STR + Constants.CRLF_STR;
         }
         return null;
@@ -222,6 +200,10 @@ public class Header implements Serializable {
         return desiredReplicationLevel;
     }
 
+    public boolean hasDesiredReplicationLevel() {
+        return desiredReplicationLevel != null;
+    }
+
     public String getSubProtocol() {
         return subProtocol;
     }
@@ -229,4 +211,37 @@ public class Header implements Serializable {
     public int getTcpPort() {
         return tcpPort;
     }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public void setCodec(int codec) {
+        if (codec != ChunkCodec.NONE && !carriesChunkAttributes(protocolVersion))
+            throw new IllegalArgumentException("Protocol " + protocolVersion + " headers cannot carry a codec");
+
+        this.codec = codec;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        if (digest != null && !carriesChunkAttributes(protocolVersion))
+            throw new IllegalArgumentException("Protocol " + protocolVersion + " headers cannot carry a digest");
+
+        this.digest = digest;
+    }
+
+    public int getStripeWidth() {
+        return stripeWidth;
+    }
+
+    public void setStripeWidth(int stripeWidth) {
+        if (stripeWidth > 0 && !carriesChunkAttributes(protocolVersion))
+            throw new IllegalArgumentException("Protocol " + protocolVersion + " headers cannot carry a stripe width");
+
+        this.stripeWidth = stripeWidth;
+    }
 }
@@ -0,0 +1,303 @@
+package peer.protocols.messages;
+
+import peer.utils.Constants;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte level parser of the headers. For text headers it finds the CRLFCRLF terminator and reads the fields where they are in the datagram,
+ * binary headers are handed to the BinaryHeaderCodec. The body is never decoded and is exposed as an offset and length of the same buffer
+ */
+public class HeaderParser {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SPACE = ' ';
+    private static final int MAX_FIELDS = 8;
+    private static final String CODEC_LINE = "CODEC ";
+    private static final String DIGEST_LINE = "DIGEST ";
+    private static final String STRIPE_LINE = "STRIPE ";
+
+    //Known tokens are matched in place, so parsing them allocates nothing
+    private static final String[] VERSIONS = {"1.0", "1.1"};
+    private static final String[] SUB_PROTOCOLS = {"PUTCHUNK", "STORED", "GETCHUNK", "CHUNK", "DELETE", "DELETE_ACK", "REMOVED", "HEARTBEAT", "STORED_BATCH", "GETCHUNKS", "PUTREF", "GETTREE", "TREE"};
+
+    private final ByteBuffer datagram;
+
+    //Start and end (exclusive) of each field of the first line
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+
+    private int bodyOffset;
+    private int bodyLength;
+
+    /**
+     * @param datagram Raw datagram between position and limit. It is not modified
+     */
+    public HeaderParser(ByteBuffer datagram) {
+        this.datagram = datagram;
+    }
+
+    /**
+     * @return Absolute index of the CRLFCRLF that ends the header, -1 if there is none
+     */
+    public static int indexOfHeaderTerminator(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i + 3 < to; i++) {
+            if (buffer.get(i) == CR && buffer.get(i + 1) == LF && buffer.get(i + 2) == CR && buffer.get(i + 3) == LF)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the header. The body starts right after the header and runs to the end of the datagram
+     *
+     * @return Header with the same fields the protocol defines for its sub protocol
+     * @throws IllegalArgumentException If the datagram has no valid header
+     */
+    public Header parse() {
+        int start = datagram.position();
+        int limit = datagram.limit();
+
+        if (BinaryHeaderCodec.isBinary(datagram)) {
+            ByteBuffer cursor = datagram.duplicate();
+            Header header = BinaryHeaderCodec.decode(cursor);
+            bodyOffset = cursor.position();
+            bodyLength = limit - bodyOffset;
+            return header;
+        }
+
+        int headerEnd = indexOfHeaderTerminator(datagram, start, limit);
+
+        if (headerEnd < 0)
+            throw new IllegalArgumentException("No Header Line");
+
+        bodyOffset = headerEnd + 4;
+        bodyLength = limit - bodyOffset;
+
+        int firstLineEnd = indexOfLineEnd(start, headerEnd);
+        tokenize(start, firstLineEnd);
+
+        if (fieldCount < 2)
+            throw new IllegalArgumentException("Incomplete header line");
+
+        String protocolVersion = matchOrDecode(0, VERSIONS);
+        String subProtocol = matchOrDecode(1, SUB_PROTOCOLS);
+
+        switch (subProtocol) {
+            case "PUTCHUNK":
+            case "PUTREF":
+                requireFields(subProtocol, 6);
+                return withChunkAttributes(new Header(protocolVersion, subProtocol, intField(2), fileIdField(3), chunkNoField(4), intField(5), -1), firstLineEnd, headerEnd);
+            case "GETCHUNK":
+                requireFields(subProtocol, 5);
+                return new Header(protocolVersion, subProtocol, intField(2), fileIdField(3), chunkNoField(4), null, tcpPortLine(protocolVersion, firstLineEnd, headerEnd));
+            case "GETCHUNKS":
+                requireFields(subProtocol, 4);
+                return new Header(protocolVersion, subProtocol, intField(2), fileIdField(3), -1, null, tcpPortLine(protocolVersion, firstLineEnd, headerEnd));
+            case "CHUNK":
+                requireFields(subProtocol, 5);
+                return withChunkAttributes(new Header(protocolVersion, subProtocol, intField(2), fileIdField(3), chunkNoField(4), null, -1), firstLineEnd, headerEnd);
+            case "STORED":
+            case "REMOVED":
+                requireFields(subProtocol, 5);
+                return new Header(protocolVersion, subProtocol, intField(2), fileIdField(3), chunkNoField(4), null, -1);
+            case "DELETE":
+            case "DELETE_ACK":
+            case "STORED_BATCH":
+            case "GETTREE":
+            case "TREE":
+                requireFields(subProtocol, 4);
+                return new Header(protocolVersion, subProtocol, intField(2), fileIdField(3), -1, null, -1);
+            case "HEARTBEAT":
+                requireFields(subProtocol, 3);
+                return new Header(protocolVersion, subProtocol, intField(2), null, -1, null, -1);
+            default:
+                System.err.println("Not implemented YET");
+                return new Header(protocolVersion, subProtocol, fieldCount > 2 ? intField(2) : -1, null, -1, null, -1);
+        }
+    }
+
+    /**
+     * @return Absolute offset of the body in the datagram
+     */
+    public int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * For the protocol 1.1 the TCP port follows in its own line
+     */
+    private int tcpPortLine(String protocolVersion, int firstLineEnd, int headerEnd) {
+        if (protocolVersion.equals("1.1") && firstLineEnd < headerEnd)
+            return parseInt(firstLineEnd + 2, headerEnd);
+        return -1;
+    }
+
+    /**
+     * For the protocol 1.1 the codec of a compressed body, the digest of a content addressed chunk and the stripe width of a fragment
+     * come in their own lines after the first one
+     */
+    private Header withChunkAttributes(Header header, int firstLineEnd, int headerEnd) {
+        if (!header.getProtocolVersion().equals("1.1"))
+            return header;
+
+        for (int lineStart = firstLineEnd + 2; lineStart < headerEnd; ) {
+            int lineEnd = indexOfLineEnd(lineStart, headerEnd);
+
+            if (startsWith(lineStart, lineEnd, CODEC_LINE))
+                header.setCodec(parseInt(lineStart + CODEC_LINE.length(), lineEnd));
+            else if (startsWith(lineStart, lineEnd, DIGEST_LINE))
+                header.setDigest(idString(lineStart + DIGEST_LINE.length(), lineEnd));
+            else if (startsWith(lineStart, lineEnd, STRIPE_LINE))
+                header.setStripeWidth(parseInt(lineStart + STRIPE_LINE.length(), lineEnd));
+
+            lineStart = lineEnd + 2;
+        }
+        return header;
+    }
+
+    private boolean startsWith(int from, int to, String prefix) {
+        if (to - from < prefix.length())
+            return false;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (datagram.get(from + i) != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int indexOfLineEnd(int from, int to) {
+        for (int i = from; i + 1 < to; i++) {
+            if (datagram.get(i) == CR && datagram.get(i + 1) == LF)
+                return i;
+        }
+        return to;
+    }
+
+    /**
+     * Splits the line in fields separated by one or more spaces. Trailing spaces are ignored
+     */
+    private void tokenize(int from, int to) {
+        fieldCount = 0;
+        int i = from;
+
+        while (i < to && fieldCount < MAX_FIELDS) {
+            while (i < to && datagram.get(i) == SPACE)
+                i++;
+
+            if (i == to)
+                break;
+
+            fieldStart[fieldCount] = i;
+
+            while (i < to && datagram.get(i) != SPACE)
+                i++;
+
+            fieldEnd[fieldCount++] = i;
+        }
+    }
+
+    private void requireFields(String subProtocol, int count) {
+        if (fieldCount < count)
+            throw new IllegalArgumentException("Expected " + count + " fields in " + subProtocol + " header, got " + fieldCount);
+    }
+
+    private int intField(int field) {
+        return parseInt(fieldStart[field], fieldEnd[field]);
+    }
+
+    /**
+     * Chunk numbers are refused past MAX_CHUNKS_PER_FILE, the tables size their pages by them
+     */
+    private int chunkNoField(int field) {
+        int chunkNo = intField(field);
+
+        if (chunkNo >= Constants.MAX_CHUNKS_PER_FILE)
+            throw new IllegalArgumentException("Chunk number " + chunkNo + " is over the maximum per file");
+        return chunkNo;
+    }
+
+    private int parseInt(int from, int to) {
+        if (from >= to)
+            throw new NumberFormatException("Empty number field");
+        //Nine digits always fit in an int
+        if (to - from > 9)
+            throw new NumberFormatException("Header number field too long");
+
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = datagram.get(i) - '0';
+
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Invalid digit in header number field");
+
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private String stringField(int field) {
+        return asciiString(fieldStart[field], fieldEnd[field]);
+    }
+
+    private String fileIdField(int field) {
+        return idString(fieldStart[field], fieldEnd[field]);
+    }
+
+    /**
+     * File ids and digests are 64 hex digits, kept in upper case whatever the case the sender wrote them in,
+     * so the same file always has the same id in the tables, the journal and the chunk directories
+     */
+    private String idString(int from, int to) {
+        if (to - from != 2 * BinaryHeaderCodec.FILE_ID_LENGTH)
+            throw new IllegalArgumentException("Invalid file id length");
+
+        byte[] bytes = new byte[to - from];
+
+        for (int i = 0; i < bytes.length; i++) {
+            byte digit = datagram.get(from + i);
+
+            if (digit >= 'a' && digit <= 'f')
+                digit -= 'a' - 'A';
+            else if ((digit < '0' || digit > '9') && (digit < 'A' || digit > 'F'))
+                throw new IllegalArgumentException("Invalid digit in file id");
+
+            bytes[i] = digit;
+        }
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private String asciiString(int from, int to) {
+        byte[] bytes = new byte[to - from];
+
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = datagram.get(from + i);
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private String matchOrDecode(int field, String[] known) {
+        int length = fieldEnd[field] - fieldStart[field];
+
+        for (String candidate : known) {
+            if (candidate.length() != length)
+                continue;
+
+            boolean equal = true;
+            for (int i = 0; i < length && equal; i++)
+                equal = datagram.get(fieldStart[field] + i) == candidate.charAt(i);
+
+            if (equal)
+                return candidate;
+        }
+        return stringField(field);
+    }
+}
@@ -1,9 +1,10 @@
 package peer.protocols.messages;
 
+import peer.channels.BufferPool;
 import peer.utils.Constants;
 
 import java.io.Serializable;
-import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -11,6 +12,11 @@ public class Message implements Serializable {
     private Header header;
     private byte[] body;
 
+    //Received messages keep their body in the pooled datagram buffer until release
+    private transient ByteBuffer bodyView;
+    private transient ByteBuffer pooledBuffer;
+    private transient BufferPool pool;
+
     public Message(Header header) {
         this.header = header;
     }
@@ -21,47 +27,23 @@ public class Message implements Serializable {
     }
 
     /**
-     * This method translate a raw UDP request to a high level Message human friendly
+     * This method translate a raw UDP request to a high level Message human friendly.
+     * The body is not copied, it stays a view of the datagram buffer until the message is released
      *
-     * @param request Raw request received in the multicast channel
+     * @param datagram Raw request received in the multicast channel, between position and limit
+     * @param pool     Pool the datagram buffer is returned to on release. Null if it is not pooled
      */
-    public Message(DatagramPacket request) {
-
-        int counterBytesHeader = 0;
-
-        byte[] cleanArray = Arrays.copyOfRange(request.getData(), 0, request.getLength());
-
-        String string = new String(cleanArray, StandardCharsets.US_ASCII);
-
-        String[] results = string.split(Constants.CRLF_STR, 4);
-
-        String[] headerArray = null;
-
-
-        if (results.length == 1)
-            headerArray = Arrays.copyOfRange(results, 0, 1);
-        else if (results[1].equals("")) {
-            headerArray = Arrays.copyOfRange(results, 0, 2);
-        } else if (results[2].equals(""))
-            headerArray = Arrays.copyOfRange(results, 0, 3);
-
-        if (headerArray == null) {
-            System.err.println("No Header Line");
-            return;
-        }
-
-        for (String arrayLine : headerArray) {
-            counterBytesHeader = counterBytesHeader + arrayLine.getBytes(StandardCharsets.US_ASCII).length;
-            counterBytesHeader = counterBytesHeader + Constants.CRLF_STR.getBytes(StandardCharsets.US_ASCII).length;
-        }
-
-        this.header = new Header(headerArray);
-
-        //Last Index must always be the body
-        if (results.length > 2 && !results[results.length - 1].equals(""))
-            this.body = Arrays.copyOfRange(request.getData(), counterBytesHeader, request.getLength());
+    public Message(ByteBuffer datagram, BufferPool pool) {
+        this.pooledBuffer = pool != null ? datagram : null;
+        this.pool = pool;
 
+        HeaderParser parser = new HeaderParser(datagram);
+        this.header = parser.parse();
 
+        ByteBuffer view = datagram.duplicate();
+        view.limit(parser.getBodyOffset() + parser.getBodyLength());
+        view.position(parser.getBodyOffset());
+        this.bodyView = view.slice();
     }
 
     /**
@@ -79,6 +61,9 @@ public class Message implements Serializable {
      */
     public byte[] toByteArray() {
 
+        if (BinaryHeaderCodec.isBinaryVersion(header.getProtocolVersion()))
+            return BinaryHeaderCodec.encode(header, body);
+
         byte[] byteMessage;
         String messageStr = header.getHeaderString();
         byte[] headerArray = messageStr.getBytes(StandardCharsets.US_ASCII);
@@ -99,10 +84,51 @@ public class Message implements Serializable {
         return header;
     }
 
+    /**
+     * Received bodies are copied out of the pooled buffer on the first call, so the array stays valid after release
+     *
+     * @return Body of the message, null if it has none
+     */
     public byte[] getBody() {
+        if (body == null && bodyView != null) {
+            byte[] copy = new byte[bodyView.remaining()];
+            bodyView.duplicate().get(copy);
+            body = copy;
+        }
         return body;
     }
 
+    /**
+     * @return Read only view of the body without copying it. Only valid until the message is released
+     */
+    public ByteBuffer getBodyBuffer() {
+        if (body != null)
+            return ByteBuffer.wrap(body).asReadOnlyBuffer();
+        if (bodyView != null)
+            return bodyView.asReadOnlyBuffer();
+        return ByteBuffer.allocate(0);
+    }
+
+    public int getBodyLength() {
+        if (body != null)
+            return body.length;
+        if (bodyView != null)
+            return bodyView.remaining();
+        return 0;
+    }
+
+    /**
+     * Returns the datagram buffer to its pool. Called once the handler of a received message finishes
+     */
+    public void release() {
+        if (pooledBuffer != null) {
+            ByteBuffer buffer = pooledBuffer;
+            pooledBuffer = null;
+            bodyView = null;
+            pool.release(buffer);
+        }
+    }
+
     public void setBody(byte[] body) {
         this.body = body;
     }
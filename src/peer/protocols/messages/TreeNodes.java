@@ -0,0 +1,130 @@
+package peer.protocols.messages;
+
+import peer.filesystem.MerkleTree;
+import peer.utils.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Nodes of the Merkle tree of a file, asked for in a GETTREE body and answered in a TREE body.
+ * <pre>
+ * leafCount(varint) nodeCount(varint) { level(varint) index(varint) [digest(32)] }*
+ * </pre>
+ * The leaf count lets a holder build its tree with the same shape as the one of the initiator, only the TREE carries the digests
+ */
+public class TreeNodes {
+    //Keeps a body with digests under the control channel datagram size
+    public final static int MAX_NODES_PER_MESSAGE = 600;
+
+    private final int leafCount;
+    private final List<int[]> positions = new ArrayList<>();
+    private final List<byte[]> digests = new ArrayList<>();
+
+    public TreeNodes(int leafCount) {
+        this.leafCount = leafCount;
+    }
+
+    public void add(int level, int index) {
+        add(level, index, null);
+    }
+
+    public void add(int level, int index, byte[] digest) {
+        positions.add(new int[]{level, index});
+        digests.add(digest);
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    public boolean isEmpty() {
+        return positions.isEmpty();
+    }
+
+    public int getLevel(int i) {
+        return positions.get(i)[0];
+    }
+
+    public int getIndex(int i) {
+        return positions.get(i)[1];
+    }
+
+    /**
+     * @return Digest of the node, null in a GETTREE
+     */
+    public byte[] getDigest(int i) {
+        return digests.get(i);
+    }
+
+    /**
+     * Encodes the nodes in as many bodies as needed so none of them holds more than MAX_NODES_PER_MESSAGE nodes
+     *
+     * @param withDigests If the digests of the nodes go too
+     * @return Bodies in the order the nodes were added
+     */
+    public List<byte[]> encode(boolean withDigests) {
+        List<byte[]> bodies = new ArrayList<>();
+
+        for (int from = 0; from < positions.size() || bodies.isEmpty(); from += MAX_NODES_PER_MESSAGE) {
+            int to = Math.min(positions.size(), from + MAX_NODES_PER_MESSAGE);
+            ByteBuffer buffer = ByteBuffer.allocate(10 + (to - from) * (10 + (withDigests ? MerkleTree.DIGEST_LENGTH : 0)));
+
+            BinaryHeaderCodec.writeVarInt(buffer, leafCount);
+            BinaryHeaderCodec.writeVarInt(buffer, to - from);
+
+            for (int i = from; i < to; i++) {
+                BinaryHeaderCodec.writeVarInt(buffer, getLevel(i));
+                BinaryHeaderCodec.writeVarInt(buffer, getIndex(i));
+
+                if (withDigests)
+                    buffer.put(digests.get(i));
+            }
+
+            byte[] body = new byte[buffer.position()];
+            buffer.flip();
+            buffer.get(body);
+            bodies.add(body);
+        }
+
+        return bodies;
+    }
+
+    /**
+     * @param body        Body of a message between position and limit
+     * @param withDigests If the body carries the digests of the nodes
+     * @throws IllegalArgumentException If the body is not a valid list of nodes
+     */
+    public static TreeNodes decode(ByteBuffer body, boolean withDigests) {
+        try {
+            TreeNodes nodes = new TreeNodes(BinaryHeaderCodec.readVarInt(body));
+            int count = BinaryHeaderCodec.readVarInt(body);
+
+            if (nodes.leafCount < 1 || nodes.leafCount > Constants.MAX_CHUNKS_PER_FILE || count < 0 || count > MAX_NODES_PER_MESSAGE)
+                throw new IllegalArgumentException("Invalid tree node count");
+
+            for (int i = 0; i < count; i++) {
+                int level = BinaryHeaderCodec.readVarInt(body);
+                int index = BinaryHeaderCodec.readVarInt(body);
+                byte[] digest = null;
+
+                if (level < 0 || index < 0)
+                    throw new IllegalArgumentException("Invalid tree node");
+
+                if (withDigests) {
+                    digest = new byte[MerkleTree.DIGEST_LENGTH];
+                    body.get(digest);
+                }
+                nodes.add(level, index, digest);
+            }
+            return nodes;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed tree nodes", e);
+        }
+    }
+}
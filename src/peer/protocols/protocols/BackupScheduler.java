@@ -0,0 +1,270 @@
+package peer.protocols.protocols;
+
+import peer.channels.Channel;
+import peer.filesystem.FileChunks;
+import peer.filesystem.FileInfo;
+import peer.filesystem.MerkleTree;
+import peer.protocols.messages.BinaryHeaderCodec;
+import peer.protocols.messages.Header;
+import peer.protocols.messages.Message;
+import peer.utils.ChunkCodec;
+import peer.utils.Constants;
+import peer.utils.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/**
+ * Drives the PUTCHUNKs of one backup in a window of BACKUP_WINDOW chunks, a chunk leaves the window once its perceived replication
+ * level reaches the desired one. The timeouts come from the round trip times the protocol measures, fed by the chunks backed up after one send.
+ * Each body is read from the source file when it is sent and compressed with the codec of the file, the ones that do not compress go raw.
+ * The first attempt of a content addressed chunk the previous version of the file had is a PUTREF without body, the other chunks go
+ * with their body and digest right away and the receivers that already hold the content share it. The digest of each chunk is kept
+ * as it is read, the Merkle tree of the file is stored once every chunk is backed up
+ */
+public class BackupScheduler extends WindowScheduler {
+    private final File file;
+    private final String version;
+
+    private FileChannel source;
+
+    //Parity fragments of the last stripe encoded, erasure coded files only
+    private int parityStripe = -1;
+    private byte[][] parity;
+
+    //Bytes of the chunks sent before and after compression
+    private long rawBytes = 0;
+    private long sentBytes = 0;
+
+    //Content addressed chunks backed up by the PUTREF alone
+    private int referencedChunks = 0;
+
+    //Digest of each chunk as read before compression, the ones never read are the digests of their content
+    private final byte[][] leaves;
+
+    //Content of the previous version of the file, null on its first backup, when no chunk is probed
+    private final Set<String> previousDigests;
+
+    /**
+     * @param protocol Protocol sending the chunks
+     * @param fileInfo File to backup
+     * @param file     Source of the chunk bodies
+     * @param version  Version of the PUTCHUNK messages
+     * @param log      Logger reference
+     */
+    public BackupScheduler(Protocol protocol, FileInfo fileInfo, File file, String version, Logger log) {
+        super(protocol, fileInfo, Constants.BACKUP_WINDOW, Constants.MAX_PUTCHUNK_ATTEMPTS, Constants.BACKUP_TICK, log);
+        this.file = file;
+        this.version = version;
+        this.leaves = new byte[fileInfo.getNumberOfChunks()][];
+        this.previousDigests = fileInfo.getPreviousVersion() != null ? fileInfo.getPreviousVersion().getRecipe().getDigests() : null;
+    }
+
+    public synchronized void start() throws IOException {
+        source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        begin();
+    }
+
+    /**
+     * A STORED was counted for a chunk of the file, its place in the window may be free
+     */
+    public void chunkStored() {
+        schedulePump();
+    }
+
+    /**
+     * @return Chunks of the file, null if it was deleted while the backup was in progress
+     */
+    private FileChunks getChunks() {
+        return protocol.getPeer().getFileSystem().getInternalFiles().get(fileInfo.getFileId());
+    }
+
+    @Override
+    protected boolean isDone(int chunkNo) {
+        FileChunks chunks = getChunks();
+        return chunks != null && isBackedUp(chunks, chunkNo);
+    }
+
+    @Override
+    protected boolean isComplete() {
+        return getChunks() == null || deadlines.isEmpty() && nextChunk >= fileInfo.getNumberOfChunks();
+    }
+
+    @Override
+    protected long timeout(int attempt) {
+        return protocol.getRttEstimator().timeout(attempt);
+    }
+
+    @Override
+    protected void roundTrip(int chunkNo, long rtt) {
+        protocol.getRttEstimator().sample(rtt);
+    }
+
+    @Override
+    protected void chunkDone(int chunkNo, int attempts) {
+        if (isProbed(chunkNo) && attempts == 1)
+            referencedChunks++;
+    }
+
+    @Override
+    protected void send(int chunkNo) throws IOException {
+        sendChunk(chunkNo, 1);
+    }
+
+    /**
+     * @return False for the body of a chunk whose PUTREF found no content, it is its first PUTCHUNK and its STOREDs are timed from it
+     */
+    @Override
+    protected boolean resend(int chunkNo, int attempt) throws IOException {
+        sendChunk(chunkNo, attempt);
+        return !(isProbed(chunkNo) && attempt == 2);
+    }
+
+    @Override
+    protected boolean giveUp(int chunkNo) {
+        FileChunks chunks = getChunks();
+        log.error("Backup request timeout for chunk:" + chunkNo + " - Got Replication:" + (chunks != null ? chunks.getPerceivedReplicationLevel(chunkNo) : 0));
+        return false;
+    }
+
+    private boolean isBackedUp(FileChunks chunks, int chunkNo) {
+        return !chunks.contains(chunkNo) || chunks.getPerceivedReplicationLevel(chunkNo) >= chunks.getDesiredReplicationLevel(chunkNo);
+    }
+
+    /**
+     * @return If the first attempt of the chunk is a PUTREF
+     */
+    private boolean isProbed(int chunkNo) {
+        return fileInfo.isDeduplicated() && previousDigests != null && previousDigests.contains(fileInfo.getRecipe().getDigest(chunkNo));
+    }
+
+    private void sendChunk(int chunkNo, int attempt) throws IOException {
+        if (attempt == 1 && isProbed(chunkNo)) {
+            leaves[chunkNo] = BinaryHeaderCodec.fileIdToBytes(fileInfo.getRecipe().getDigest(chunkNo));
+            sendReference(chunkNo);
+            return;
+        }
+
+        byte[] body = readChunk(chunkNo);
+
+        if (leaves[chunkNo] == null)
+            leaves[chunkNo] = MerkleTree.digestOf(ByteBuffer.wrap(body));
+        Header header = new Header(version, protocol.getPeer().getId(), fileInfo.getFileId(), chunkNo, fileInfo.getDesiredReplicationLevel(), "PUTCHUNK");
+
+        if (fileInfo.isDeduplicated())
+            header.setDigest(fileInfo.getRecipe().getDigest(chunkNo));
+
+        //The receivers refuse a fragment of a stripe they already hold a fragment of
+        if (fileInfo.isErasureCoded())
+            header.setStripeWidth(fileInfo.getStripeWidth());
+
+        //A chunk that does not compress is sent raw, the codec in the header is per chunk
+        byte[] compressed = Header.carriesChunkAttributes(version) ? ChunkCodec.compress(body, fileInfo.getCodec()) : null;
+
+        rawBytes += body.length;
+
+        if (compressed != null) {
+            header.setCodec(fileInfo.getCodec());
+            body = compressed;
+        }
+
+        sentBytes += body.length;
+        Message message = new Message(header, body);
+
+        try {
+            protocol.sendDatagram(message, Channel.MDB);
+        } catch (IOException e) {
+            log.error("Opening socket but attempt of replication continues");
+        }
+    }
+
+    /**
+     * First attempt of a content addressed chunk: the peers already holding its content store it without its body
+     */
+    private void sendReference(int chunkNo) {
+        Header header = new Header(version, protocol.getPeer().getId(), fileInfo.getFileId(), chunkNo, fileInfo.getDesiredReplicationLevel(), "PUTREF");
+        header.setDigest(fileInfo.getRecipe().getDigest(chunkNo));
+
+        try {
+            protocol.sendDatagram(new Message(header), Channel.MDB);
+        } catch (IOException e) {
+            log.error("Opening socket but attempt of replication continues");
+        }
+    }
+
+    /**
+     * @return Chunk of the file, or fragment of its stripe when the file is erasure coded
+     * @throws IOException
+     */
+    private byte[] readChunk(int chunkNo) throws IOException {
+        if (fileInfo.isDeduplicated())
+            return protocol.getPeer().getFileSystem().readFileChunk(source, fileInfo, chunkNo);
+
+        if (!fileInfo.isErasureCoded())
+            return protocol.getPeer().getFileSystem().readFileChunk(source, chunkNo);
+
+        int stripe = chunkNo / fileInfo.getStripeWidth();
+        int fragment = chunkNo % fileInfo.getStripeWidth();
+
+        if (fragment < fileInfo.getDataFragments())
+            return protocol.getPeer().getFileSystem().readFileChunk(source, stripe * fileInfo.getDataFragments() + fragment);
+
+        //Fragments go out in order, so the parity of a stripe is encoded once unless it is retransmitted later
+        if (stripe != parityStripe) {
+            parity = protocol.getPeer().getFileSystem().encodeStripeParity(source, fileInfo, stripe);
+            parityStripe = stripe;
+        }
+
+        return parity[fragment - fileInfo.getDataFragments()];
+    }
+
+    @Override
+    protected void finished(boolean success) {
+        try {
+            source.close();
+        } catch (IOException ignored) {
+        }
+
+        protocol.backupFinished(fileInfo.getFileId(), this);
+
+        if (success) {
+            storeMerkleTree();
+            protocol.backupSucceeded(fileInfo);
+
+            log.info("Backup of " + fileInfo.getFileName() + ": " + fileInfo.getNumberOfChunks() + " chunks in "
+                    + (System.currentTimeMillis() - startTime) + " ms, " + retransmissions + " retransmissions, "
+                    + sentBytes + " of " + rawBytes + " bytes sent with " + ChunkCodec.getName(fileInfo.getCodec())
+                    + (fileInfo.isDeduplicated() ? ", " + referencedChunks + " chunks already in the group" : "")
+                    + (previousDigests != null ? ", previous version retired" : ""));
+        } else {
+            protocol.backupFailed(fileInfo.getFileId());
+        }
+    }
+
+    /**
+     * Keeps the tree of the chunks with the file, a backup cut short by a DELETE did not read every chunk and keeps none
+     */
+    private void storeMerkleTree() {
+        for (byte[] leaf : leaves)
+            if (leaf == null)
+                return;
+
+        try {
+            fileInfo.setMerkleTree(MerkleTree.of(leaves));
+            protocol.getPeer().getFileSystem().journalFileInfo(fileInfo.getFileName());
+        } catch (IOException e) {
+            log.error("Unable to keep the Merkle tree of " + fileInfo.getFileName());
+        }
+    }
+
+    public synchronized void appendStatistics(StringBuilder stringBuilder) {
+        stringBuilder.append("  ").append(fileInfo.getFileName()).append(": ")
+                .append(nextChunk - deadlines.size()).append("/").append(fileInfo.getNumberOfChunks()).append(" chunks, ")
+                .append(deadlines.size()).append(" in flight, ")
+                .append(retransmissions).append(" retransmissions\n");
+    }
+}
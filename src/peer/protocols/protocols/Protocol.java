@@ -1,23 +1,34 @@
 package peer.protocols.protocols;
 
 import peer.Peer;
-import peer.filesystem.ChunkInfo;
+import peer.channels.Channel;
+import peer.channels.MulticastSender;
+import peer.channels.TokenBucket;
+import peer.filesystem.ChunkTable;
+import peer.filesystem.ContentChunk;
+import peer.filesystem.FileChunks;
 import peer.filesystem.FileInfo;
+import peer.filesystem.FileRestorer;
+import peer.filesystem.MerkleTree;
+import peer.protocols.messages.ChunkRanges;
 import peer.protocols.messages.Header;
 import peer.protocols.messages.Message;
+import peer.protocols.messages.TreeNodes;
 import peer.protocols.protocols.protocol1_0.RemoveCandidate;
+import peer.utils.ChunkCodec;
 import peer.utils.Constants;
 import peer.utils.Logger;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 /**
  * Abstract class that defines the basis of what a protocol should do
@@ -27,26 +38,61 @@ public abstract class Protocol {
     protected final int mcPort;
     protected final String mdbIp;
     protected final int mdbPort;
+    protected final String mdrIp;
+    protected final int mdrPort;
     protected final Peer peer;
     protected final String version;
     protected final Logger log;
 
+    //One long lived sender per multicast channel
+    private final EnumMap<Channel, MulticastSender> senders;
+    private final StoredBatcher storedBatcher;
+
+    //Round trip of the PUTCHUNKs to the MDB group, drives every PUTCHUNK retransmission
+    private final RttEstimator rttEstimator = new RttEstimator();
+
+    //FileId - scheduler of each backup in progress
+    private final ConcurrentHashMap<String, BackupScheduler> backupSchedulers = new ConcurrentHashMap<>();
+    private final AtomicInteger backupsCompleted = new AtomicInteger();
+    private final AtomicLong backupRetransmissions = new AtomicLong();
+
+    //FileId - scheduler of each restore in progress
+    private final ConcurrentHashMap<String, RestoreScheduler> restoreSchedulers = new ConcurrentHashMap<>();
+    private final AtomicInteger restoresCompleted = new AtomicInteger();
+    private final AtomicLong restoreRetransmissions = new AtomicLong();
+
+    //FileId - scheduler of each verify in progress
+    private final ConcurrentHashMap<String, VerifyScheduler> verifySchedulers = new ConcurrentHashMap<>();
+
     /**
      * @param mcIp    Control Channel IP
      * @param mcPort  Control Channel Port
      * @param mdbIp   DataBackup IP
      * @param mdbPort DataBackup Port
+     * @param mdrIp   Data Restore IP
+     * @param mdrPort Data Restore Port
      * @param peer    Peer reference
      * @param version Protocol version
+     * @throws IOException
      */
-    public Protocol(String mcIp, int mcPort, String mdbIp, int mdbPort, Peer peer, String version) {
+    public Protocol(String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort, Peer peer, String version) throws IOException {
         this.mcIp = mcIp;
         this.mcPort = mcPort;
         this.mdbIp = mdbIp;
         this.mdbPort = mdbPort;
+        this.mdrIp = mdrIp;
+        this.mdrPort = mdrPort;
         this.peer = peer;
         this.version = version;
         this.log = new Logger(peer.getId());
+
+        this.senders = new EnumMap<>(Channel.class);
+        this.senders.put(Channel.MC, new MulticastSender(Channel.MC, mcIp, mcPort));
+        //Chunk traffic is paced so a large backup or restore does not overflow the receive buffers of the other peers
+        this.senders.put(Channel.MDB, new MulticastSender(Channel.MDB, mdbIp, mdbPort, new TokenBucket(Constants.MDB_RATE_LIMIT, Constants.MDB_BURST_SIZE)));
+        this.senders.put(Channel.MDR, new MulticastSender(Channel.MDR, mdrIp, mdrPort, new TokenBucket(Constants.MDR_RATE_LIMIT, Constants.MDR_BURST_SIZE)));
+
+        this.storedBatcher = new StoredBatcher(this, log);
     }
 
     // Default implementations
@@ -68,7 +114,81 @@ public abstract class Protocol {
      * @param filename
      * @param replicationLevel
      */
-    public abstract void backup(String filename, int replicationLevel);
+    public void backup(String filename, int replicationLevel) {
+        backup(filename, replicationLevel, 0, 0, ChunkCodec.NONE);
+    }
+
+    /**
+     * backups a file, erasure coded when parityFragments is positive: each stripe of dataFragments chunks is stored with
+     * parityFragments more fragments, every fragment once, and any dataFragments of them rebuild the stripe.
+     * A peer takes at most one fragment of a stripe, so an erasure coded backup needs the protocol 1.1 or later and
+     * dataFragments + parityFragments other peers alive, it is rejected otherwise
+     *
+     * @param filename
+     * @param replicationLevel Copies of each chunk or fragment
+     * @param dataFragments    Chunks in each stripe, ignored when the file is replicated
+     * @param parityFragments  Parity fragments of each stripe, 0 to replicate the chunks
+     * @param codec            Codec the chunks are compressed with, the chunks that do not compress are sent raw
+     */
+    public abstract void backup(String filename, int replicationLevel, int dataFragments, int parityFragments, int codec);
+
+    /**
+     * backups a file cut in content defined chunks, each addressed by the digest of its content. The chunks whose content the
+     * group already holds, from this file or any other, are stored by the peers without sending their body
+     *
+     * @param filename
+     * @param replicationLevel Copies of each chunk
+     * @param codec            Codec the chunks are compressed with
+     */
+    public void backupDeduplicated(String filename, int replicationLevel, int codec) {
+        log.error("Deduplicated backups need the protocol 1.1 or later");
+    }
+
+    /**
+     * Finds the chunks of a file its holders no longer store as backed up, walking the Merkle tree of the file down from the root
+     * through the nodes that differ only
+     *
+     * @param filename
+     */
+    public void verify(String filename) {
+        if (version.equals("1.0")) {
+            log.error("Verifying a file needs the protocol 1.1 or later");
+            return;
+        }
+
+        FileInfo fileInfo = peer.getFileSystem().getFilenameFileInfo().get(filename);
+
+        if (fileInfo == null) {
+            log.error("File " + filename + " is not backed up");
+            return;
+        }
+
+        if (fileInfo.getMerkleTree() == null) {
+            log.error("File " + filename + " has no Merkle tree, its backup is not complete or older than the trees");
+            return;
+        }
+
+        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Integer>> holders = peer.getFileSystem().getStoresReceived().get(fileInfo.getFileId());
+
+        if (holders == null || holders.isEmpty()) {
+            log.error("No holders of " + filename + " known since this peer started");
+            return;
+        }
+
+        VerifyScheduler scheduler = new VerifyScheduler(this, fileInfo, log);
+
+        if (verifySchedulers.putIfAbsent(fileInfo.getFileId(), scheduler) != null) {
+            log.error("File " + filename + " is already being verified");
+            return;
+        }
+
+        try {
+            scheduler.start(holders);
+        } catch (IOException e) {
+            verifySchedulers.remove(fileInfo.getFileId(), scheduler);
+            log.error("Error building the trees of the holders of " + filename);
+        }
+    }
 
     /**
      * Restore the file with filename provided
@@ -102,8 +222,11 @@ public abstract class Protocol {
 
         if (availableDiskSpace == 0) {
             log.info("Notifying peers about the space reclaiming..");
-            for (String fileId : peer.getFileSystem().getExternalFiles().keySet()) {
-                for (Integer chunkNum : peer.getFileSystem().getExternalFiles().get(fileId).keySet()) {
+            for (Map.Entry<String, FileChunks> file : peer.getFileSystem().getExternalFiles().entrySet()) {
+                String fileId = file.getKey();
+                FileChunks chunks = file.getValue();
+
+                for (int chunkNum = chunks.first(); chunkNum >= 0; chunkNum = chunks.next(chunkNum)) {
                     sendRemovedMessage(fileId, chunkNum);
                     log.info("Sent msg REMOVED for file " + fileId + "--> " + chunkNum);
 
@@ -156,14 +279,18 @@ public abstract class Protocol {
                 stringBuilder.append("Filename: ").append(fileInfo.getFileName()).append("\n");
                 stringBuilder.append("FileId: ").append(fileInfo.getFileId()).append("\n");
                 stringBuilder.append("  Desired replication Degree:").append(fileInfo.getDesiredReplicationLevel()).append("\n");
+                stringBuilder.append("  Codec: ").append(ChunkCodec.getName(fileInfo.getCodec())).append("\n");
+
+                if (fileInfo.getPreviousVersion() != null)
+                    stringBuilder.append("  Replaces: ").append(fileInfo.getPreviousVersion().getFileId()).append(" until backed up\n");
 
-                ConcurrentHashMap<Integer, ChunkInfo> chunkNumChunkInfo = peer.getFileSystem().getInternalFiles().get(fileInfo.getFileId());
+                FileChunks chunkNumChunkInfo = peer.getFileSystem().getInternalFiles().get(fileInfo.getFileId());
 
                 stringBuilder.append("  Chunks of the file:\n");
 
-                for (Integer key : chunkNumChunkInfo.keySet()) {
+                for (int key = chunkNumChunkInfo.first(); key >= 0; key = chunkNumChunkInfo.next(key)) {
                     stringBuilder.append("  ------------------------------\n");
-                    Integer perceivedReplicationLevel = chunkNumChunkInfo.get(key).getPerceivedReplicationLevel();
+                    int perceivedReplicationLevel = chunkNumChunkInfo.getPerceivedReplicationLevel(key);
                     stringBuilder.append("  Chunk Id: ").append(key).append("\n");
                     stringBuilder.append("  Perceived Replication Degree: ").append(perceivedReplicationLevel).append("\n");
                     stringBuilder.append("  ------------------------------\n");
@@ -177,20 +304,60 @@ public abstract class Protocol {
             stringBuilder.append("\nChunks Stored\n");
 
             for (String key : peer.getFileSystem().getExternalFiles().keySet()) {
-                ConcurrentHashMap<Integer, ChunkInfo> chunkHashMap = peer.getFileSystem().getExternalFiles().get(key);
+                FileChunks chunkHashMap = peer.getFileSystem().getExternalFiles().get(key);
                 stringBuilder.append("--------------------------------\n");
                 stringBuilder.append("File Id: ").append(key).append("\n");
-                for (Integer chunkNo : chunkHashMap.keySet()) {
+                for (int chunkNo = chunkHashMap.first(); chunkNo >= 0; chunkNo = chunkHashMap.next(chunkNo)) {
                     stringBuilder.append("  Id: ").append(chunkNo).append("\n");
-                    stringBuilder.append("  Size: ").append(chunkHashMap.get(chunkNo).getSize()).append("\n");
-                    stringBuilder.append("  Desired Replication Degree: ").append(chunkHashMap.get(chunkNo).getDesiredReplicationLevel()).append("\n");
-                    stringBuilder.append("  Perceived Replication Degree: ").append(chunkHashMap.get(chunkNo).getPerceivedReplicationLevel()).append("\n\n");
+                    stringBuilder.append("  Size: ").append(chunkHashMap.getSize(chunkNo)).append("\n");
+                    stringBuilder.append("  Codec: ").append(ChunkCodec.getName(chunkHashMap.getCodec(chunkNo))).append("\n");
+                    stringBuilder.append("  Desired Replication Degree: ").append(chunkHashMap.getDesiredReplicationLevel(chunkNo)).append("\n");
+                    stringBuilder.append("  Perceived Replication Degree: ").append(chunkHashMap.getPerceivedReplicationLevel(chunkNo)).append("\n\n");
                 }
             }
         }
         stringBuilder.append("--------------------------------\n");
         stringBuilder.append("\n").append("Free Space: ").append(peer.getFileSystem().getCapacity() - peer.getFileSystem().getOccupiedSpace()).append("\n");
-        stringBuilder.append("Storage Capacity: ").append(peer.getFileSystem().getCapacity());
+        stringBuilder.append("Storage Capacity: ").append(peer.getFileSystem().getCapacity()).append("\n");
+
+        int references = 0;
+        for (ContentChunk content : peer.getFileSystem().getContentChunks().values())
+            references += content.getReferences();
+        stringBuilder.append("Content Addressed Chunks: ").append(peer.getFileSystem().getContentChunks().size())
+                .append(" stored for ").append(references).append(" chunks\n");
+
+        stringBuilder.append("--------------------------------\n");
+        stringBuilder.append("Datagrams Sent:\n");
+        for (MulticastSender sender : senders.values()) {
+            stringBuilder.append("  ").append(sender.getChannel()).append(": ").append(sender.getDatagramsSent())
+                    .append(" datagrams, ").append(sender.getBytesSent()).append(" bytes\n");
+        }
+        stringBuilder.append("Egress Pacing:\n");
+        for (MulticastSender sender : senders.values()) {
+            if (sender.getPacer() == null)
+                continue;
+
+            stringBuilder.append("  ").append(sender.getChannel()).append(": ");
+            sender.getPacer().appendStatistics(stringBuilder);
+            stringBuilder.append(", ").append(sender.getQueue().getDepth()).append(" queued (max ").append(sender.getQueue().getMaxDepth())
+                    .append("), ").append(sender.getQueue().getDropped()).append(" dropped, ").append(sender.getQueue().getFailed()).append(" failed\n");
+        }
+
+        stringBuilder.append("PUTCHUNK Retransmission Timeout: ");
+        rttEstimator.appendStatistics(stringBuilder);
+        stringBuilder.append("\n");
+
+        stringBuilder.append("Backups: ").append(backupSchedulers.size()).append(" in progress, ")
+                .append(backupsCompleted.get()).append(" finished, ")
+                .append(backupRetransmissions.get()).append(" chunk retransmissions\n");
+        for (BackupScheduler scheduler : backupSchedulers.values())
+            scheduler.appendStatistics(stringBuilder);
+
+        stringBuilder.append("Restores: ").append(restoreSchedulers.size()).append(" in progress, ")
+                .append(restoresCompleted.get()).append(" finished, ")
+                .append(restoreRetransmissions.get()).append(" chunk retransmissions\n");
+        for (RestoreScheduler scheduler : restoreSchedulers.values())
+            scheduler.appendStatistics(stringBuilder);
 
         return stringBuilder.toString();
     }
@@ -198,10 +365,12 @@ public abstract class Protocol {
     private PriorityQueue<RemoveCandidate> createRemoveCandidates() {
         PriorityQueue<RemoveCandidate> candidates = new PriorityQueue<>();
 
-        for (String fileId : peer.getFileSystem().getExternalFiles().keySet()) {
-            for (Integer chunkNum : peer.getFileSystem().getExternalFiles().get(fileId).keySet()) {
-                ChunkInfo chunkInfo = peer.getFileSystem().getExternalFiles().get(fileId).get(chunkNum);
-                int diff = chunkInfo.getPerceivedReplicationLevel() - chunkInfo.getDesiredReplicationLevel();
+        for (Map.Entry<String, FileChunks> file : peer.getFileSystem().getExternalFiles().entrySet()) {
+            String fileId = file.getKey();
+            FileChunks chunks = file.getValue();
+
+            for (int chunkNum = chunks.first(); chunkNum >= 0; chunkNum = chunks.next(chunkNum)) {
+                int diff = chunks.getPerceivedReplicationLevel(chunkNum) - chunks.getDesiredReplicationLevel(chunkNum);
                 candidates.add(new RemoveCandidate(fileId, chunkNum, diff));
             }
         }
@@ -218,18 +387,22 @@ public abstract class Protocol {
     }
 
     /**
-     * Send the message for the specified IP and Port in a multicast UDP way.
+     * Send the message to the specified multicast channel in a UDP way, through the shared sender of that channel.
      *
      * @param message
-     * @param ipAddress
-     * @param port
+     * @param channel
      * @throws IOException
      */
-    public void sendDatagram(Message message, String ipAddress, int port) throws IOException {
-        byte[] byteArray = message.toByteArray();
-        MulticastSocket multicastSocket = new MulticastSocket(port);
-        DatagramPacket datagramPacket = new DatagramPacket(byteArray, byteArray.length, InetAddress.getByName(ipAddress), port);
-        multicastSocket.send(datagramPacket);
+    public void sendDatagram(Message message, Channel channel) throws IOException {
+        senders.get(channel).send(message.toByteArray());
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    public MulticastSender getSender(Channel channel) {
+        return senders.get(channel);
     }
 
     /**
@@ -243,8 +416,142 @@ public abstract class Protocol {
 
     public abstract void receivedDelete(Message request);
 
+    /**
+     * A GETCHUNKS asks for ranges of chunks of a file, the ones this peer holds are streamed back in order
+     *
+     * @param request GETCHUNKS received
+     */
+    public void receivedGetChunks(Message request) {
+        if (peer.getId() == request.getHeader().getSenderId())
+            return;
+
+        String fileId = request.getHeader().getFileId();
+        ChunkRanges requested = ChunkRanges.decode(request.getBodyBuffer());
+
+        //Forget the chunks of these ranges listened before, they are being requested again
+        CopyOnWriteArrayList<Integer> chunkListenedList = peer.getFileSystem().getChunksListened().computeIfAbsent(fileId, k -> new CopyOnWriteArrayList<>());
+        chunkListenedList.removeIf(requested::contains);
+
+        FileChunks stored = peer.getFileSystem().getExternalFiles().get(fileId);
+
+        //No chunks for that file stored
+        if (stored == null)
+            return;
+
+        ChunkRanges held = new ChunkRanges();
+        requested.forEach(chunkNo -> {
+            if (stored.contains(chunkNo))
+                held.add(chunkNo);
+        });
+
+        if (held.isEmpty())
+            return;
+
+        log.info("Serving chunks " + held + " of file " + fileId);
+        sendChunkStream(request, held);
+    }
+
+    /**
+     * A PUTREF asks for a chunk whose content may already be stored here for another chunk. It is taken as one more reference to
+     * that content, which costs no space, so every peer holding the content stores it. The others wait for the PUTCHUNK
+     *
+     * @param request PUTREF received
+     */
+    public void receivedPutRef(Message request) {
+        Header header = request.getHeader();
+
+        if (peer.getId() == header.getSenderId() || header.getDigest() == null)
+            return;
+
+        FileChunks external = peer.getFileSystem().getExternalFiles().get(header.getFileId());
+
+        if (external != null && external.contains(header.getChunkNo()))
+            return;
+
+        try {
+            if (!peer.getFileSystem().storeChunkReference(header))
+                return;
+        } catch (IOException e) {
+            log.error("Error Storing Chunk Reference");
+            return;
+        }
+
+        log.info("Storing chunk number " + header.getChunkNo() + " as a reference to content already stored");
+        sendStored(request);
+    }
+
+    /**
+     * A GETTREE asks the holders of a file for nodes of the Merkle tree of the chunks they store, shaped as the tree of the whole file
+     *
+     * @param request GETTREE received
+     */
+    public void receivedGetTree(Message request) {
+        Header header = request.getHeader();
+
+        if (peer.getId() == header.getSenderId() || !peer.getFileSystem().getExternalFiles().containsKey(header.getFileId()))
+            return;
+
+        try {
+            TreeNodes asked = TreeNodes.decode(request.getBodyBuffer(), false);
+            MerkleTree tree = peer.getFileSystem().getHeldTree(header.getFileId(), asked.getLeafCount());
+
+            if (tree == null)
+                return;
+
+            TreeNodes answer = new TreeNodes(asked.getLeafCount());
+
+            for (int i = 0; i < asked.size(); i++) {
+                int level = asked.getLevel(i);
+                int index = asked.getIndex(i);
+
+                if (level < tree.getHeight() && index < tree.getWidth(level))
+                    answer.add(level, index, tree.getNode(level, index));
+            }
+
+            for (byte[] body : answer.encode(true))
+                sendDatagram(new Message(new Header(version, peer.getId(), header.getFileId(), "TREE"), body), Channel.MC);
+        } catch (IllegalArgumentException | IOException e) {
+            log.error("Error answering the GETTREE of " + header.getFileId());
+        }
+    }
+
+    /**
+     * @param request TREE received, nodes of the tree of a holder
+     */
+    public void receivedTree(Message request) {
+        VerifyScheduler scheduler = verifySchedulers.get(request.getHeader().getFileId());
+
+        if (scheduler == null)
+            return;
+
+        try {
+            scheduler.treeReceived(request.getHeader().getSenderId(), TreeNodes.decode(request.getBodyBuffer(), true));
+        } catch (IllegalArgumentException e) {
+            log.error("Malformed TREE from peer " + request.getHeader().getSenderId());
+        }
+    }
+
+    /**
+     * Asks the holders of a file for nodes of their trees with as few GETTREE messages as the nodes allow
+     */
+    void sendGetTree(String fileId, TreeNodes nodes) {
+        for (byte[] body : nodes.encode(false)) {
+            try {
+                sendDatagram(new Message(new Header(version, peer.getId(), fileId, "GETTREE"), body), Channel.MC);
+            } catch (IOException e) {
+                log.error("Unable to send the GETTREE requests for verify");
+            }
+        }
+    }
+
+    void verifyFinished(String fileId, VerifyScheduler scheduler) {
+        verifySchedulers.remove(fileId, scheduler);
+    }
+
     public abstract void receivedStored(Message request);
 
+    public abstract void receivedStoredBatch(Message request);
+
     public Optional<Message> receivedRemoved(Message notification) {
         if (peer.getId() == notification.getHeader().getSenderId()) {
             return Optional.empty();
@@ -254,34 +561,26 @@ public abstract class Protocol {
         int chunkNum = notification.getHeader().getChunkNo();
 
         // Update environment
-        if (peer.getFileSystem().getEnvironmentFilesRepLevel().containsKey(fileId)) {
-            if (peer.getFileSystem().getEnvironmentFilesRepLevel().get(fileId).containsKey(chunkNum)) {
-                peer.getFileSystem().getEnvironmentFilesRepLevel().get(fileId).get(chunkNum).decrementReplicationLevel();
-                try {
-                    peer.getFileSystem().writeEnvironmentFilesRepLevelToDisk();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        FileChunks environment = peer.getFileSystem().getEnvironmentFilesRepLevel().get(fileId);
+        if (environment != null && environment.contains(chunkNum)) {
+            environment.decrementReplicationLevel(chunkNum);
+            peer.getFileSystem().journalChunk(ChunkTable.ENVIRONMENT, fileId, chunkNum);
         }
 
-        ConcurrentHashMap<Integer, ChunkInfo> externalChunkNumChunkInfo = peer.getFileSystem().getExternalFiles().get(fileId);
+        FileChunks externalChunkNumChunkInfo = peer.getFileSystem().getExternalFiles().get(fileId);
         // If I'm keeping track of that file and also keeping track of that chunk of that file, then update replication level
-        if (externalChunkNumChunkInfo != null && externalChunkNumChunkInfo.get(chunkNum) != null) {
+        if (externalChunkNumChunkInfo != null && externalChunkNumChunkInfo.contains(chunkNum)) {
             log.info("Updating chunk of a file replication level..");
-            int updatedLevel = updateReplicationLevel(fileId, chunkNum);
+            int updatedLevel = externalChunkNumChunkInfo.decrementReplicationLevel(chunkNum);
 
-            int desiredReplicationLevel = externalChunkNumChunkInfo.get(chunkNum).getDesiredReplicationLevel();
+            int desiredReplicationLevel = externalChunkNumChunkInfo.getDesiredReplicationLevel(chunkNum);
             log.info("Current: " + updatedLevel + ", Desired: " + desiredReplicationLevel);
 
             if (updatedLevel < desiredReplicationLevel) {
                 log.info("Chunk " + chunkNum + "'s replication level dropped below desired..");
                 try {
-                    byte[] buffer = peer.getFileSystem().readChunk(fileId, chunkNum);
-                    Message message = new Message(
-                            new Header(getVersion(), peer.getId(), fileId, chunkNum, desiredReplicationLevel, "PUTCHUNK"),
-                            buffer
-                    );
+                    Header header = new Header(getVersion(), peer.getId(), fileId, chunkNum, desiredReplicationLevel, "PUTCHUNK");
+                    Message message = new Message(header, readChunkToSend(header));
                     log.info("Sending PUTCHUNK for chunk " + chunkNum);
                     peer.getThreadPool().schedule(() -> sendPutChunkHelperReclaim(message, 1), 0, TimeUnit.SECONDS);
                 } catch (IOException e) {
@@ -289,11 +588,7 @@ public abstract class Protocol {
                     log.error("Error Opening File");
                 }
             }
-            try {
-                peer.getFileSystem().writeInternalFileMetadataToDisk();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            peer.getFileSystem().journalChunk(ChunkTable.EXTERNAL, fileId, chunkNum);
         }
         return Optional.empty();
     }
@@ -301,86 +596,295 @@ public abstract class Protocol {
     public abstract void receivedChunk(Message message);
 
     //Issued
+
+    /**
+     * The ack is not sent right away, it is coalesced with the other acks of the same file owed in the next few milliseconds
+     *
+     * @param request PUTCHUNK stored
+     */
     public void sendStored(Message request) {
-        Message reply = new Message(new Header(request.getHeader().getProtocolVersion(), peer.getId(), request.getHeader().getFileId(), request.getHeader().getChunkNo(), "STORED"));
+        storedBatcher.add(request.getHeader().getProtocolVersion(), request.getHeader().getFileId(), request.getHeader().getChunkNo());
+    }
 
-        Random random = new Random();
+    public abstract void sendChunk(Message request);
+
+    /**
+     * Streams chunks held by this peer in answer to a GETCHUNKS
+     *
+     * @param request GETCHUNKS received
+     * @param chunks  Chunks requested that this peer holds
+     */
+    public abstract void sendChunkStream(Message request, ChunkRanges chunks);
+
+    /**
+     * Reads a stored chunk to send it with the given header. The chunk goes as it is stored, with its codec in the header,
+     * unless headers of that version cannot carry the codec and it is decompressed first
+     *
+     * @param header Header of the PUTCHUNK or CHUNK about to be sent
+     * @return Body of the message, null if the chunk is not stored
+     * @throws IOException
+     */
+    public byte[] readChunkToSend(Header header) throws IOException {
+        byte[] buffer = peer.getFileSystem().readChunk(header.getFileId(), header.getChunkNo());
+        int codec = peer.getFileSystem().getChunkCodec(header.getFileId(), header.getChunkNo());
+
+        if (buffer == null)
+            return null;
+
+        if (Header.carriesChunkAttributes(header.getProtocolVersion())) {
+            //A PUTCHUNK of a content addressed chunk lets the receivers share its content, one of a fragment keeps a stripe to a fragment per peer
+            if (header.getSubProtocol().equals("PUTCHUNK")) {
+                header.setDigest(peer.getFileSystem().getChunkDigest(header.getFileId(), header.getChunkNo()));
+                header.setStripeWidth(peer.getFileSystem().getChunkStripeWidth(header.getFileId(), header.getChunkNo()));
+            }
+
+            header.setCodec(codec);
+            return buffer;
+        }
+
+        if (codec == ChunkCodec.NONE)
+            return buffer;
+
+        return ChunkCodec.decompress(buffer, codec);
+    }
 
-        peer.getThreadPool().schedule(() -> {
+    /**
+     * Requests a set of chunks of a file with as few GETCHUNKS messages as the ranges allow. The 1.0 holders know no GETCHUNKS,
+     * so under 1.0 each chunk is asked for in its own GETCHUNK
+     *
+     * @param fileId  File to restore
+     * @param chunks  Chunks missing
+     * @param tcpPort Port where the chunks are expected, -1 to receive them in the MDR channel
+     */
+    protected void sendGetChunks(String fileId, ChunkRanges chunks, int tcpPort) {
+        if (version.equals("1.0")) {
+            for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo)) {
+                try {
+                    sendDatagram(new Message(new Header(version, peer.getId(), fileId, chunkNo, "GETCHUNK")), Channel.MC);
+                } catch (IOException e) {
+                    log.error("Unable to send the GETCHUNK requests for restore");
+                }
+            }
+            return;
+        }
+
+        for (byte[] body : chunks.encode(ChunkRanges.MAX_RANGES_PER_MESSAGE)) {
             try {
-                sendDatagram(reply, mcIp, mcPort);
+                Message message = new Message(new Header(version, peer.getId(), fileId, -1, "GETCHUNKS", tcpPort), body);
+                sendDatagram(message, Channel.MC);
             } catch (IOException e) {
-                log.error("Unable to reply STORED message");
+                log.error("Unable to send the GETCHUNKS requests for restore");
             }
-        }, random.nextInt(Constants.PUTCHUNK_MAX_TIMEOUT), TimeUnit.MILLISECONDS);
+        }
     }
 
-    public abstract void sendChunk(Message request);
+    /**
+     * Starts requesting the chunks of a file in a sliding window
+     *
+     * @param fileInfo  File to restore
+     * @param restorer  Restore state of the file
+     * @param tcpPort   Port where the chunks are expected, -1 to receive them in the MDR channel
+     * @param onFailure Run if the restore is given up
+     * @return False if that file is already being restored
+     */
+    protected boolean startRestore(FileInfo fileInfo, FileRestorer restorer, int tcpPort, Runnable onFailure) {
+        RestoreScheduler scheduler = new RestoreScheduler(this, fileInfo, restorer, tcpPort, onFailure, log);
+
+        if (restoreSchedulers.putIfAbsent(fileInfo.getFileId(), scheduler) != null)
+            return false;
+
+        scheduler.start();
+        return true;
+    }
+
+    /**
+     * Lets the scheduler of the restore refill its window
+     *
+     * @param fileId File of the chunk received
+     */
+    public void restoreChunkReceived(String fileId) {
+        RestoreScheduler scheduler = restoreSchedulers.get(fileId);
+
+        if (scheduler != null)
+            scheduler.chunkReceived();
+    }
+
+    /**
+     * Ends the replacements of a previous version a crash cut short, so the file can be backed up again. The new version is kept and
+     * the previous one retired if every chunk of the new one reached its replication level, otherwise the previous version is restored
+     */
+    public void settleReplacements() {
+        for (FileInfo fileInfo : peer.getFileSystem().getFilenameFileInfo().values()) {
+            if (fileInfo.getPreviousVersion() == null || backupSchedulers.containsKey(fileInfo.getFileId()))
+                continue;
+
+            if (peer.getFileSystem().isBackedUp(fileInfo)) {
+                log.info("Finishing the replacement of the previous version of " + fileInfo.getFileName());
+                backupSucceeded(fileInfo);
+            } else {
+                log.info("Backup of the new version of " + fileInfo.getFileName() + " was interrupted, keeping the previous version");
+                backupFailed(fileInfo.getFileId());
+            }
+        }
+    }
+
+    /**
+     * Restarts the restores a crash or shutdown left with a partial file, only the chunks missing from it are requested
+     */
+    public void resumeRestores() {
+        for (FileInfo fileInfo : peer.getFileSystem().getFilenameFileInfo().values()) {
+            FileRestorer restorer = peer.getFileSystem().getFileRestorers().get(fileInfo.getFileId());
+
+            if (restorer == null || restorer.isOpen() || restorer.isComplete(fileInfo))
+                continue;
+
+            log.info("Resuming the restore of " + fileInfo.getFileName() + " from " + restorer.getNumberOfChunksStored() + "/" + fileInfo.getNumberOfChunks() + " chunks");
+            restore(fileInfo.getFileName());
+        }
+    }
+
+    void restoreFinished(String fileId, RestoreScheduler scheduler) {
+        if (restoreSchedulers.remove(fileId, scheduler)) {
+            restoresCompleted.incrementAndGet();
+            restoreRetransmissions.addAndGet(scheduler.getRetransmissions());
+        }
+    }
+
+    /**
+     * Sends the chunks one after the other, CHUNK_STREAM_INTERVAL apart, after a random delay.
+     * Each holder starts at a random chunk, so the holders of a file serve different parts and suppress each other on the rest
+     *
+     * @param chunks    Chunks to serve
+     * @param sendChunk Sends one chunk, skipping it if another peer already did
+     */
+    protected void streamChunks(ChunkRanges chunks, IntConsumer sendChunk) {
+        int[] chunkNos = chunks.toArray();
+
+        if (chunkNos.length == 0)
+            return;
+
+        Random random = new Random();
+        int start = random.nextInt(chunkNos.length);
+
+        int[] order = new int[chunkNos.length];
+        for (int i = 0; i < chunkNos.length; i++)
+            order[i] = chunkNos[(start + i) % chunkNos.length];
+
+        peer.getThreadPool().schedule(() -> streamStep(order, 0, sendChunk), random.nextInt(Constants.CHUNK_MAX_TIMEOUT), TimeUnit.MILLISECONDS);
+    }
+
+    private void streamStep(int[] order, int index, IntConsumer sendChunk) {
+        try {
+            sendChunk.accept(order[index]);
+        } catch (Exception e) {
+            log.error("Error sending chunk " + order[index] + " of the stream");
+        }
+
+        if (index + 1 < order.length)
+            peer.getThreadPool().schedule(() -> streamStep(order, index + 1, sendChunk), Constants.CHUNK_STREAM_INTERVAL, TimeUnit.MILLISECONDS);
+    }
 
     public void sendRemovedMessage(String fileId, Integer chunkNum) {
         Message message = new Message(new Header(version, peer.getId(), fileId, chunkNum, "REMOVED"));
 
         try {
-            byte[] byteArray = message.toByteArray();
-            MulticastSocket multicastSocket = new MulticastSocket(mcPort);
-            DatagramPacket datagramPacket = new DatagramPacket(byteArray, byteArray.length, InetAddress.getByName(mcIp), mcPort);
-            multicastSocket.send(datagramPacket);
+            sendDatagram(message, Channel.MC);
         } catch (IOException e) {
             log.error("Unable to send the REMOVED message for reclaim");
         }
     }
 
     /**
-     * This method sends a putchunk request until N times or until the replication level of all chunks is achieved. Runs concurrently in a Scheduled Thread for a random time
+     * Starts sending the chunks of a file, a few at a time
      *
-     * @param request Request to send
-     * @param attempt Attempt Number of the request send
+     * @param fileInfo File to backup, already registered in the internal files
+     * @param file     Source of the chunk bodies
+     * @return False if that file is already being backed up or cannot be read
      */
-    //Helpers
-    protected void sendPutChunkHelper(Message request, int attempt) {
+    protected boolean startBackup(FileInfo fileInfo, File file) {
+        BackupScheduler scheduler = new BackupScheduler(this, fileInfo, file, version, log);
 
-        Integer perceivedReplicationDegree = peer.getFileSystem().getInternalFiles().get(request.getHeader().getFileId()).get(request.getHeader().getChunkNo()).getPerceivedReplicationLevel();
+        if (backupSchedulers.putIfAbsent(fileInfo.getFileId(), scheduler) != null)
+            return false;
 
-        if (perceivedReplicationDegree >= request.getHeader().getDesiredReplicationLevel()) {
-            return;
+        try {
+            scheduler.start();
+        } catch (IOException e) {
+            log.error("Error Opening File");
+            backupSchedulers.remove(fileInfo.getFileId(), scheduler);
+            return false;
         }
+        return true;
+    }
 
-        if (attempt > Constants.MAX_PUTCHUNK_ATTEMPTS) {
-            log.error("Backup request timeout for chunk:" + request.getHeader().getChunkNo() + " - Got Replication:" + perceivedReplicationDegree);
+    /**
+     * Lets the scheduler of the backup move its window
+     *
+     * @param fileId File of the chunk stored
+     */
+    public void backupChunkStored(String fileId) {
+        BackupScheduler scheduler = backupSchedulers.get(fileId);
 
-            // Delete chunks on the peers who managed to put them
-            log.info("Sending DELETE request to the peers for unsuccessful backed up file");
-            delete(request.getHeader().getFileId());
+        if (scheduler != null)
+            scheduler.chunkStored();
+    }
 
-            log.info("Cleanup metadata..");
-            for (Map.Entry<String, FileInfo> entry : peer.getFileSystem().getFilenameFileInfo().entrySet()) {
-                if (entry.getValue().getFileId().equals(request.getHeader().getFileId())) {
-                    peer.getFileSystem().getFilenameFileInfo().remove(entry.getKey());
-                }
-            }
+    void backupFinished(String fileId, BackupScheduler scheduler) {
+        if (backupSchedulers.remove(fileId, scheduler)) {
+            backupsCompleted.incrementAndGet();
+            backupRetransmissions.addAndGet(scheduler.getRetransmissions());
+        }
+    }
 
-            peer.getFileSystem().getInternalFiles().remove(request.getHeader().getFileId());
+    /**
+     * Every chunk of the file reached its replication level, the previous version it replaces is no longer needed
+     *
+     * @param fileInfo File backed up
+     */
+    protected void backupSucceeded(FileInfo fileInfo) {
+    }
 
-            try {
-                peer.getFileSystem().writeInternalFileMetadataToDisk();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * A chunk did not reach its replication level, the chunks already stored are deleted and the file is forgotten.
+     * The previous version of the file, if it was kept during the backup, is the one backed up again
+     *
+     * @param fileId File given up
+     */
+    protected void backupFailed(String fileId) {
+        FileInfo previousVersion = null;
 
-            return;
+        for (FileInfo fileInfo : peer.getFileSystem().getFilenameFileInfo().values()) {
+            if (fileInfo.getFileId().equals(fileId)) {
+                previousVersion = fileInfo.getPreviousVersion();
+                break;
+            }
         }
 
-        try {
-            sendDatagram(request, mdbIp, mdbPort);
-        } catch (IOException e) {
-            log.error("Opening socket but attempt of replication continues");
+        // Delete chunks on the peers who managed to put them
+        log.info("Sending DELETE request to the peers for unsuccessful backed up file");
+        delete(fileId);
+
+        log.info("Cleanup metadata..");
+        for (Map.Entry<String, FileInfo> entry : peer.getFileSystem().getFilenameFileInfo().entrySet()) {
+            if (entry.getValue().getFileId().equals(fileId)) {
+                peer.getFileSystem().getFilenameFileInfo().remove(entry.getKey());
+                peer.getFileSystem().journalFileInfo(entry.getKey());
+            }
         }
 
-        peer.getThreadPool().schedule(() -> sendPutChunkHelper(request, attempt + 1), (long) (Math.pow(2, attempt) * Constants.STORED_START_LISTENING_TIMEOUT), TimeUnit.SECONDS);
+        peer.getFileSystem().getInternalFiles().remove(fileId);
+        peer.getFileSystem().journalChunks(ChunkTable.INTERNAL, fileId);
+
+        if (previousVersion != null) {
+            log.info("Keeping the previous version of " + previousVersion.getFileName());
+            peer.getFileSystem().getFilenameFileInfo().put(previousVersion.getFileName(), previousVersion);
+            peer.getFileSystem().journalFileInfo(previousVersion.getFileName());
+        }
     }
 
+    //Helpers
     protected void sendPutChunkHelperReclaim(Message request, int attempt) {
-        Integer perceivedReplicationDegree = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId()).get(request.getHeader().getChunkNo()).getPerceivedReplicationLevel();
+        int perceivedReplicationDegree = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId()).getPerceivedReplicationLevel(request.getHeader().getChunkNo());
 
         if (perceivedReplicationDegree >= request.getHeader().getDesiredReplicationLevel()) {
             return;
@@ -397,39 +901,27 @@ public abstract class Protocol {
             for (Map.Entry<String, FileInfo> entry : peer.getFileSystem().getFilenameFileInfo().entrySet()) {
                 if (entry.getValue().getFileId().equals(request.getHeader().getFileId())) {
                     peer.getFileSystem().getFilenameFileInfo().remove(entry.getKey());
+                    peer.getFileSystem().journalFileInfo(entry.getKey());
                 }
             }
 
             peer.getFileSystem().getInternalFiles().remove(request.getHeader().getFileId());
-
-            try {
-                peer.getFileSystem().writeInternalFileMetadataToDisk();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            peer.getFileSystem().journalChunks(ChunkTable.INTERNAL, request.getHeader().getFileId());
 
             return;
         }
 
         try {
-            sendDatagram(request, mdbIp, mdbPort);
+            sendDatagram(request, Channel.MDB);
         } catch (IOException e) {
             log.error("Opening socket but attempt of replication continues");
         }
 
-        peer.getThreadPool().schedule(() -> sendPutChunkHelperReclaim(request, attempt + 1), (long) (Math.pow(2, attempt) * Constants.STORED_START_LISTENING_TIMEOUT), TimeUnit.SECONDS);
+        peer.getThreadPool().schedule(() -> sendPutChunkHelperReclaim(request, attempt + 1), rttEstimator.timeout(attempt), TimeUnit.MILLISECONDS);
     }
 
     public abstract void receivedDeleteAck(Message request);
 
-    private int updateReplicationLevel(String fileId, Integer chunkNum) {
-        ConcurrentHashMap<Integer, ChunkInfo> chunkNumChunkInfo = peer.getFileSystem().getExternalFiles().get(fileId);
-        ChunkInfo chunkInfo = chunkNumChunkInfo.get(chunkNum);
-        chunkInfo.decrementReplicationLevel();
-        chunkNumChunkInfo.put(chunkNum, chunkInfo);
-        return chunkInfo.getPerceivedReplicationLevel();
-    }
-
     private File getFromInternal(String filename) {
         for (File file : peer.getFileSystem().getInternalFilesDir().listFiles()) {
             if (file.getName().equals(filename)) {
@@ -0,0 +1,228 @@
+package peer.protocols.protocols;
+
+import peer.filesystem.FileInfo;
+import peer.filesystem.FileRestorer;
+import peer.protocols.messages.ChunkRanges;
+import peer.utils.Constants;
+import peer.utils.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drives the GETCHUNKS of one restore in a window of RESTORE_WINDOW chunks, a chunk leaves the window once it is written.
+ * The chunks that become due in one move of the window go in a single request. The bitmap of the chunks received is saved every
+ * RESTORE_PROGRESS_INTERVAL, and when the restore is given up. For an erasure coded file only the data fragments are asked for at
+ * first, each late fragment brings in a parity fragment of its stripe, and a stripe leaves the window once it can be rebuilt
+ */
+public class RestoreScheduler extends WindowScheduler {
+    private final FileRestorer restorer;
+    private final int tcpPort;
+    private final Runnable onFailure;
+
+    //Stripe - parity fragments already asked for, erasure coded files only
+    private final Map<Integer, Integer> sparesRequested = new HashMap<>();
+
+    //Chunks due in the current move of the window, and the stripes with a fragment late
+    private ChunkRanges request = new ChunkRanges();
+    private final List<Integer> stripesShort = new ArrayList<>();
+
+    private long lastSaved;
+    private int requested = 0;
+
+    /**
+     * @param protocol  Protocol sending the requests
+     * @param fileInfo  File to restore
+     * @param restorer  Restore state, chunks already there are not requested
+     * @param tcpPort   Port where the chunks are expected, -1 to receive them in the MDR channel
+     * @param onFailure Run if a chunk is never received
+     * @param log       Logger reference
+     */
+    public RestoreScheduler(Protocol protocol, FileInfo fileInfo, FileRestorer restorer, int tcpPort, Runnable onFailure, Logger log) {
+        super(protocol, fileInfo, Constants.RESTORE_WINDOW, Constants.RESTORE_MAX_ATTEMPTS, Constants.RESTORE_TICK, log);
+        this.restorer = restorer;
+        this.tcpPort = tcpPort;
+        this.onFailure = onFailure;
+    }
+
+    public synchronized void start() {
+        lastSaved = System.currentTimeMillis();
+        begin();
+    }
+
+    /**
+     * A chunk arrived. The window is refilled once a quarter of it is free, so a burst of arrivals is requested in one message
+     */
+    public void chunkReceived() {
+        schedulePump();
+    }
+
+    @Override
+    protected void ticked() {
+        if (System.currentTimeMillis() - lastSaved >= Constants.RESTORE_PROGRESS_INTERVAL)
+            saveProgress();
+    }
+
+    private void saveProgress() {
+        lastSaved = System.currentTimeMillis();
+
+        try {
+            protocol.getPeer().getFileSystem().writeRestoreProgressToDisk(fileInfo, restorer);
+        } catch (IOException e) {
+            log.error("Error saving the restore progress of " + fileInfo.getFileName());
+        }
+    }
+
+    @Override
+    protected boolean isDone(int chunkNo) {
+        return restorer.hasChunk(chunkNo) || stripeComplete(chunkNo);
+    }
+
+    @Override
+    protected boolean isComplete() {
+        return restorer.isComplete(fileInfo);
+    }
+
+    /**
+     * @return Timeout of the given attempt, doubled on every retransmission
+     */
+    @Override
+    protected long timeout(int attempt) {
+        return (long) Constants.RESTORE_CHUNK_TIMEOUT << Math.min(attempt - 1, 4);
+    }
+
+    /**
+     * A fragment late is asked again, and a parity fragment of its stripe is asked in case it never comes
+     */
+    @Override
+    protected void chunkLate(int chunkNo) {
+        if (fileInfo.isErasureCoded())
+            stripesShort.add(chunkNo / fileInfo.getStripeWidth());
+    }
+
+    @Override
+    protected boolean giveUp(int chunkNo) {
+        if (fileInfo.isErasureCoded())
+            return true;
+
+        log.error("Chunk " + chunkNo + " of file " + fileInfo.getFileName() + " was not received after " + Constants.RESTORE_MAX_ATTEMPTS + " requests");
+        return false;
+    }
+
+    @Override
+    protected boolean resend(int chunkNo, int attempt) {
+        request.add(chunkNo);
+        return true;
+    }
+
+    @Override
+    protected boolean lateChunksHandled(long now) {
+        for (int stripe : stripesShort) {
+            if (!requestSpare(stripe, now) && !stripeInFlight(stripe)) {
+                log.error("Stripe " + stripe + " of file " + fileInfo.getFileName() + " has too few fragments to be rebuilt");
+                finish(false);
+                return false;
+            }
+        }
+
+        stripesShort.clear();
+        return true;
+    }
+
+    @Override
+    protected boolean shouldRefill(int free) {
+        return free >= Math.max(1, Constants.RESTORE_WINDOW / 4);
+    }
+
+    @Override
+    protected boolean isWanted(int chunkNo) {
+        return !restorer.hasChunk(chunkNo) && !isSpare(chunkNo) && !stripeComplete(chunkNo);
+    }
+
+    @Override
+    protected void send(int chunkNo) {
+        request.add(chunkNo);
+        requested++;
+    }
+
+    @Override
+    protected void pumped() {
+        if (!request.isEmpty())
+            protocol.sendGetChunks(fileInfo.getFileId(), request, tcpPort);
+
+        request = new ChunkRanges();
+    }
+
+    /**
+     * Parity fragments are only asked for when a fragment of their stripe is late
+     */
+    private boolean isSpare(int chunkNo) {
+        return fileInfo.isErasureCoded() && chunkNo % fileInfo.getStripeWidth() >= fileInfo.getDataFragments();
+    }
+
+    private boolean stripeComplete(int chunkNo) {
+        return fileInfo.isErasureCoded() && restorer.getFragmentsOfStripe(fileInfo, chunkNo / fileInfo.getStripeWidth()) >= fileInfo.getDataFragments();
+    }
+
+    private boolean stripeInFlight(int stripe) {
+        for (int chunkNo : deadlines.keySet())
+            if (chunkNo / fileInfo.getStripeWidth() == stripe)
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Asks for the next parity fragment of a stripe not asked for yet
+     *
+     * @return False if every parity fragment of the stripe was already asked for
+     */
+    private boolean requestSpare(int stripe, long now) {
+        int used = sparesRequested.getOrDefault(stripe, 0);
+
+        while (used < fileInfo.getParityFragments()) {
+            int chunkNo = stripe * fileInfo.getStripeWidth() + fileInfo.getDataFragments() + used++;
+            sparesRequested.put(stripe, used);
+
+            if (restorer.hasChunk(chunkNo) || deadlines.containsKey(chunkNo))
+                continue;
+
+            deadlines.put(chunkNo, now + timeout(1));
+            attempts.put(chunkNo, 1);
+            request.add(chunkNo);
+            requested++;
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    protected void finished(boolean success) {
+        protocol.restoreFinished(fileInfo.getFileId(), this);
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+        if (success) {
+            log.info("Restore of " + fileInfo.getFileName() + ": " + fileInfo.getNumberOfChunks() + " chunks, " + restorer.getBytesReceived() + " bytes in "
+                    + elapsed + " ms (" + restorer.getBytesReceived() * 1000 / elapsed / 1024 + " KB/s), " + retransmissions + " retransmissions");
+        } else {
+            saveProgress();
+            onFailure.run();
+        }
+    }
+
+    public synchronized void appendStatistics(StringBuilder stringBuilder) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+        stringBuilder.append("  ").append(fileInfo.getFileName()).append(": ")
+                .append(restorer.getNumberOfChunksStored()).append("/").append(fileInfo.getNumberOfChunks()).append(" chunks, ")
+                .append(deadlines.size()).append(" in flight, ")
+                .append(requested).append(" requested, ")
+                .append(retransmissions).append(" retransmissions, ")
+                .append(restorer.getBytesReceived() * 1000 / elapsed / 1024).append(" KB/s\n");
+    }
+}
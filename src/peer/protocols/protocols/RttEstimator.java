@@ -0,0 +1,49 @@
+package peer.protocols.protocols;
+
+import peer.utils.Constants;
+
+/**
+ * Retransmission timeout of the PUTCHUNKs sent to the peers of the MDB group, computed as in RFC 6298 from the time a chunk takes
+ * to reach its replication level. Until the first sample the timeout is INITIAL_RETRANSMISSION_TIMEOUT
+ */
+public class RttEstimator {
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final double K = 4;
+    private static final double CLOCK_GRANULARITY = 1;
+
+    private double srtt;
+    private double rttvar;
+    private long rto = Constants.INITIAL_RETRANSMISSION_TIMEOUT;
+    private long samples = 0;
+
+    /**
+     * @param rtt Time in ms between sending a PUTCHUNK and counting its last STORED
+     */
+    public synchronized void sample(long rtt) {
+        if (samples == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+
+        samples++;
+        rto = Math.round(srtt + Math.max(CLOCK_GRANULARITY, K * rttvar));
+        rto = Math.max(Constants.MIN_RETRANSMISSION_TIMEOUT, Math.min(Constants.MAX_RETRANSMISSION_TIMEOUT, rto));
+    }
+
+    /**
+     * @param attempt Attempt about to be sent, starting at 1
+     * @return Time in ms to wait for the STOREDs of that attempt, doubled on every retransmission
+     */
+    public synchronized long timeout(int attempt) {
+        return Math.min(Constants.MAX_RETRANSMISSION_TIMEOUT, rto << Math.min(attempt - 1, 10));
+    }
+
+    public synchronized void appendStatistics(StringBuilder stringBuilder) {
+        stringBuilder.append("SRTT ").append(Math.round(srtt)).append(" ms, RTTVAR ").append(Math.round(rttvar))
+                .append(" ms, RTO ").append(rto).append(" ms (").append(samples).append(" samples)");
+    }
+}
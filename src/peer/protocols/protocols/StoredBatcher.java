@@ -0,0 +1,109 @@
+package peer.protocols.protocols;
+
+import peer.channels.Channel;
+import peer.protocols.messages.ChunkRanges;
+import peer.protocols.messages.Header;
+import peer.protocols.messages.Message;
+import peer.utils.Constants;
+import peer.utils.Logger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the STORED acknowledgements a peer owes. The first ack of a file opens a window, every chunk of that file stored
+ * until it closes, or until STORED_BATCH_SIZE chunks are waiting, goes in the same STORED_BATCH message. The window is a few
+ * milliseconds, so the initiator measures the round trip of the chunk and not the batching. Acks to 1.0 PUTCHUNKs keep the
+ * random delay of that protocol, which spreads the acks of the peers storing the same chunk, and go out as one plain STORED
+ * per chunk, since a 1.0 initiator knows no STORED_BATCH
+ */
+public class StoredBatcher {
+    private final Protocol protocol;
+    private final Logger log;
+    private final Random random = new Random();
+
+    //Version-FileId - chunks waiting for the window to close
+    private final ConcurrentHashMap<PendingKey, ChunkRanges> pending = new ConcurrentHashMap<>();
+
+    public StoredBatcher(Protocol protocol, Logger log) {
+        this.protocol = protocol;
+        this.log = log;
+    }
+
+    /**
+     * @param version Version of the PUTCHUNK being acknowledged, the ack is sent in the same one
+     * @param fileId  File of the chunk
+     * @param chunkNo Chunk stored
+     */
+    public void add(String version, String fileId, int chunkNo) {
+        PendingKey key = new PendingKey(version, fileId);
+
+        ChunkRanges batch = pending.compute(key, (k, chunks) -> {
+            if (chunks == null) {
+                chunks = new ChunkRanges();
+                protocol.getPeer().getThreadPool().schedule(() -> flush(k), window(version), TimeUnit.MILLISECONDS);
+            }
+            chunks.add(chunkNo);
+            return chunks;
+        });
+
+        if (batch.size() >= Constants.STORED_BATCH_SIZE)
+            protocol.getPeer().getThreadPool().execute(() -> flush(key));
+    }
+
+    private long window(String version) {
+        if (version.equals("1.0"))
+            return Constants.STORED_BATCH_WINDOW + random.nextInt(Constants.PUTCHUNK_MAX_TIMEOUT);
+        return Constants.STORED_BATCH_DELAY;
+    }
+
+    private void flush(PendingKey key) {
+        ChunkRanges chunks = pending.remove(key);
+
+        if (chunks == null || chunks.isEmpty())
+            return;
+
+        try {
+            //A single ack stays a plain STORED, and so does every ack to a 1.0 PUTCHUNK
+            if (chunks.size() == 1 || key.version.equals("1.0")) {
+                for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo))
+                    protocol.sendDatagram(new Message(new Header(key.version, protocol.getPeer().getId(), key.fileId, chunkNo, "STORED")), Channel.MC);
+                return;
+            }
+
+            List<byte[]> bodies = chunks.encode(ChunkRanges.MAX_RANGES_PER_MESSAGE);
+            for (byte[] body : bodies)
+                protocol.sendDatagram(new Message(new Header(key.version, protocol.getPeer().getId(), key.fileId, "STORED_BATCH"), body), Channel.MC);
+        } catch (IOException e) {
+            log.error("Unable to reply STORED message");
+        }
+    }
+
+    private static class PendingKey {
+        private final String version;
+        private final String fileId;
+
+        PendingKey(String version, String fileId) {
+            this.version = version;
+            this.fileId = fileId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof PendingKey))
+                return false;
+            PendingKey other = (PendingKey) o;
+            return version.equals(other.version) && fileId.equals(other.fileId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * version.hashCode() + fileId.hashCode();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package peer.protocols.protocols;
+
+import peer.filesystem.ChunkTable;
+import peer.filesystem.FileChunks;
+import peer.filesystem.FileInfo;
+import peer.filesystem.MerkleTree;
+import peer.protocols.messages.ChunkRanges;
+import peer.protocols.messages.TreeNodes;
+import peer.utils.Constants;
+import peer.utils.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the chunks of a file its holders no longer store as they were backed up. Each holder answers with nodes of the Merkle tree of
+ * the chunks it stores, which are compared with the tree of the chunks it acknowledged. Every round asks, one level down, for the
+ * children of the nodes that differed in the last one, so a holder with d bad chunks out of n costs about d log n nodes in log n rounds.
+ * Nodes not answered before the timeout are asked again with the timeout doubled, up to VERIFY_MAX_ATTEMPTS times
+ */
+public class VerifyScheduler {
+    private final Protocol protocol;
+    private final FileInfo fileInfo;
+    private final Logger log;
+
+    //Holder - tree of the chunks it acknowledged
+    private final Map<Integer, MerkleTree> expected = new HashMap<>();
+
+    //Holder - nodes of this round not answered yet, and the ones to ask for in the next round
+    private final Map<Integer, Set<Long>> pending = new HashMap<>();
+    private final Map<Integer, List<Long>> next = new HashMap<>();
+
+    //Holder - chunks that differ, and the good copies whose STORED never arrived
+    private final Map<Integer, ChunkRanges> differing = new HashMap<>();
+    private final Map<Integer, ChunkRanges> unacknowledged = new HashMap<>();
+
+    //Holders that answered at least once, a holder alive that never answers stores nothing of the file
+    private final Set<Integer> answered = new HashSet<>();
+
+    private long deadline;
+    private int attempt;
+    private int rounds = 0;
+    private int nodesCompared = 0;
+    private long startTime;
+    private boolean finished = false;
+    private ScheduledFuture<?> ticker;
+
+    /**
+     * @param protocol Protocol sending the requests
+     * @param fileInfo File to verify, backed up with its Merkle tree
+     * @param log      Logger reference
+     */
+    public VerifyScheduler(Protocol protocol, FileInfo fileInfo, Logger log) {
+        this.protocol = protocol;
+        this.fileInfo = fileInfo;
+        this.log = log;
+    }
+
+    /**
+     * @param holders Holder - chunks it acknowledged
+     */
+    public synchronized void start(Map<Integer, CopyOnWriteArrayList<Integer>> holders) throws IOException {
+        MerkleTree tree = fileInfo.getMerkleTree();
+
+        for (Map.Entry<Integer, CopyOnWriteArrayList<Integer>> holder : holders.entrySet()) {
+            boolean[] present = new boolean[tree.getNumberOfLeaves()];
+
+            for (int chunkNo : holder.getValue())
+                if (chunkNo >= 0 && chunkNo < present.length)
+                    present[chunkNo] = true;
+
+            expected.put(holder.getKey(), tree.masked(present));
+            next.put(holder.getKey(), new ArrayList<>(List.of(node(tree.getHeight() - 1, 0))));
+            differing.put(holder.getKey(), new ChunkRanges());
+            unacknowledged.put(holder.getKey(), new ChunkRanges());
+        }
+
+        startTime = System.currentTimeMillis();
+        ticker = protocol.getPeer().getThreadPool().scheduleAtFixedRate(this::tick, Constants.VERIFY_TICK, Constants.VERIFY_TICK, TimeUnit.MILLISECONDS);
+        nextRound();
+    }
+
+    /**
+     * A holder answered with nodes of its tree
+     *
+     * @param senderId Holder
+     * @param nodes    Nodes with their digests
+     */
+    public synchronized void treeReceived(int senderId, TreeNodes nodes) {
+        Set<Long> asked = pending.get(senderId);
+
+        if (finished || asked == null || nodes.getLeafCount() != fileInfo.getMerkleTree().getNumberOfLeaves())
+            return;
+
+        MerkleTree tree = expected.get(senderId);
+        answered.add(senderId);
+
+        for (int i = 0; i < nodes.size(); i++) {
+            int level = nodes.getLevel(i);
+            int index = nodes.getIndex(i);
+
+            if (!asked.remove(node(level, index)))
+                continue;
+
+            nodesCompared++;
+
+            if (tree.matches(level, index, nodes.getDigest(i)))
+                continue;
+
+            if (level == 0) {
+                if (fileInfo.getMerkleTree().matches(0, index, nodes.getDigest(i)))
+                    unacknowledged.get(senderId).add(index);
+                else
+                    differing.get(senderId).add(index);
+                continue;
+            }
+
+            next.get(senderId).add(node(level - 1, 2 * index));
+            if (2 * index + 1 < tree.getWidth(level - 1))
+                next.get(senderId).add(node(level - 1, 2 * index + 1));
+        }
+
+        for (Set<Long> nodesPending : pending.values())
+            if (!nodesPending.isEmpty())
+                return;
+
+        nextRound();
+    }
+
+    private synchronized void tick() {
+        if (finished || System.currentTimeMillis() < deadline)
+            return;
+
+        if (++attempt > Constants.VERIFY_MAX_ATTEMPTS) {
+            finish();
+            return;
+        }
+
+        sendRequests();
+    }
+
+    private void nextRound() {
+        boolean done = true;
+
+        for (Map.Entry<Integer, List<Long>> holder : next.entrySet()) {
+            pending.put(holder.getKey(), new HashSet<>(holder.getValue()));
+            done &= holder.getValue().isEmpty();
+            holder.getValue().clear();
+        }
+
+        if (done) {
+            finish();
+            return;
+        }
+
+        rounds++;
+        attempt = 1;
+        sendRequests();
+    }
+
+    /**
+     * Asks for the nodes of this round not answered yet, the holders share the requests
+     */
+    private void sendRequests() {
+        Set<Long> nodes = new HashSet<>();
+
+        for (Set<Long> nodesPending : pending.values())
+            nodes.addAll(nodesPending);
+
+        TreeNodes request = new TreeNodes(fileInfo.getMerkleTree().getNumberOfLeaves());
+        for (long node : nodes)
+            request.add((int) (node >>> 32), (int) node);
+
+        deadline = System.currentTimeMillis() + protocol.getRttEstimator().timeout(attempt);
+        protocol.sendGetTree(fileInfo.getFileId(), request);
+    }
+
+    /**
+     * The chunks that differ no longer count for the replication level of the file, the good copies never acknowledged start counting.
+     * A holder alive that never answered has lost all its chunks of the file, the other holders that did not answer are only reported
+     */
+    private void finish() {
+        finished = true;
+
+        if (ticker != null)
+            ticker.cancel(false);
+
+        protocol.verifyFinished(fileInfo.getFileId(), this);
+
+        FileChunks chunks = protocol.getPeer().getFileSystem().getInternalFiles().get(fileInfo.getFileId());
+        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Integer>> holders = protocol.getPeer().getFileSystem().getStoresReceived().get(fileInfo.getFileId());
+        int totalDiffering = 0;
+        int totalRecovered = 0;
+
+        for (int holder : expected.keySet()) {
+            ChunkRanges bad = differing.get(holder);
+            ChunkRanges recovered = unacknowledged.get(holder);
+            CopyOnWriteArrayList<Integer> acknowledged = holders == null ? null : holders.get(holder);
+
+            if (acknowledged == null || chunks == null)
+                continue;
+
+            if (!answered.contains(holder) && protocol.getPeer().getFileSystem().getAlivePeers().containsKey(holder)) {
+                acknowledged.forEach(bad::add);
+            } else if (!pending.get(holder).isEmpty() || !next.get(holder).isEmpty()) {
+                log.error("Verify of " + fileInfo.getFileName() + ": peer " + holder + " did not answer every round");
+                continue;
+            }
+
+            if (!bad.isEmpty())
+                log.error("Verify of " + fileInfo.getFileName() + ": peer " + holder + " does not store " + bad.size() + " chunks as backed up " + Arrays.toString(bad.toArray()));
+
+            totalDiffering += bad.size();
+            totalRecovered += recovered.size();
+
+            bad.forEach(chunkNo -> {
+                if (acknowledged.remove(Integer.valueOf(chunkNo)) && chunks.contains(chunkNo)) {
+                    chunks.decrementReplicationLevel(chunkNo);
+                    protocol.getPeer().getFileSystem().journalChunk(ChunkTable.INTERNAL, fileInfo.getFileId(), chunkNo);
+                }
+            });
+
+            recovered.forEach(chunkNo -> {
+                if (acknowledged.addIfAbsent(chunkNo) && chunks.contains(chunkNo)) {
+                    chunks.incrementReplicationLevel(chunkNo);
+                    protocol.getPeer().getFileSystem().journalChunk(ChunkTable.INTERNAL, fileInfo.getFileId(), chunkNo);
+                }
+            });
+        }
+
+        log.info("Verify of " + fileInfo.getFileName() + ": " + expected.size() + " holders, " + totalDiffering + " chunks differ, "
+                + totalRecovered + " copies not acknowledged before, " + rounds + " rounds, " + nodesCompared + " nodes compared for "
+                + fileInfo.getMerkleTree().getNumberOfLeaves() + " chunks in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private static long node(int level, int index) {
+        return (long) level << 32 | index;
+    }
+}
@@ -0,0 +1,289 @@
+package peer.protocols.protocols;
+
+import peer.filesystem.FileInfo;
+import peer.utils.Logger;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sliding window over the chunks of a file. At most window chunks are in flight at a time, each one with a deadline and the number
+ * of times it was sent. A chunk past its deadline is sent again with the timeout of its next attempt, up to maxAttempts times.
+ * The window moves when a chunk is done and on every tick, which also checks the deadlines. Subclasses say what sending a chunk is,
+ * when it is done and what giving up on it means. Every method runs under the lock of the scheduler
+ */
+public abstract class WindowScheduler {
+    protected final Protocol protocol;
+    protected final FileInfo fileInfo;
+    protected final Logger log;
+    private final int window;
+    private final int maxAttempts;
+    private final int tickInterval;
+
+    //Chunks in flight - when the wait expires and how many times it was sent
+    protected final Map<Integer, Long> deadlines = new HashMap<>();
+    protected final Map<Integer, Integer> attempts = new HashMap<>();
+
+    //When each chunk in flight was sent, only while an answer can only be to that send
+    private final Map<Integer, Long> sentAt = new HashMap<>();
+
+    //Next chunk never sent
+    protected int nextChunk = 0;
+
+    protected long startTime;
+    protected int retransmissions = 0;
+    protected boolean finished = false;
+    private ScheduledFuture<?> ticker;
+    private final AtomicBoolean pumpScheduled = new AtomicBoolean();
+
+    /**
+     * @param protocol     Protocol sending the chunks
+     * @param fileInfo     File transferred
+     * @param window       Maximum number of chunks in flight
+     * @param maxAttempts  Times a chunk is sent before giving up on it
+     * @param tickInterval Time in ms between deadline checks
+     * @param log          Logger reference
+     */
+    protected WindowScheduler(Protocol protocol, FileInfo fileInfo, int window, int maxAttempts, int tickInterval, Logger log) {
+        this.protocol = protocol;
+        this.fileInfo = fileInfo;
+        this.window = window;
+        this.maxAttempts = maxAttempts;
+        this.tickInterval = tickInterval;
+        this.log = log;
+    }
+
+    /**
+     * Starts ticking and fills the window
+     */
+    protected void begin() {
+        startTime = System.currentTimeMillis();
+        ticker = protocol.getPeer().getThreadPool().scheduleAtFixedRate(this::tick, tickInterval, tickInterval, TimeUnit.MILLISECONDS);
+        pump(true);
+    }
+
+    /**
+     * Moves the window in the thread pool, so the thread reporting a chunk done neither waits for the lock nor sends.
+     * Reports that arrive while a move is pending are served by that move
+     */
+    protected void schedulePump() {
+        if (pumpScheduled.compareAndSet(false, true))
+            protocol.getPeer().getThreadPool().execute(this::scheduledPump);
+    }
+
+    private synchronized void scheduledPump() {
+        pumpScheduled.set(false);
+        pump(false);
+    }
+
+    private synchronized void tick() {
+        pump(true);
+
+        if (!finished)
+            ticked();
+    }
+
+    /**
+     * Moves the window: forgets the chunks done, sends again the ones past their deadline if checkTimeouts, and sends new ones
+     */
+    protected void pump(boolean checkTimeouts) {
+        if (finished)
+            return;
+
+        long now = System.currentTimeMillis();
+        Iterator<Integer> inFlight = deadlines.keySet().iterator();
+
+        while (inFlight.hasNext()) {
+            int chunkNo = inFlight.next();
+
+            if (isDone(chunkNo)) {
+                inFlight.remove();
+                Long sent = sentAt.remove(chunkNo);
+                int sends = attempts.remove(chunkNo);
+
+                //Karn's algorithm: the answer to a chunk sent more than once may be to any of its copies, so it is no sample
+                if (sent != null)
+                    roundTrip(chunkNo, now - sent);
+
+                chunkDone(chunkNo, sends);
+            }
+        }
+
+        if (isComplete()) {
+            finish(true);
+            return;
+        }
+
+        try {
+            if (checkTimeouts) {
+                Iterator<Map.Entry<Integer, Long>> iterator = deadlines.entrySet().iterator();
+
+                while (iterator.hasNext()) {
+                    Map.Entry<Integer, Long> entry = iterator.next();
+                    int chunkNo = entry.getKey();
+
+                    if (entry.getValue() > now)
+                        continue;
+
+                    chunkLate(chunkNo);
+                    sentAt.remove(chunkNo);
+                    int attempt = attempts.get(chunkNo) + 1;
+
+                    if (attempt > maxAttempts) {
+                        if (!giveUp(chunkNo)) {
+                            finish(false);
+                            return;
+                        }
+
+                        iterator.remove();
+                        attempts.remove(chunkNo);
+                        continue;
+                    }
+
+                    attempts.put(chunkNo, attempt);
+                    entry.setValue(now + timeout(attempt));
+
+                    if (resend(chunkNo, attempt))
+                        retransmissions++;
+                    else
+                        sentAt.put(chunkNo, now);
+                }
+            }
+
+            if (!lateChunksHandled(now))
+                return;
+
+            if (checkTimeouts || shouldRefill(window - deadlines.size())) {
+                while (deadlines.size() < window && nextChunk < fileInfo.getNumberOfChunks()) {
+                    if (isWanted(nextChunk)) {
+                        deadlines.put(nextChunk, now + timeout(1));
+                        attempts.put(nextChunk, 1);
+                        sentAt.put(nextChunk, now);
+                        send(nextChunk);
+                    }
+                    nextChunk++;
+                }
+            }
+
+            pumped();
+        } catch (IOException e) {
+            log.error("Error reading the chunks of " + fileInfo.getFileName());
+            finish(false);
+        }
+    }
+
+    protected void finish(boolean success) {
+        finished = true;
+
+        if (ticker != null)
+            ticker.cancel(false);
+
+        finished(success);
+    }
+
+    public synchronized int getRetransmissions() {
+        return retransmissions;
+    }
+
+    //Chunks
+
+    /**
+     * @return If a chunk in flight no longer needs to be sent
+     */
+    protected abstract boolean isDone(int chunkNo);
+
+    /**
+     * @return If the whole file is transferred
+     */
+    protected abstract boolean isComplete();
+
+    /**
+     * @return Time in ms to wait for the given attempt of a chunk
+     */
+    protected abstract long timeout(int attempt);
+
+    /**
+     * First attempt of a chunk
+     */
+    protected abstract void send(int chunkNo) throws IOException;
+
+    /**
+     * Later attempt of a chunk
+     *
+     * @return If it counts as a retransmission, otherwise it is the first send of what the chunk is answered to and its answer is timed
+     */
+    protected abstract boolean resend(int chunkNo, int attempt) throws IOException;
+
+    /**
+     * A chunk was sent maxAttempts times and is still not done
+     *
+     * @return True to forget the chunk and go on, false to give up the whole file
+     */
+    protected abstract boolean giveUp(int chunkNo);
+
+    /**
+     * Called once with the outcome of the file
+     */
+    protected abstract void finished(boolean success);
+
+    /**
+     * @param attempts Times the chunk was sent
+     */
+    protected void chunkDone(int chunkNo, int attempts) {
+    }
+
+    /**
+     * A chunk is done after a single send it can be answered to
+     *
+     * @param rtt Time in ms from its send
+     */
+    protected void roundTrip(int chunkNo, long rtt) {
+    }
+
+    /**
+     * A chunk is past its deadline, before it is sent again or given up
+     */
+    protected void chunkLate(int chunkNo) {
+    }
+
+    /**
+     * After the late chunks were sent again
+     *
+     * @return False if the file was given up
+     */
+    protected boolean lateChunksHandled(long now) throws IOException {
+        return true;
+    }
+
+    /**
+     * @param free Places free in the window
+     * @return If the window is refilled outside of a tick
+     */
+    protected boolean shouldRefill(int free) {
+        return true;
+    }
+
+    /**
+     * @return If a chunk the window reaches is sent, the ones skipped are never sent unless a subclass sends them
+     */
+    protected boolean isWanted(int chunkNo) {
+        return true;
+    }
+
+    /**
+     * After every move of the window that did not end the file
+     */
+    protected void pumped() throws IOException {
+    }
+
+    /**
+     * After every tick that did not end the file
+     */
+    protected void ticked() {
+    }
+}
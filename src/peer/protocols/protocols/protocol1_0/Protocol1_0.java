@@ -1,22 +1,23 @@
 package peer.protocols.protocols.protocol1_0;
 
 import peer.Peer;
-import peer.filesystem.ChunkInfo;
+import peer.channels.Channel;
+import peer.filesystem.ChunkTable;
+import peer.filesystem.FileChunks;
 import peer.filesystem.FileInfo;
 import peer.filesystem.FileRestorer;
+import peer.protocols.messages.ChunkRanges;
 import peer.protocols.messages.Header;
 import peer.protocols.messages.Message;
 import peer.protocols.protocols.Protocol;
+import peer.utils.ChunkCodec;
 import peer.utils.Constants;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 
 
 public class Protocol1_0 extends Protocol {
@@ -24,17 +25,16 @@ public class Protocol1_0 extends Protocol {
     private final Protocol1_0InternalSend protocolInternalSend;
 
 
-    public Protocol1_0(Peer peer, String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort) {
-        super(mcIp, mcPort, mdbIp, mdbPort, peer, "1.0");
+    public Protocol1_0(Peer peer, String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort) throws IOException {
+        super(mcIp, mcPort, mdbIp, mdbPort, mdrIp, mdrPort, peer, "1.0");
 
         this.protocolInternalReceived = new Protocol1_0InternalReceived(this, peer, log);
-        this.protocolInternalSend = new Protocol1_0InternalSend(this, peer, mcIp, mcPort, mdbIp, mdbPort, mdrIp, mdrPort, log);
+        this.protocolInternalSend = new Protocol1_0InternalSend(this, peer, log);
 
     }
 
-    public void backup(String filename, int replicationLevel) {
+    public void backup(String filename, int replicationLevel, int dataFragments, int parityFragments, int codec) {
 
-        List<byte[]> fileChunksList;
         String fileId;
         File file = peer.getFileSystem().openFile(filename);
 
@@ -43,6 +43,18 @@ public class Protocol1_0 extends Protocol {
             return;
         }
 
+        //Without the stripe width in the headers and the backoff of 1.1 every peer would store every fragment of a stripe
+        if (parityFragments > 0) {
+            log.error("Erasure coded backups need the protocol 1.1 or later");
+            return;
+        }
+
+        //The 1.0 headers have no room for the codec
+        if (codec != ChunkCodec.NONE) {
+            log.info("Protocol 1.0 sends the chunks uncompressed, ignoring codec " + ChunkCodec.getName(codec));
+            codec = ChunkCodec.NONE;
+        }
+
         try {
             fileId = peer.getFileSystem().generateFileId(file);
         } catch (NoSuchAlgorithmException | IOException e) {
@@ -58,6 +70,7 @@ public class Protocol1_0 extends Protocol {
             if (!fileInfo.getFileId().equals(fileId)) {
                 delete(fileId);
                 this.peer.getFileSystem().getFilenameFileInfo().remove(filename);
+                this.peer.getFileSystem().journalFileInfo(filename);
                 log.info("File already has a back-up, but modified. Deleting the old one..");
             } else {
                 log.info("Unmodified file already stored: " + filename);
@@ -67,35 +80,18 @@ public class Protocol1_0 extends Protocol {
         // continue with backing up
         log.info("Back-up of file " + filename + " in progress");
 
-        try {
-            fileChunksList = peer.getFileSystem().readFileInChunks(file);
-        } catch (IOException e) {
-            log.error("Error Opening File");
-            return;
-        } catch (ExecutionException | InterruptedException e) {
-            log.error("Error in the async operation of reading the file");
-            return;
-        }
-
-        if (fileChunksList == null) {
-            log.error("Buffer reference is null");
-            return;
-        }
+        //Chunk bodies are read from the file as they are sent
+        int numberOfChunks = peer.getFileSystem().getNumberOfChunks(file);
 
         if (peer.getFileSystem().getInternalFiles().get(fileId) != null) {
             log.error("File Already Backup");
             return;
         }
 
-        ConcurrentHashMap<Integer, ChunkInfo> replicationHashMap = new ConcurrentHashMap<>();
-
-        //Ruben: I know, but I want this, in this way, otherwise i need to check for initializations
-        for (int i = 0; i < fileChunksList.size(); i++)
-            replicationHashMap.put(i, new ChunkInfo(-1, replicationLevel, 0));
+        peer.getFileSystem().getInternalFiles().put(fileId, new FileChunks(numberOfChunks, replicationLevel, 0, 0));
 
-        peer.getFileSystem().getInternalFiles().put(fileId, replicationHashMap);
-
-        peer.getFileSystem().getFilenameFileInfo().put(filename, new FileInfo(filename, fileId, fileChunksList.size(), replicationLevel));
+        FileInfo fileInfo = new FileInfo(filename, fileId, numberOfChunks, replicationLevel, 0, 0, file.length(), codec);
+        peer.getFileSystem().getFilenameFileInfo().put(filename, fileInfo);
 
         peer.getFileSystem().getStoresReceived().put(fileId, new ConcurrentHashMap<>());
 
@@ -103,16 +99,12 @@ public class Protocol1_0 extends Protocol {
         peer.getFileSystem().getPeerThatStoreAChunk().put(fileId, new CopyOnWriteArrayList<>());
         ///
 
-        for (int i = 0; i < fileChunksList.size(); i++) {
-            Message message = new Message(new Header(version, peer.getId(), fileId, i, replicationLevel, "PUTCHUNK"), fileChunksList.get(i));
-            peer.getThreadPool().schedule(() -> sendPutChunkHelper(message, 1), 0, TimeUnit.SECONDS);
-        }
-        try {
-            peer.getFileSystem().writeInternalFileMetadataToDisk();
-            peer.getFileSystem().writePeerStoringChunksToDisk();
-        } catch (IOException e) {
-            log.error("Unable to Save in Disk the Metadata of storing the new chunks");
-        }
+        peer.getFileSystem().journalChunks(ChunkTable.INTERNAL, fileId);
+        peer.getFileSystem().journalFileInfo(filename);
+        peer.getFileSystem().journalPeersStoring(fileId);
+
+        if (!startBackup(fileInfo, file))
+            backupFailed(fileId);
 
     }
 
@@ -128,28 +120,38 @@ public class Protocol1_0 extends Protocol {
 
         String fileId = fileInfo.getFileId();
 
-        FileRestorer restorer = peer.getFileSystem().getFileRestorers().get(fileId);
+        FileRestorer restorer = peer.getFileSystem().getFileRestorers().computeIfAbsent(fileId, k -> new FileRestorer());
 
-        if (restorer == null) {
-            restorer = new FileRestorer();
-            peer.getFileSystem().getFileRestorers().put(fileId, restorer);
-        }
+        //Of two RESTOREs of the same file at once only the first opens the target, the second one finds it open
+        synchronized (restorer) {
+            if (restorer.isComplete(fileInfo)) {
+                log.error("File is already restored");
+                return;
+            }
 
-        if (fileInfo.getNumberOfChunks() == restorer.getNumberOfChunksStored()) {
-            log.error("File is already restored");
-            return;
-        }
+            if (restorer.isOpen()) {
+                log.error("File is already being restored");
+                return;
+            }
 
-        for (int i = 0; i < fileInfo.getNumberOfChunks(); i++) {
             try {
-                Header header = new Header(version, peer.getId(), fileId, i, "GETCHUNK");
-                Message message = new Message(header);
-                sendDatagram(message, mcIp, mcPort);
+                peer.getFileSystem().openRestoreTarget(fileInfo, restorer);
             } catch (IOException e) {
-                log.error("Unable to send the GETCHUNK requests for restore");
+                log.error("Error opening the file to restore");
+                return;
             }
         }
 
+        //A chunk given up leaves the partial file and the restore state as they are, restoring again requests only what is missing
+        FileRestorer sessionRestorer = restorer;
+        startRestore(fileInfo, restorer, -1, () -> {
+            log.error("Restore of " + filename + " aborted");
+            try {
+                sessionRestorer.close();
+            } catch (IOException e) {
+                log.error("Error closing the file to restore");
+            }
+        });
     }
 
     @Override
@@ -158,7 +160,7 @@ public class Protocol1_0 extends Protocol {
         for (int i = 0; i < Constants.ATTEMPTS_TO_DELETE; i++) {
             try {
                 Message message = new Message(new Header(version, peer.getId(), fileId, "DELETE"));
-                sendDatagram(message, mdbIp, mdbPort);
+                sendDatagram(message, Channel.MDB);
             } catch (Exception e) {
                 log.error("Error Deleting Chunks");
             }
@@ -176,11 +178,8 @@ public class Protocol1_0 extends Protocol {
         fileNameFileInfo.remove(filename);
         peer.getFileSystem().getInternalFiles().remove(fileId);
 
-        try {
-            peer.getFileSystem().writeInternalFileMetadataToDisk();
-        } catch (IOException e) {
-            log.error("Error writing changes to disk");
-        }
+        peer.getFileSystem().journalFileInfo(filename);
+        peer.getFileSystem().journalChunks(ChunkTable.INTERNAL, fileId);
 
     }
 
@@ -203,6 +202,11 @@ public class Protocol1_0 extends Protocol {
         protocolInternalReceived.receivedStored(request);
     }
 
+    @Override
+    public void receivedStoredBatch(Message request) {
+        protocolInternalReceived.receivedStoredBatch(request);
+    }
+
     @Override
     public void receivedDelete(Message request) {
         protocolInternalReceived.receivedDelete(request);
@@ -224,5 +228,16 @@ public class Protocol1_0 extends Protocol {
         protocolInternalSend.sendChunk(request);
     }
 
+    /**
+     * Answers a GETCHUNKS with a paced stream of CHUNK messages
+     *
+     * @param request GETCHUNKS received
+     * @param chunks  Chunks requested that this peer holds
+     */
+    @Override
+    public void sendChunkStream(Message request, ChunkRanges chunks) {
+        streamChunks(chunks, chunkNo -> protocolInternalSend.sendStreamedChunk(request.getHeader().getFileId(), chunkNo));
+    }
+
 
 }
@@ -1,9 +1,11 @@
 package peer.protocols.protocols.protocol1_0;
 
 import peer.Peer;
-import peer.filesystem.ChunkInfo;
+import peer.filesystem.ChunkTable;
+import peer.filesystem.FileChunks;
 import peer.filesystem.FileInfo;
 import peer.filesystem.FileRestorer;
+import peer.protocols.messages.ChunkRanges;
 import peer.protocols.messages.Header;
 import peer.protocols.messages.Message;
 import peer.utils.Logger;
@@ -34,16 +36,16 @@ public class Protocol1_0InternalReceived {
         if (peer.getId() == request.getHeader().getSenderId())
             return;
 
-        ConcurrentHashMap<Integer, ChunkInfo> external = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId());
+        FileChunks external = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId());
 
         //Already Processing this request. If a retransmission occurs
-        if (external != null && external.get(request.getHeader().getChunkNo()) != null) {
+        if (external != null && external.contains(request.getHeader().getChunkNo())) {
             log.info("Already dealing with this chunk");
             return;
         }
 
         int occupiedSpace = peer.getFileSystem().getOccupiedSpace();
-        int dataSize = request.getBody().length;
+        int dataSize = request.getBodyLength();
 
         if (peer.getFileSystem().getCapacity() < (occupiedSpace + dataSize)) {
             log.info("Can't store the chunk " + request.getHeader().getChunkNo() + " - no enough free space on disk");
@@ -83,7 +85,7 @@ public class Protocol1_0InternalReceived {
 
         chunkListenedList.removeAll(elementsToRemove);
 
-        ConcurrentHashMap<Integer, ChunkInfo> storedHashMap = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId());
+        FileChunks storedHashMap = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId());
 
         //No chunks for that file stored
         if (storedHashMap == null) {
@@ -91,13 +93,13 @@ public class Protocol1_0InternalReceived {
         }
 
         //Dont have that particular chunk
-        if (storedHashMap.get(request.getHeader().getChunkNo()) == null) {
+        if (!storedHashMap.contains(request.getHeader().getChunkNo())) {
             return;
         }
 
         try {
-            byte[] buffer = peer.getFileSystem().readChunk(request.getHeader().getFileId(), request.getHeader().getChunkNo());
-            Message reply = new Message(new Header(protocol.getVersion(), peer.getId(), request.getHeader().getFileId(), request.getHeader().getChunkNo(), "CHUNK"), buffer);
+            Header header = new Header(protocol.getVersion(), peer.getId(), request.getHeader().getFileId(), request.getHeader().getChunkNo(), "CHUNK");
+            Message reply = new Message(header, protocol.readChunkToSend(header));
             protocol.sendChunk(reply);
             log.info("Sending the chunk no " + request.getHeader().getChunkNo());
         } catch (IOException e) {
@@ -111,10 +113,10 @@ public class Protocol1_0InternalReceived {
         if (peer.getId() == request.getHeader().getSenderId())
             return;
 
-        //I'm restoring this file
-        if (peer.getFileSystem().getFileRestorers().get(request.getHeader().getFileId()) != null) {
+        FileRestorer fileRestorer = peer.getFileSystem().getFileRestorers().get(request.getHeader().getFileId());
 
-            FileRestorer fileRestorer = peer.getFileSystem().getFileRestorers().get(request.getHeader().getFileId());
+        //I'm restoring this file
+        if (fileRestorer != null && fileRestorer.isOpen()) {
 
             FileInfo fileInfo = null;
 
@@ -132,18 +134,26 @@ public class Protocol1_0InternalReceived {
                 return;
             }
 
-            fileRestorer.collectChunk(request);
+            try {
+                //Chunk already received from another peer
+                if (!fileRestorer.collectChunk(request))
+                    return;
+            } catch (IOException e) {
+                log.error("Error writing the chunk to the restored file");
+                return;
+            }
+
+            protocol.restoreChunkReceived(request.getHeader().getFileId());
 
             log.info("Restored chunk number " + request.getHeader().getChunkNo() + " from peer " + request.getHeader().getSenderId());
             log.info("Restored " + fileRestorer.getNumberOfChunksStored() + "/" + fileInfo.getNumberOfChunks() + " chunks");
 
             //Process not yet completed
-            if (fileRestorer.getNumberOfChunksStored() < fileInfo.getNumberOfChunks())
+            if (!fileRestorer.isComplete(fileInfo))
                 return;
 
             try {
                 peer.getFileSystem().restoreFile(fileInfo, fileRestorer);
-                peer.getFileSystem().writeFileRestorerStateToDisk();
                 log.info("File successfully restored");
             } catch (IOException e) {
                 log.error("Error while restoring the file in disk");
@@ -178,96 +188,107 @@ public class Protocol1_0InternalReceived {
     }
 
     public void receivedStored(Message request) {
-        String fileId = request.getHeader().getFileId();
+        applyStored(request.getHeader().getSenderId(), request.getHeader().getFileId(), ChunkRanges.of(request.getHeader().getChunkNo()));
+    }
 
-        if (peer.getId() == request.getHeader().getSenderId())
+    public void receivedStoredBatch(Message request) {
+        applyStored(request.getHeader().getSenderId(), request.getHeader().getFileId(), ChunkRanges.decode(request.getBodyBuffer()));
+    }
+
+    /**
+     * Applies the acks of a sender for a set of chunks of a file in one pass, each chunk counted is journaled
+     */
+    private void applyStored(int senderId, String fileId, ChunkRanges chunks) {
+        if (peer.getId() == senderId)
             return;
 
-        ConcurrentHashMap<Integer, ChunkInfo> fileBackupHash = peer.getFileSystem().getInternalFiles().get(fileId);
+        FileChunks fileBackupHash = peer.getFileSystem().getInternalFiles().get(fileId);
 
         //Keeping track of that file
         if (fileBackupHash != null) {
-            processStoreRequest(true, request, fileBackupHash);
-            if (peer.getFileSystem().getInternalFiles().containsKey(fileId)){
-                if (chunkBackedUp(request.getHeader().getFileId(),request.getHeader().getChunkNo())){
-                    log.info("Backup completed for chunk: " + request.getHeader().getChunkNo() + " of file " + peer.getFileSystem().idToFilename(fileId));
-                    if (allChunksStored(fileId)){
-                        log.info("File successfully backed up: " + peer.getFileSystem().idToFilename(fileId));
-                    }
-                }
+            boolean changed = false;
+
+            for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo)) {
+                if (!processStoreRequest(senderId, fileId, chunkNo, fileBackupHash))
+                    continue;
+
+                changed = true;
+                if (peer.getFileSystem().getInternalFiles().containsKey(fileId) && chunkBackedUp(fileId, chunkNo))
+                    log.info("Backup completed for chunk: " + chunkNo + " of file " + peer.getFileSystem().idToFilename(fileId));
+                peer.getFileSystem().journalChunk(ChunkTable.INTERNAL, fileId, chunkNo);
             }
+
+            if (changed)
+                protocol.backupChunkStored(fileId);
+
+            if (changed && peer.getFileSystem().getInternalFiles().containsKey(fileId) && allChunksStored(fileId))
+                log.info("File successfully backed up: " + peer.getFileSystem().idToFilename(fileId));
             return;
         }
 
         //Keep record of the perceptions on the environment
-        ConcurrentHashMap<Integer, ChunkInfo> storedHash = peer.getFileSystem().getExternalFiles().get(fileId);
+        FileChunks storedHash = peer.getFileSystem().getExternalFiles().get(fileId);
 
         if (storedHash != null) {
-            processStoreRequest(false, request, storedHash);
-            return;
+            for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo))
+                if (processStoreRequest(senderId, fileId, chunkNo, storedHash))
+                    peer.getFileSystem().journalChunk(ChunkTable.EXTERNAL, fileId, chunkNo);
         }
     }
 
     private boolean chunkBackedUp(String fileId, int chunkNo) {
-        ChunkInfo chunkInfo = peer.getFileSystem().getInternalFiles().get(fileId).get(chunkNo);
-        boolean isBackedUp = chunkInfo.getPerceivedReplicationLevel() == chunkInfo.getDesiredReplicationLevel();
+        FileChunks chunks = peer.getFileSystem().getInternalFiles().get(fileId);
+        boolean isBackedUp = chunks.getPerceivedReplicationLevel(chunkNo) == chunks.getDesiredReplicationLevel(chunkNo);
         if (isBackedUp){
-            chunkInfo.setSize(Integer.MAX_VALUE);
+            chunks.setSize(chunkNo, Integer.MAX_VALUE);
         }
         return isBackedUp;
     }
 
     private boolean allChunksStored(String fileId) {
-        for (ChunkInfo chunkInfo : peer.getFileSystem().getInternalFiles().get(fileId).values()) {
-            if (chunkInfo.getSize() != Integer.MAX_VALUE){
+        FileChunks chunks = peer.getFileSystem().getInternalFiles().get(fileId);
+
+        for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo)) {
+            if (chunks.getSize(chunkNo) != Integer.MAX_VALUE){
                 return false;
             }
         }
         return true;
     }
 
-    private void processStoreRequest(boolean initiatorPeer, Message request, ConcurrentHashMap<Integer, ChunkInfo> hashMap) {
+    /**
+     * @return True if this ack was not counted before and the replication level was incremented
+     */
+    private boolean processStoreRequest(int senderId, String fileId, int chunkNo, FileChunks hashMap) {
 
         //Not storing this chunkNo
-        if (hashMap.get(request.getHeader().getChunkNo()) == null)
-            return;
+        if (!hashMap.contains(chunkNo))
+            return false;
 
-        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Integer>> storesReceivedHash = peer.getFileSystem().getStoresReceived().get(request.getHeader().getFileId());
+        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Integer>> storesReceivedHash = peer.getFileSystem().getStoresReceived().get(fileId);
 
         if (storesReceivedHash == null) {
             storesReceivedHash = new ConcurrentHashMap<>();
-            storesReceivedHash.put(request.getHeader().getSenderId(), new CopyOnWriteArrayList<>());
+            storesReceivedHash.put(senderId, new CopyOnWriteArrayList<>());
         }
 
-        CopyOnWriteArrayList<Integer> listOfReceivedChunkOfThatSender = storesReceivedHash.get(request.getHeader().getSenderId());
+        CopyOnWriteArrayList<Integer> listOfReceivedChunkOfThatSender = storesReceivedHash.get(senderId);
 
         if (listOfReceivedChunkOfThatSender == null) {
             CopyOnWriteArrayList<Integer> newList = new CopyOnWriteArrayList<>();
-            storesReceivedHash.put(request.getHeader().getSenderId(), newList);
+            storesReceivedHash.put(senderId, newList);
             listOfReceivedChunkOfThatSender = newList;
         }
 
 
-        if (listOfReceivedChunkOfThatSender.contains(request.getHeader().getChunkNo()))
-            return;
+        if (listOfReceivedChunkOfThatSender.contains(chunkNo))
+            return false;
 
         //Add the chunk No to the record
-        listOfReceivedChunkOfThatSender.add(request.getHeader().getChunkNo());
+        listOfReceivedChunkOfThatSender.add(chunkNo);
 
-        ChunkInfo chunkInfo = hashMap.get(request.getHeader().getChunkNo());
+        hashMap.incrementReplicationLevel(chunkNo);
 
-        chunkInfo.incrementReplicationLevel();
-
-        hashMap.put(request.getHeader().getChunkNo(), chunkInfo);
-
-        try {
-            if (initiatorPeer) {
-                peer.getFileSystem().writeInternalFileMetadataToDisk();
-            } else {
-                peer.getFileSystem().writeExternalFileChunksMetadataToDisk();
-            }
-        } catch (IOException e){
-            log.error("Error while registering an increment of the perceivedReplication");
-        }
+        return true;
     }
 }
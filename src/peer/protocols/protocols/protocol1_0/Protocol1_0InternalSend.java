@@ -1,6 +1,8 @@
 package peer.protocols.protocols.protocol1_0;
 
 import peer.Peer;
+import peer.channels.Channel;
+import peer.protocols.messages.Header;
 import peer.protocols.messages.Message;
 import peer.utils.Constants;
 import peer.utils.Logger;
@@ -17,23 +19,11 @@ public class Protocol1_0InternalSend {
 
     private final Protocol1_0 protocol;
     private final Peer peer;
-    private final String mcIp;
-    private final int mcPort;
-    private final String mdbIp;
-    private final int mdbPort;
     private final Logger log;
-    private String mdrIp;
-    private int mdrPort;
 
-    public Protocol1_0InternalSend(Protocol1_0 protocol, Peer peer, String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort, Logger log) {
+    public Protocol1_0InternalSend(Protocol1_0 protocol, Peer peer, Logger log) {
         this.protocol = protocol;
         this.peer = peer;
-        this.mcIp = mcIp;
-        this.mcPort = mcPort;
-        this.mdbIp = mdbIp;
-        this.mdbPort = mdbPort;
-        this.mdrIp = mdrIp;
-        this.mdrPort = mdrPort;
         this.log = log;
     }
 
@@ -50,6 +40,28 @@ public class Protocol1_0InternalSend {
         }, random.nextInt(Constants.CHUNK_MAX_TIMEOUT), TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * One step of a GETCHUNKS stream. The chunk is read only if no other peer sent it meanwhile
+     */
+    public void sendStreamedChunk(String fileId, int chunkNo) {
+        CopyOnWriteArrayList<Integer> chunkListenedList = peer.getFileSystem().getChunksListened().get(fileId);
+
+        if (chunkListenedList != null && chunkListenedList.contains(chunkNo))
+            return;
+
+        try {
+            Header header = new Header(protocol.getVersion(), peer.getId(), fileId, chunkNo, "CHUNK");
+            byte[] buffer = protocol.readChunkToSend(header);
+
+            if (buffer == null)
+                return;
+
+            sendChunkHelper(new Message(header, buffer));
+        } catch (IOException e) {
+            log.error("Error sending CHUNK reply");
+        }
+    }
+
     private void sendChunkHelper(Message reply) throws IOException {
 
         CopyOnWriteArrayList<Integer> chunkListenedList = peer.getFileSystem().getChunksListened().get(reply.getHeader().getFileId());
@@ -57,7 +69,7 @@ public class Protocol1_0InternalSend {
         if (chunkListenedList.contains(reply.getHeader().getChunkNo()))
             return;
 
-        protocol.sendDatagram(reply, mdrIp, mdrPort);
+        protocol.sendDatagram(reply, Channel.MDR);
     }
 
 }
@@ -1,10 +1,16 @@
 package peer.protocols.protocols.protocol1_1;
 
 import peer.Peer;
-import peer.filesystem.ChunkInfo;
+import peer.channels.Channel;
+import peer.channels.ConnectionPool;
+import peer.channels.RestoreServer;
+import peer.filesystem.ChunkTable;
+import peer.filesystem.ChunkRecipe;
+import peer.filesystem.FileChunks;
 import peer.filesystem.FileInfo;
 import peer.filesystem.FileRestorer;
 import peer.filesystem.PeerStatus;
+import peer.protocols.messages.ChunkRanges;
 import peer.protocols.messages.Header;
 import peer.protocols.messages.Message;
 import peer.protocols.protocols.Protocol;
@@ -12,33 +18,50 @@ import peer.utils.Constants;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 
 
 public class Protocol1_1 extends Protocol {
 
     private final Protocol1_1InternalReceived protocolInternalReceived;
     private final Protocol1_1InternalSend protocolInternalSend;
+    private final ConnectionPool connectionPool;
+    private final RestoreServer restoreServer;
 
-    public Protocol1_1(Peer peer, String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort) {
-        super(mcIp, mcPort, mdbIp, mdbPort, peer, "1.1");
+    public Protocol1_1(Peer peer, String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort) throws IOException {
+        this(peer, mcIp, mcPort, mdbIp, mdbPort, mdrIp, mdrPort, "1.1");
+    }
+
+    /**
+     * For the versions that keep the 1.1 enhancements and only change the wire format
+     */
+    protected Protocol1_1(Peer peer, String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort, String version) throws IOException {
+        super(mcIp, mcPort, mdbIp, mdbPort, mdrIp, mdrPort, peer, version);
 
         this.protocolInternalReceived = new Protocol1_1InternalReceived(this, peer, log);
-        this.protocolInternalSend = new Protocol1_1InternalSend(this, peer, mcIp, mcPort, mdbIp, mdbPort, mdrIp, mdrPort, log);
+        this.protocolInternalSend = new Protocol1_1InternalSend(this, peer, log);
+        this.connectionPool = new ConnectionPool(peer.getThreadPool(), Constants.TCP_CONNECTION_IDLE_TIMEOUT, getSender(Channel.MDR).getPacer());
+        this.restoreServer = new RestoreServer(this::restoreProgress, peer.getThreadPool());
+
+        new Thread(restoreServer).start();
     }
 
     @Override
-    public void backup(String filename, int replicationLevel) {
+    public void backup(String filename, int replicationLevel, int dataFragments, int parityFragments, int codec) {
+        backup(filename, replicationLevel, dataFragments, parityFragments, codec, false);
+    }
+
+    @Override
+    public void backupDeduplicated(String filename, int replicationLevel, int codec) {
+        backup(filename, replicationLevel, 0, 0, codec, true);
+    }
+
+    private void backup(String filename, int replicationLevel, int dataFragments, int parityFragments, int codec, boolean deduplicated) {
 
-        List<byte[]> fileChunksList;
         String fileId;
         File file = peer.getFileSystem().openFile(filename);
 
@@ -47,6 +70,18 @@ public class Protocol1_1 extends Protocol {
             return;
         }
 
+        if (parityFragments > 0 && (dataFragments < 1 || dataFragments + parityFragments > Constants.MAX_STRIPE_WIDTH)) {
+            log.error("Invalid erasure coding " + dataFragments + "+" + parityFragments);
+            return;
+        }
+
+        //Each peer takes at most one fragment of a stripe, so a stripe needs as many other peers as fragments
+        if (parityFragments > 0 && peer.getFileSystem().getAlivePeers().size() < dataFragments + parityFragments) {
+            log.error("Erasure coding " + dataFragments + "+" + parityFragments + " needs " + (dataFragments + parityFragments)
+                    + " other peers alive, " + peer.getFileSystem().getAlivePeers().size() + " known");
+            return;
+        }
+
         try {
             fileId = peer.getFileSystem().generateFileId(file);
         } catch (NoSuchAlgorithmException | IOException e) {
@@ -54,14 +89,25 @@ public class Protocol1_1 extends Protocol {
             return;
         }
 
+        FileInfo previousVersion = null;
+
         // Check if the file is modified - if it is, delete it and backup, otherwise just backup
         if (peer.getFileSystem().getFilenameFileInfo().get(filename) != null) {
 
             FileInfo fileInfo = peer.getFileSystem().getFilenameFileInfo().get(filename);
 
-            if (!fileInfo.getFileId().equals(fileId)) {
+            if (!fileInfo.getFileId().equals(fileId) && deduplicated && fileInfo.isDeduplicated()) {
+                //The chunks that did not change are already in the group, the old version goes once the new one is backed up
+                if (fileInfo.getPreviousVersion() != null) {
+                    log.error("Previous version of " + filename + " still being replaced");
+                    return;
+                }
+                previousVersion = fileInfo;
+                log.info("File already has a back-up, but modified. Sending the changed chunks..");
+            } else if (!fileInfo.getFileId().equals(fileId)) {
                 delete(fileId);
                 this.peer.getFileSystem().getFilenameFileInfo().remove(filename);
+                this.peer.getFileSystem().journalFileInfo(filename);
                 log.info("File already has a back-up, but modified. Deleting the old one..");
             } else {
                 log.info("Unmodified file already stored: " + filename);
@@ -71,41 +117,40 @@ public class Protocol1_1 extends Protocol {
         // continue with backing up
         log.info("Back-up of file " + filename + " in progress");
 
-        try {
-            fileChunksList = peer.getFileSystem().readFileInChunks(file);
-        } catch (IOException e) {
-            log.error("Error Opening File");
-            return;
-        } catch (ExecutionException | InterruptedException e) {
-            log.error("Error in the async operation of reading the file");
+        if (peer.getFileSystem().getInternalFiles().get(fileId) != null) {
+            log.error("File Already Backup");
             return;
         }
 
-        if (fileChunksList == null) {
-            log.error("Buffer reference is null");
-            return;
-        }
+        //The content defined chunks are found reading the whole file once, their bodies are read again as they are sent
+        ChunkRecipe recipe = null;
 
-        if (peer.getFileSystem().getInternalFiles().get(fileId) != null) {
-            log.error("File Already Backup");
-            return;
+        if (deduplicated) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                recipe = ChunkRecipe.of(channel);
+            } catch (IOException e) {
+                log.error("Error reading the file " + filename + " to cut its chunks");
+                return;
+            }
+            log.info(filename + " cut in " + recipe.getNumberOfChunks() + " chunks, " + recipe.getNumberOfUniqueChunks() + " with different content");
         }
 
-        if (!peersCouldStoreChunks(replicationLevel, fileChunksList)) {
+        //Chunk bodies are read from the file as they are sent, the fragments of an erasure coded file are the chunks stored
+        int numberOfChunks = deduplicated ? recipe.getNumberOfChunks() : parityFragments > 0 ? peer.getFileSystem().getNumberOfFragments(file, dataFragments, parityFragments) : peer.getFileSystem().getNumberOfChunks(file);
+
+        //The content the group already holds costs no space, so a deduplicated backup cannot be sized up front
+        if (!deduplicated && !peersCouldStoreChunks(replicationLevel, parityFragments > 0 ? file.length() * (dataFragments + parityFragments) / dataFragments : file.length())) {
             log.info("No available space on peers to store the chunks");
             return;
         }
 
 
-        ConcurrentHashMap<Integer, ChunkInfo> replicationHashMap = new ConcurrentHashMap<>();
-
-        //Ruben: I know, but I want this, in this way, otherwise i need to check for initializations
-        for (int i = 0; i < fileChunksList.size(); i++)
-            replicationHashMap.put(i, new ChunkInfo(-1, replicationLevel, 0));
+        peer.getFileSystem().getInternalFiles().put(fileId, new FileChunks(numberOfChunks, replicationLevel, dataFragments, parityFragments));
 
-        peer.getFileSystem().getInternalFiles().put(fileId, replicationHashMap);
-
-        peer.getFileSystem().getFilenameFileInfo().put(filename, new FileInfo(filename, fileId, fileChunksList.size(), replicationLevel));
+        FileInfo fileInfo = deduplicated ? new FileInfo(filename, fileId, replicationLevel, file.length(), codec, recipe)
+                : new FileInfo(filename, fileId, numberOfChunks, replicationLevel, dataFragments, parityFragments, file.length(), codec);
+        fileInfo.setPreviousVersion(previousVersion);
+        peer.getFileSystem().getFilenameFileInfo().put(filename, fileInfo);
 
         peer.getFileSystem().getStoresReceived().put(fileId, new ConcurrentHashMap<>());
 
@@ -114,25 +159,17 @@ public class Protocol1_1 extends Protocol {
             peer.getFileSystem().getPeerThatStoreAChunk().put(fileId, new CopyOnWriteArrayList<>());
         ///
 
-        for (int i = 0; i < fileChunksList.size(); i++) {
-            Message message = new Message(new Header(version, peer.getId(), fileId, i, replicationLevel, "PUTCHUNK"), fileChunksList.get(i));
-            peer.getThreadPool().schedule(() -> sendPutChunkHelper(message, 1), 0, TimeUnit.SECONDS);
-        }
-        try {
-            peer.getFileSystem().writeInternalFileMetadataToDisk();
-            peer.getFileSystem().writePeerStoringChunksToDisk();
-        } catch (IOException e) {
-            log.error("Unable to Save in Disk the Metadata of storing the new chunks");
-        }
+        peer.getFileSystem().journalChunks(ChunkTable.INTERNAL, fileId);
+        peer.getFileSystem().journalFileInfo(filename);
+        peer.getFileSystem().journalPeersStoring(fileId);
+
+        if (!startBackup(fileInfo, file))
+            backupFailed(fileId);
 
     }
 
-    private boolean peersCouldStoreChunks(int replicationLevel, List<byte[]> fileChunksList) {
-        int totalRequired = 0;
-        for (byte[] msg : fileChunksList) {
-            totalRequired += msg.length;
-        }
-        totalRequired = totalRequired * replicationLevel;
+    private boolean peersCouldStoreChunks(int replicationLevel, long fileSize) {
+        long totalRequired = fileSize * replicationLevel;
 
         int totalAvailable = 0;
         for (PeerStatus peerStatus : peer.getFileSystem().getAlivePeers().values()) {
@@ -144,7 +181,6 @@ public class Protocol1_1 extends Protocol {
 
     @Override
     public void restore(String filename) {
-        ServerSocket serverSocket;
 
         FileInfo fileInfo = peer.getFileSystem().getFilenameFileInfo().get(filename);
 
@@ -162,86 +198,87 @@ public class Protocol1_1 extends Protocol {
             peer.getFileSystem().getFileRestorers().put(fileId, restorer);
         }
 
-        if (fileInfo.getNumberOfChunks() == restorer.getNumberOfChunksStored()) {
+        if (restorer.isComplete(fileInfo)) {
             log.error("File is already restored");
             return;
         }
 
+        if (!restoreServer.register(fileId, restorer)) {
+            log.error("File is already being restored");
+            return;
+        }
+
         try {
-            serverSocket = new ServerSocket(Constants.TCP_SERVER_SOCKET_PORT);
+            peer.getFileSystem().openRestoreTarget(fileInfo, restorer);
         } catch (IOException e) {
-            log.error("Error opening the TCP server socket");
+            log.error("Error opening the file to restore");
+            restoreServer.unregister(fileId, restorer);
             return;
         }
 
-        for (int i = 0; i < fileInfo.getNumberOfChunks(); i++) {
-            try {
-                Header header = new Header(version, peer.getId(), fileId, i, "GETCHUNK", serverSocket.getLocalPort());
-                Message message = new Message(header);
-                sendDatagram(message, mcIp, mcPort);
-            } catch (IOException e) {
-                log.error("Unable to send the GETCHUNK requests for restore");
-            }
-        }
-        Socket socket = null;
+        //The chunks arrive in the restore server and the MDR channel
+        FileRestorer sessionRestorer = restorer;
+        startRestore(fileInfo, restorer, restoreServer.getPort(), () -> abortRestore(fileInfo, sessionRestorer));
+    }
 
-        while (fileInfo.getNumberOfChunks() != restorer.getNumberOfChunksStored()) {
-            try {
-                socket = serverSocket.accept();
-                ObjectInputStream objectInputStream = new ObjectInputStream(socket.getInputStream());
+    private void abortRestore(FileInfo fileInfo, FileRestorer restorer) {
+        log.error("Restore of " + fileInfo.getFileName() + " aborted");
 
-                Message message = (Message) objectInputStream.readObject();
+        if (!restoreServer.unregister(fileInfo.getFileId(), restorer))
+            return;
 
-                log.info("Received chunk:" + message.getHeader().getChunkNo());
+        try {
+            restorer.close();
+        } catch (IOException e) {
+            log.error("Error closing the file to restore");
+        }
+    }
 
-                restorer.collectChunk(message);
+    /**
+     * Called after every chunk of a restore in progress arrives. The last one writes the file and ends the session
+     *
+     * @param fileId File being restored
+     */
+    public void restoreProgress(String fileId) {
+        restoreChunkReceived(fileId);
 
+        FileRestorer restorer = restoreServer.getSession(fileId);
 
-            } catch (IOException e) {
-                log.error("Error accepting incoming TCP connection");
-                return;
-            } catch (ClassNotFoundException e) {
-                log.error("Error reading object from TCP connection");
-            }
-        }
+        if (restorer == null)
+            return;
 
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                log.error("Error closing socket");
+        FileInfo fileInfo = null;
+
+        for (FileInfo iterator : peer.getFileSystem().getFilenameFileInfo().values()) {
+            if (iterator.getFileId().equals(fileId)) {
+                fileInfo = iterator;
+                break;
             }
         }
 
-        try {
-            serverSocket.close();
-        } catch (IOException e) {
-            log.error("Error closing the server socket");
+        if (fileInfo == null || !restorer.isComplete(fileInfo))
             return;
-        }
 
-        try {
-            peer.getFileSystem().restoreFile(fileInfo, restorer);
-            peer.getFileSystem().writeFileRestorerStateToDisk();
-            log.info("File successfully restored");
-        } catch (IOException e) {
-            log.error("Error while restoring the file in disk");
+        //Only the caller that removes the session finishes the restore
+        if (!restoreServer.unregister(fileId, restorer))
             return;
-        }
 
+        FileInfo restoredFileInfo = fileInfo;
+
+        peer.getThreadPool().execute(() -> {
+            try {
+                peer.getFileSystem().restoreFile(restoredFileInfo, restorer);
+                log.info("File successfully restored");
+            } catch (IOException e) {
+                log.error("Error while restoring the file in disk");
+            }
+        });
     }
 
     @Override
     public void delete(String fileId) {
 
-        for (int i = 0; i < Constants.ATTEMPTS_TO_DELETE; i++) {
-            try {
-                Message message = new Message(new Header(version, peer.getId(), fileId, "DELETE"));
-                sendDatagram(message, mdbIp, mdbPort);
-            } catch (Exception e) {
-                log.error("Error Deleting Chunks");
-            }
-        }
+        sendDelete(fileId);
 
         ConcurrentHashMap<String, FileInfo> fileNameFileInfo = peer.getFileSystem().getFilenameFileInfo();
         String filename = "";
@@ -257,11 +294,40 @@ public class Protocol1_1 extends Protocol {
         fileNameFileInfo.remove(filename);
         peer.getFileSystem().getInternalFiles().remove(fileId);
 
-        try {
-            peer.getFileSystem().writeInternalFileMetadataToDisk();
-            peer.getFileSystem().writeFileDeletedWaitingForAckToDisk();
-        } catch (IOException e) {
-            log.error("Error writing changes to disk");
+        peer.getFileSystem().journalFileInfo(filename);
+        peer.getFileSystem().journalChunks(ChunkTable.INTERNAL, fileId);
+    }
+
+    /**
+     * The new version of a modified file is backed up, the chunks of the old one are deleted.
+     * Its content still referenced by the new version stays on the peers
+     */
+    @Override
+    protected void backupSucceeded(FileInfo fileInfo) {
+        FileInfo previousVersion = fileInfo.getPreviousVersion();
+
+        if (previousVersion == null)
+            return;
+
+        log.info("Retiring the previous version of " + fileInfo.getFileName());
+        sendDelete(previousVersion.getFileId());
+        fillDeletedChunksWaitingForAck(previousVersion);
+
+        fileInfo.setPreviousVersion(null);
+        peer.getFileSystem().getInternalFiles().remove(previousVersion.getFileId());
+
+        peer.getFileSystem().journalFileInfo(fileInfo.getFileName());
+        peer.getFileSystem().journalChunks(ChunkTable.INTERNAL, previousVersion.getFileId());
+    }
+
+    private void sendDelete(String fileId) {
+        for (int i = 0; i < Constants.ATTEMPTS_TO_DELETE; i++) {
+            try {
+                Message message = new Message(new Header(version, peer.getId(), fileId, "DELETE"));
+                sendDatagram(message, Channel.MDB);
+            } catch (Exception e) {
+                log.error("Error Deleting Chunks");
+            }
         }
     }
 
@@ -270,12 +336,8 @@ public class Protocol1_1 extends Protocol {
         peer.getFileSystem().getFileDeletedWaitingForAck().put(fileInfo.getFileId(), listPeers);
         peer.getFileSystem().getPeerThatStoreAChunk().remove(fileInfo.getFileId());
 
-        try {
-            peer.getFileSystem().writePeerStoringChunksToDisk();
-        } catch (IOException e) {
-            log.error("Error updating that no peer stores that chunk anymore");
-        }
-
+        peer.getFileSystem().journalFileDeletedWaitingForAck(fileInfo.getFileId());
+        peer.getFileSystem().journalPeersStoring(fileInfo.getFileId());
     }
 
     @Override
@@ -283,6 +345,11 @@ public class Protocol1_1 extends Protocol {
         protocolInternalReceived.receivedStored(request);
     }
 
+    @Override
+    public void receivedStoredBatch(Message request) {
+        protocolInternalReceived.receivedStoredBatch(request);
+    }
+
     @Override
     public void receivedPutChunk(Message request) {
         protocolInternalReceived.receivedPutChunk(request);
@@ -316,6 +383,17 @@ public class Protocol1_1 extends Protocol {
         protocolInternalSend.sendChunk(request);
     }
 
+    /**
+     * Answers a GETCHUNKS with a paced stream of chunks, through TCP or MDR like the single GETCHUNK
+     *
+     * @param request GETCHUNKS received
+     * @param chunks  Chunks requested that this peer holds
+     */
+    @Override
+    public void sendChunkStream(Message request, ChunkRanges chunks) {
+        streamChunks(chunks, chunkNo -> protocolInternalSend.sendStreamedChunk(request.getHeader(), chunkNo));
+    }
+
     @Override
     public void receivedDeleteAck(Message request) {
         protocolInternalReceived.receivedDeleteAck(request);
@@ -335,11 +413,36 @@ public class Protocol1_1 extends Protocol {
      * @param request
      */
     public void sendDeleteAck(Message request) {
-        Message reply = new Message(new Header(version, peer.getId(), request.getHeader().getFileId(), "DELETE_ACK"));
+        Message reply = new Message(new Header(request.getHeader().getProtocolVersion(), peer.getId(), request.getHeader().getFileId(), "DELETE_ACK"));
         try {
-            sendDatagram(reply, mcIp, mcPort);
+            sendDatagram(reply, Channel.MC);
         } catch (IOException e) {
             log.error("Error sending the ACK of the deletion");
         }
     }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    @Override
+    public String state() {
+        StringBuilder stringBuilder = new StringBuilder(super.state());
+        stringBuilder.append("TCP Chunk Connections:\n");
+        stringBuilder.append("  Open: ").append(connectionPool.getOpenConnections())
+                .append(", opened: ").append(connectionPool.getConnectionsOpened())
+                .append(", reused: ").append(connectionPool.getConnectionsReused()).append("\n");
+        stringBuilder.append("  Frames sent: ").append(connectionPool.getFramesSent())
+                .append(", ").append(connectionPool.getBytesSent()).append(" bytes, ")
+                .append(connectionPool.getQueue().getDepth()).append(" queued (max ").append(connectionPool.getQueue().getMaxDepth())
+                .append("), ").append(connectionPool.getQueue().getDropped()).append(" dropped, ").append(connectionPool.getQueue().getFailed()).append(" failed\n");
+        stringBuilder.append("Restore Server (port ").append(restoreServer.getPort()).append("):\n");
+        stringBuilder.append("  Restores in progress: ").append(restoreServer.getActiveSessions())
+                .append(", connections accepted: ").append(restoreServer.getConnectionsAccepted()).append("\n");
+        stringBuilder.append("  Frames received: ").append(restoreServer.getFramesReceived())
+                .append(" (").append(restoreServer.getFramesDiscarded()).append(" discarded, ")
+                .append(restoreServer.getFramesDropped()).append(" dropped), ")
+                .append(restoreServer.getBytesReceived()).append(" bytes\n");
+        return stringBuilder.toString();
+    }
 }
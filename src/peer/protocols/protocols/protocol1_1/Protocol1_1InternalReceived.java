@@ -2,7 +2,11 @@ package peer.protocols.protocols.protocol1_1;
 
 import peer.Peer;
 import peer.filesystem.ChunkInfo;
+import peer.filesystem.ChunkTable;
+import peer.filesystem.FileChunks;
+import peer.filesystem.FileRestorer;
 import peer.filesystem.PeerStatus;
+import peer.protocols.messages.ChunkRanges;
 import peer.protocols.messages.Header;
 import peer.protocols.messages.Message;
 import peer.utils.Logger;
@@ -15,6 +19,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class encapsulates the logic behind all outgoing requests of the protocol 1.1
@@ -35,6 +41,19 @@ public class Protocol1_1InternalReceived {
     //The smaller it is, the memory is less occupied and performance is worse -> less peers store the chunks
     private final static int BIAS = 2;
 
+    //Longest random wait before deciding whether to store a PUTCHUNK, in ms
+    private final static int PUTCHUNK_BACKOFF_MAX_DELAY = 2000;
+
+    //How many PUTCHUNK bodies may wait for a decision at once. Beyond it new requests are dropped, the initiator retransmits them
+    private final static int PENDING_PUTCHUNK_CAPACITY = 64;
+
+    //PUTCHUNKs waiting for their backoff to expire, by fileId and chunkNo
+    private final ConcurrentHashMap<String, Message> pendingPutChunks = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingPutChunksCount = new AtomicInteger(0);
+
+    //Stripe of an erasure coded file - fragment being stored, a peer takes at most one fragment of each stripe
+    private final ConcurrentHashMap<String, Integer> stripeClaims = new ConcurrentHashMap<>();
+
     /**
      * @param protocol Protocol instance
      * @param peer     Peer reference
@@ -47,115 +66,112 @@ public class Protocol1_1InternalReceived {
     }
 
     public void receivedStored(Message request) {
-        String fileId = request.getHeader().getFileId();
+        applyStored(request.getHeader().getSenderId(), request.getHeader().getFileId(), ChunkRanges.of(request.getHeader().getChunkNo()));
+    }
 
-        updateEnvironmentFilesReplicationLevels(request);
+    public void receivedStoredBatch(Message request) {
+        applyStored(request.getHeader().getSenderId(), request.getHeader().getFileId(), ChunkRanges.decode(request.getBodyBuffer()));
+    }
 
-        if (peer.getId() == request.getHeader().getSenderId())
+    /**
+     * Applies the acks of a sender for a set of chunks of a file in one pass, each metadata file is written once at the end
+     */
+    private void applyStored(int senderId, String fileId, ChunkRanges chunks) {
+        updateEnvironmentFilesReplicationLevels(fileId, chunks);
+
+        if (peer.getId() == senderId)
             return;
 
-        ConcurrentHashMap<Integer, ChunkInfo> fileBackupHash = peer.getFileSystem().getInternalFiles().get(request.getHeader().getFileId());
+        FileChunks fileBackupHash = peer.getFileSystem().getInternalFiles().get(fileId);
 
         //Keeping track of that file
         if (fileBackupHash != null) {
-            processStoreRequest(true, request, fileBackupHash);
-            if (peer.getFileSystem().getInternalFiles().containsKey(fileId)){
-                if (chunkBackedUp(request.getHeader().getFileId(),request.getHeader().getChunkNo())){
-                    log.info("Backup completed for chunk: " + request.getHeader().getChunkNo() + " of file " + peer.getFileSystem().idToFilename(fileId));
-                    if (allChunksStored(fileId)){
-                        log.info("File successfully backed up: " + peer.getFileSystem().idToFilename(fileId));
-                    }
-                }
+            boolean changed = false;
+
+            for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo)) {
+                if (!processStoreRequest(senderId, fileId, chunkNo, fileBackupHash))
+                    continue;
+
+                changed = true;
+                if (peer.getFileSystem().getInternalFiles().containsKey(fileId) && chunkBackedUp(fileId, chunkNo))
+                    log.info("Backup completed for chunk: " + chunkNo + " of file " + peer.getFileSystem().idToFilename(fileId));
+                peer.getFileSystem().journalChunk(ChunkTable.INTERNAL, fileId, chunkNo);
             }
+
+            if (changed)
+                protocol.backupChunkStored(fileId);
+
+            if (changed && peer.getFileSystem().getInternalFiles().containsKey(fileId) && allChunksStored(fileId))
+                log.info("File successfully backed up: " + peer.getFileSystem().idToFilename(fileId));
+
+            if (changed)
+                registerInitiatorStores(senderId, fileId);
             return;
         }
 
         //Keep record of the perceptions on the environment
-        ConcurrentHashMap<Integer, ChunkInfo> storedHash = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId());
+        FileChunks storedHash = peer.getFileSystem().getExternalFiles().get(fileId);
 
         if (storedHash != null) {
-            processStoreRequest(false, request, storedHash);
-            return;
+            for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo))
+                if (processStoreRequest(senderId, fileId, chunkNo, storedHash))
+                    peer.getFileSystem().journalChunk(ChunkTable.EXTERNAL, fileId, chunkNo);
         }
     }
 
-    private void updateEnvironmentFilesReplicationLevels(Message request) {
-        ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo>> environmentFilesRepLevel = peer.getFileSystem().getEnvironmentFilesRepLevel();
-        if (!environmentFilesRepLevel.containsKey(request.getHeader().getFileId())) {
-            environmentFilesRepLevel.put(request.getHeader().getFileId(), new ConcurrentHashMap<>());
-        }
-
-        ConcurrentHashMap<Integer, ChunkInfo> chunkNoChunkInfo = environmentFilesRepLevel.get(request.getHeader().getFileId());
-        if (!chunkNoChunkInfo.containsKey(request.getHeader().getChunkNo())) {
-            chunkNoChunkInfo.put(request.getHeader().getChunkNo(), new ChunkInfo(-1, -1, 1));
-        } else {
-            ChunkInfo chunkInfo = chunkNoChunkInfo.get(request.getHeader().getChunkNo());
-            chunkInfo.incrementReplicationLevel();
-            chunkNoChunkInfo.put(request.getHeader().getChunkNo(), chunkInfo);
-        }
+    private void updateEnvironmentFilesReplicationLevels(String fileId, ChunkRanges chunks) {
+        FileChunks chunkNoChunkInfo = peer.getFileSystem().getEnvironmentFilesRepLevel().computeIfAbsent(fileId, id -> new FileChunks());
 
-        try {
-            peer.getFileSystem().writeEnvironmentFilesRepLevelToDisk();
-        } catch (IOException e) {
-            e.printStackTrace();
+        for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo)) {
+            if (!chunkNoChunkInfo.putIfAbsent(chunkNo, new ChunkInfo(-1, -1, 1)))
+                chunkNoChunkInfo.incrementReplicationLevel(chunkNo);
+            peer.getFileSystem().journalChunk(ChunkTable.ENVIRONMENT, fileId, chunkNo);
         }
     }
 
-    private void processStoreRequest(boolean initiatorPeer, Message request, ConcurrentHashMap<Integer, ChunkInfo> hashMap) {
+    /**
+     * @return True if this ack was not counted before and the replication level was incremented
+     */
+    private boolean processStoreRequest(int senderId, String fileId, int chunkNo, FileChunks hashMap) {
 
         //Not storing this chunkNo
-        if (hashMap.get(request.getHeader().getChunkNo()) == null)
-            return;
+        if (!hashMap.contains(chunkNo))
+            return false;
 
-        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Integer>> storesReceivedHash = peer.getFileSystem().getStoresReceived().get(request.getHeader().getFileId());
+        ConcurrentHashMap<Integer, CopyOnWriteArrayList<Integer>> storesReceivedHash = peer.getFileSystem().getStoresReceived().get(fileId);
 
         if (storesReceivedHash == null) {
             storesReceivedHash = new ConcurrentHashMap<>();
-            storesReceivedHash.put(request.getHeader().getSenderId(), new CopyOnWriteArrayList<>());
+            storesReceivedHash.put(senderId, new CopyOnWriteArrayList<>());
         }
 
-        CopyOnWriteArrayList<Integer> listOfReceivedChunkOfThatSender = storesReceivedHash.get(request.getHeader().getSenderId());
+        CopyOnWriteArrayList<Integer> listOfReceivedChunkOfThatSender = storesReceivedHash.get(senderId);
 
         if (listOfReceivedChunkOfThatSender == null) {
             CopyOnWriteArrayList<Integer> newList = new CopyOnWriteArrayList<>();
-            storesReceivedHash.put(request.getHeader().getSenderId(), newList);
+            storesReceivedHash.put(senderId, newList);
             listOfReceivedChunkOfThatSender = newList;
         }
 
 
-        if (listOfReceivedChunkOfThatSender.contains(request.getHeader().getChunkNo()))
-            return;
+        if (listOfReceivedChunkOfThatSender.contains(chunkNo))
+            return false;
 
         //Add the chunk No to the record
-        listOfReceivedChunkOfThatSender.add(request.getHeader().getChunkNo());
-
-        ChunkInfo chunkInfo = hashMap.get(request.getHeader().getChunkNo());
-        chunkInfo.incrementReplicationLevel();
-        hashMap.put(request.getHeader().getChunkNo(), chunkInfo);
-
-        if (initiatorPeer) {
-            //For protocol 1.1
-            if (!peer.getFileSystem().getPeerThatStoreAChunk().get(request.getHeader().getFileId()).contains(request.getHeader().getSenderId())) {
-                peer.getFileSystem().getPeerThatStoreAChunk().get(request.getHeader().getFileId()).add(request.getHeader().getSenderId());
-                try {
-                    peer.getFileSystem().writePeerStoringChunksToDisk();
-                } catch (IOException e) {
-                    log.error("Error storing to disk The updated list of chunks storing the files");
-                }
-            }
+        listOfReceivedChunkOfThatSender.add(chunkNo);
 
-            try {
-                peer.getFileSystem().writeInternalFileMetadataToDisk();
-            } catch (IOException e) {
-                log.error("Error while registering an increment of the perceivedReplication");
-            }
+        hashMap.incrementReplicationLevel(chunkNo);
 
-        } else {
-            try {
-                peer.getFileSystem().writeExternalFileChunksMetadataToDisk();
-            } catch (IOException e) {
-                log.error("Error while registering an increment of the perceivedReplication");
-            }
+        return true;
+    }
+
+    private void registerInitiatorStores(int senderId, String fileId) {
+        //For protocol 1.1
+        CopyOnWriteArrayList<Integer> peersStoring = peer.getFileSystem().getPeerThatStoreAChunk().get(fileId);
+
+        if (peersStoring != null && !peersStoring.contains(senderId)) {
+            peersStoring.add(senderId);
+            peer.getFileSystem().journalPeersStoring(fileId);
         }
     }
 
@@ -163,7 +179,22 @@ public class Protocol1_1InternalReceived {
         if (peer.getId() == request.getHeader().getSenderId())
             return;
 
-        if (peer.getFileSystem().getFileRestorers().get(request.getHeader().getFileId()) == null) {
+        FileRestorer restorer = peer.getFileSystem().getFileRestorers().get(request.getHeader().getFileId());
+
+        //1.0 holders send the chunk itself in the MDR channel instead of the TCP connection
+        if (restorer != null && request.getHeader().getProtocolVersion().equals("1.0")) {
+            try {
+                if (restorer.isOpen() && restorer.collectChunk(request)) {
+                    log.info("Received chunk:" + request.getHeader().getChunkNo() + " in the MDR channel");
+                    protocol.restoreProgress(request.getHeader().getFileId());
+                }
+            } catch (IOException e) {
+                log.error("Error writing the chunk to the restored file");
+            }
+            return;
+        }
+
+        if (restorer == null) {
             CopyOnWriteArrayList<Integer> chunkListenedList = peer.getFileSystem().getChunksListened().get(request.getHeader().getFileId());
 
             if (chunkListenedList != null) {
@@ -195,7 +226,7 @@ public class Protocol1_1InternalReceived {
 
         chunkListenedList.removeAll(elementsToRemove);
 
-        ConcurrentHashMap<Integer, ChunkInfo> storedHashMap = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId());
+        FileChunks storedHashMap = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId());
 
         //No chunks for that file stored
         if (storedHashMap == null) {
@@ -203,11 +234,22 @@ public class Protocol1_1InternalReceived {
         }
 
         //Dont have that particular chunk
-        if (storedHashMap.get(request.getHeader().getChunkNo()) == null) {
+        if (!storedHashMap.contains(request.getHeader().getChunkNo())) {
+            return;
+        }
+
+        //Reply in kind: a 1.0 requester has no TCP port and expects the chunk in the MDR channel
+        if (request.getHeader().getTcpPort() < 0) {
+            try {
+                Header header = new Header(request.getHeader().getProtocolVersion(), peer.getId(), request.getHeader().getFileId(), request.getHeader().getChunkNo(), "CHUNK");
+                protocol.sendChunk(new Message(header, protocol.readChunkToSend(header)));
+            } catch (IOException e) {
+                log.error("Unable to Read Chunk from the filesystem");
+            }
             return;
         }
 
-        Message reply = new Message(new Header(protocol.getVersion(), peer.getId(), request.getHeader().getFileId(), request.getHeader().getChunkNo(), "CHUNK", request.getHeader().getTcpPort()));
+        Message reply = new Message(new Header(request.getHeader().getProtocolVersion(), peer.getId(), request.getHeader().getFileId(), request.getHeader().getChunkNo(), "CHUNK", request.getHeader().getTcpPort()));
 
         protocol.sendChunk(reply);
     }
@@ -236,56 +278,168 @@ public class Protocol1_1InternalReceived {
         if (peer.getId() == request.getHeader().getSenderId())
             return;
 
-        try {
-            Thread.sleep((long) (new Random().nextFloat() * 2000));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        String fileId = request.getHeader().getFileId();
+        int chunkNo = request.getHeader().getChunkNo();
+
+        if (alreadyStored(fileId, chunkNo)) {
+            log.info("Already dealing with this chunk");
+            return;
         }
 
-        ConcurrentHashMap<Integer, ChunkInfo> external = peer.getFileSystem().getExternalFiles().get(request.getHeader().getFileId());
+        if (!hasSpaceFor(chunkNo, peer.getFileSystem().getSpaceNeeded(request)))
+            return;
 
-        //Already Processing this request. If a retransmission occurs
-        if (external != null && external.get(request.getHeader().getChunkNo()) != null) {
+        if (holdsOtherFragment(request.getHeader())) {
+            log.info("Not storing fragment " + chunkNo + " - already holding a fragment of its stripe");
+            return;
+        }
+
+        if (pendingPutChunksCount.incrementAndGet() > PENDING_PUTCHUNK_CAPACITY) {
+            pendingPutChunksCount.decrementAndGet();
+            log.warn("Dropping PUTCHUNK for chunk " + chunkNo + " - too many chunks waiting for a decision");
+            return;
+        }
+
+        //The received body lives in a pooled buffer released after this handler, so the parked message keeps a copy
+        Message parked = new Message(request.getHeader(), request.getBody());
+
+        //Retransmission of a chunk already waiting
+        if (pendingPutChunks.putIfAbsent(pendingKey(fileId, chunkNo), parked) != null) {
+            pendingPutChunksCount.decrementAndGet();
+            return;
+        }
+
+        peer.getThreadPool().schedule(() -> decidePutChunk(fileId, chunkNo), new Random().nextInt(PUTCHUNK_BACKOFF_MAX_DELAY), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs once the backoff of a parked PUTCHUNK expires, by then the STOREDs of faster peers have been counted
+     *
+     * @param fileId  File of the chunk
+     * @param chunkNo Chunk waiting
+     */
+    private void decidePutChunk(String fileId, int chunkNo) {
+        Message request = pendingPutChunks.remove(pendingKey(fileId, chunkNo));
+
+        if (request == null)
+            return;
+
+        pendingPutChunksCount.decrementAndGet();
+
+        if (alreadyStored(fileId, chunkNo)) {
             log.info("Already dealing with this chunk");
             return;
         }
 
-        int occupiedSpace = peer.getFileSystem().getOccupiedSpace();
-        int dataSize = request.getBody().length;
+        if (!hasSpaceFor(chunkNo, peer.getFileSystem().getSpaceNeeded(request)))
+            return;
+
+        //A stripe needs each of its fragments once, the extra copies of the replicated chunks would only take the place of other fragments
+        int bias = request.getHeader().getStripeWidth() > 0 ? 0 : BIAS;
 
-        int spaceToStore = occupiedSpace + dataSize;
-        if (peer.getFileSystem().getCapacity() < spaceToStore) {
-            log.info("Can't store the chunk " + request.getHeader().getChunkNo() + " - no enough free space on disk, missing " + (spaceToStore - peer.getFileSystem().getCapacity()) + " bytes");
+        if (desiredReplicationLevelAchieved(fileId, chunkNo, request.getHeader().getDesiredReplicationLevel(), bias)) {
+            log.info("Not storing chunk " + chunkNo + " - desired replication level already achieved");
             return;
         }
 
-        if (desiredReplicationLevelAchieved(request.getHeader().getFileId(), request.getHeader().getChunkNo(), request.getHeader().getDesiredReplicationLevel())) {
-            log.info("Not storing chunk " + request.getHeader().getChunkNo() + " - desired replication level already achieved");
+        if (!claimStripe(request.getHeader())) {
+            log.info("Not storing fragment " + chunkNo + " - already holding a fragment of its stripe");
             return;
         }
 
+        //A fragment stored is in the external files before the claim goes, so the next fragment of the stripe finds it
         try {
             peer.getFileSystem().storeChunk(request);
-            log.info("Storing chunk number " + request.getHeader().getChunkNo());
+            log.info("Storing chunk number " + chunkNo);
         } catch (IOException e) {
             log.error("Error Storing Chunk");
             return;
+        } finally {
+            releaseStripe(request.getHeader());
         }
 
         protocol.sendStored(request);
     }
 
-    private boolean desiredReplicationLevelAchieved(String fileId, int chunkNo, int desiredReplicationLevel) {
-        if (!peer.getFileSystem().getEnvironmentFilesRepLevel().containsKey(fileId)) {
+    private static String pendingKey(String fileId, int chunkNo) {
+        return fileId + "_" + chunkNo;
+    }
+
+    /**
+     * Reserves the stripe of a fragment for it while it is stored. Replicated chunks have no stripe and always get it
+     *
+     * @return False if this peer holds or is storing another fragment of the stripe
+     */
+    private boolean claimStripe(Header header) {
+        int width = header.getStripeWidth();
+
+        if (width <= 0)
+            return true;
+
+        if (stripeClaims.putIfAbsent(pendingKey(header.getFileId(), header.getChunkNo() / width * width), header.getChunkNo()) != null)
+            return false;
+
+        if (holdsOtherFragment(header)) {
+            releaseStripe(header);
             return false;
         }
-        if (!peer.getFileSystem().getEnvironmentFilesRepLevel().get(fileId).containsKey(chunkNo)) {
+
+        return true;
+    }
+
+    /**
+     * @return If this peer stores a fragment of the stripe of the given one other than it
+     */
+    private boolean holdsOtherFragment(Header header) {
+        int width = header.getStripeWidth();
+        FileChunks external = peer.getFileSystem().getExternalFiles().get(header.getFileId());
+
+        if (width <= 0 || external == null)
+            return false;
+
+        int first = header.getChunkNo() / width * width;
+
+        for (int chunkNo = first; chunkNo < first + width; chunkNo++)
+            if (chunkNo != header.getChunkNo() && external.contains(chunkNo))
+                return true;
+
+        return false;
+    }
+
+    private void releaseStripe(Header header) {
+        int width = header.getStripeWidth();
+
+        if (width > 0)
+            stripeClaims.remove(pendingKey(header.getFileId(), header.getChunkNo() / width * width), header.getChunkNo());
+    }
+
+    private boolean alreadyStored(String fileId, int chunkNo) {
+        FileChunks external = peer.getFileSystem().getExternalFiles().get(fileId);
+
+        return external != null && external.contains(chunkNo);
+    }
+
+    private boolean hasSpaceFor(int chunkNo, int dataSize) {
+        int spaceToStore = peer.getFileSystem().getOccupiedSpace() + dataSize;
+
+        if (peer.getFileSystem().getCapacity() < spaceToStore) {
+            log.info("Can't store the chunk " + chunkNo + " - no enough free space on disk, missing " + (spaceToStore - peer.getFileSystem().getCapacity()) + " bytes");
             return false;
         }
 
-        int perceivedRepLvl = peer.getFileSystem().getEnvironmentFilesRepLevel().get(fileId).get(chunkNo).getPerceivedReplicationLevel();
+        return true;
+    }
+
+    private boolean desiredReplicationLevelAchieved(String fileId, int chunkNo, int desiredReplicationLevel, int bias) {
+        FileChunks environment = peer.getFileSystem().getEnvironmentFilesRepLevel().get(fileId);
 
-        return perceivedRepLvl >= desiredReplicationLevel + BIAS;
+        if (environment == null || !environment.contains(chunkNo)) {
+            return false;
+        }
+
+        int perceivedRepLvl = environment.getPerceivedReplicationLevel(chunkNo);
+
+        return perceivedRepLvl >= desiredReplicationLevel + bias;
     }
 
     public void receivedHeartbeat(Message message) {
@@ -297,7 +451,7 @@ public class Protocol1_1InternalReceived {
             return;
         }
 
-        ByteBuffer buffer = ByteBuffer.wrap(message.getBody());
+        ByteBuffer buffer = message.getBodyBuffer();
         int peerFreeSpace = buffer.getInt();
 
         ConcurrentHashMap<Integer, PeerStatus> alivePeers = peer.getFileSystem().getAlivePeers();
@@ -351,27 +505,24 @@ public class Protocol1_1InternalReceived {
         if (list.isEmpty())
             peer.getFileSystem().getFileDeletedWaitingForAck().remove(request.getHeader().getFileId());
 
-        try {
-            peer.getFileSystem().writeFileDeletedWaitingForAckToDisk();
-        } catch (IOException e) {
-            log.error("Unable to store in disk the update in Delete ACK received");
-            return;
-        }
+        peer.getFileSystem().journalFileDeletedWaitingForAck(request.getHeader().getFileId());
     }
 
     // region helpers
     private boolean chunkBackedUp(String fileId, int chunkNo) {
-        ChunkInfo chunkInfo = peer.getFileSystem().getInternalFiles().get(fileId).get(chunkNo);
-        boolean isBackedUp = chunkInfo.getPerceivedReplicationLevel() == chunkInfo.getDesiredReplicationLevel();
+        FileChunks chunks = peer.getFileSystem().getInternalFiles().get(fileId);
+        boolean isBackedUp = chunks.getPerceivedReplicationLevel(chunkNo) == chunks.getDesiredReplicationLevel(chunkNo);
         if (isBackedUp) {
-            chunkInfo.setSize(Integer.MAX_VALUE);
+            chunks.setSize(chunkNo, Integer.MAX_VALUE);
         }
         return isBackedUp;
     }
 
     private boolean allChunksStored(String fileId) {
-        for (ChunkInfo chunkInfo : peer.getFileSystem().getInternalFiles().get(fileId).values()) {
-            if (chunkInfo.getSize() != Integer.MAX_VALUE) {
+        FileChunks chunks = peer.getFileSystem().getInternalFiles().get(fileId);
+
+        for (int chunkNo = chunks.first(); chunkNo >= 0; chunkNo = chunks.next(chunkNo)) {
+            if (chunks.getSize(chunkNo) != Integer.MAX_VALUE) {
                 return false;
             }
         }
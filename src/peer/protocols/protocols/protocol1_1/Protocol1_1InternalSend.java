@@ -1,14 +1,16 @@
 package peer.protocols.protocols.protocol1_1;
 
 import peer.Peer;
+import peer.channels.Channel;
+import peer.protocols.messages.ChunkFrame;
 import peer.protocols.messages.Header;
 import peer.protocols.messages.Message;
 import peer.utils.Constants;
 import peer.utils.Logger;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -20,34 +22,16 @@ import java.util.concurrent.TimeUnit;
 public class Protocol1_1InternalSend {
     private final Protocol1_1 protocol;
     private final Peer peer;
-    private final String mcIp;
-    private final int mcPort;
-    private final String mdbIp;
-    private final int mdbPort;
-    private final String mdrIp;
-    private final int mdrPort;
     private final Logger log;
 
     /**
      * @param protocol
      * @param peer
-     * @param mcIp
-     * @param mcPort
-     * @param mdbIp
-     * @param mdbPort
-     * @param mdrIp
-     * @param mdrPort
      * @param log
      */
-    public Protocol1_1InternalSend(Protocol1_1 protocol, Peer peer, String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort, Logger log) {
+    public Protocol1_1InternalSend(Protocol1_1 protocol, Peer peer, Logger log) {
         this.protocol = protocol;
         this.peer = peer;
-        this.mcIp = mcIp;
-        this.mcPort = mcPort;
-        this.mdbIp = mdbIp;
-        this.mdbPort = mdbPort;
-        this.mdrIp = mdrIp;
-        this.mdrPort = mdrPort;
         this.log = log;
     }
 
@@ -65,6 +49,30 @@ public class Protocol1_1InternalSend {
 
     }
 
+    /**
+     * One step of a GETCHUNKS stream, replying in kind to the requester
+     *
+     * @param request Header of the GETCHUNKS received
+     * @param chunkNo Chunk to send
+     */
+    public void sendStreamedChunk(Header request, int chunkNo) {
+        try {
+            if (request.getTcpPort() < 0) {
+                Header header = new Header(request.getProtocolVersion(), peer.getId(), request.getFileId(), chunkNo, "CHUNK");
+                byte[] buffer = protocol.readChunkToSend(header);
+
+                if (buffer == null)
+                    return;
+
+                sendChunkHelper(new Message(header, buffer));
+            } else {
+                sendChunkHelper(new Message(new Header(request.getProtocolVersion(), peer.getId(), request.getFileId(), chunkNo, "CHUNK", request.getTcpPort())));
+            }
+        } catch (IOException e) {
+            log.error("Error sending CHUNK reply");
+        }
+    }
+
     /**
      * This method is executed a random time after receiving the GETCHUNK requests. It aborts if the peer as the sure some other peer has replied the same message
      *
@@ -78,34 +86,35 @@ public class Protocol1_1InternalSend {
         if (chunkListenedList.contains(reply.getHeader().getChunkNo()))
             return;
 
-        protocol.sendDatagram(reply, mdrIp, mdrPort);
+        protocol.sendDatagram(reply, Channel.MDR);
 
-        Socket socket;
-        byte[] buffer;
-
-        try {
-            socket = new Socket(Constants.TCP_HOST_NAME, reply.getHeader().getTcpPort());
-        } catch (IOException e) {
-            log.error("Error opening the socket to reply with chunk");
+        //Reply to a 1.0 requester, the chunk already went in the datagram
+        if (reply.getHeader().getTcpPort() < 0)
             return;
-        }
+
+        String fileId = reply.getHeader().getFileId();
+        int chunkNo = reply.getHeader().getChunkNo();
 
         try {
-            buffer = peer.getFileSystem().readChunk(reply.getHeader().getFileId(), reply.getHeader().getChunkNo());
-        } catch (IOException e) {
-            log.error("Error sending the chunk");
-            return;
-        }
-        try {
-            log.info("Sending via TCP socket chunk " + reply.getHeader().getChunkNo());
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-            Message tcpMessage = new Message(reply);
-            tcpMessage.setBody(buffer);
-            outputStream.writeObject(tcpMessage);
-            socket.close();
+            FileChannel chunk = peer.getFileSystem().openChunk(fileId, chunkNo);
+
+            if (chunk == null)
+                return;
+
+            ChunkFrame frame;
+
+            try {
+                frame = new ChunkFrame(fileId, peer.getId(), chunkNo, peer.getFileSystem().getChunkCodec(fileId, chunkNo), (int) chunk.size());
+            } catch (IOException e) {
+                chunk.close();
+                throw e;
+            }
+
+            log.info("Sending via TCP connection chunk " + chunkNo);
+            //The pool closes the chunk once its frame is written or dropped
+            protocol.getConnectionPool().send(new InetSocketAddress(Constants.TCP_HOST_NAME, reply.getHeader().getTcpPort()), frame.encodeHeader(), chunk);
         } catch (IOException e) {
-            log.error("Error opening an output stream in the TCP socket to reply the chunk");
-            return;
+            log.error("Error sending the chunk through the TCP connection");
         }
     }
 
@@ -113,14 +122,14 @@ public class Protocol1_1InternalSend {
         int myFreeSpace = peer.getFileSystem().getCapacity() - peer.getFileSystem().getOccupiedSpace();
 
         log.info("Sending a heartbeat - free space: " + myFreeSpace + " bytes");
-        Message message = new Message(new Header("1.1", protocol.getPeer().getId(), "HEARTBEAT"),
+        Message message = new Message(new Header(protocol.getVersion(), protocol.getPeer().getId(), "HEARTBEAT"),
                 ByteBuffer.allocate(4).putInt(myFreeSpace).array());
 
         Random random = new Random();
 
         peer.getThreadPool().schedule(() -> {
             try {
-                protocol.sendDatagram(message, mcIp, mcPort);
+                protocol.sendDatagram(message, Channel.MC);
             } catch (IOException e) {
                 log.error("Unable to send HEARTBEAT message");
             }
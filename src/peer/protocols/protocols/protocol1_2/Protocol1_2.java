@@ -0,0 +1,19 @@
+package peer.protocols.protocols.protocol1_2;
+
+import peer.Peer;
+import peer.protocols.messages.BinaryHeaderCodec;
+import peer.protocols.protocols.protocol1_1.Protocol1_1;
+
+import java.io.IOException;
+
+/**
+ * Protocol 1.2 keeps every enhancement of the 1.1 but sends its own requests with the compact binary header of the BinaryHeaderCodec.
+ * Incoming datagrams are recognized by their first byte, and replies always use the version of the request, so 1.0 and 1.1 senders
+ * get their STORED, CHUNK and DELETE_ACK in the format they understand
+ */
+public class Protocol1_2 extends Protocol1_1 {
+
+    public Protocol1_2(Peer peer, String mcIp, int mcPort, String mdbIp, int mdbPort, String mdrIp, int mdrPort) throws IOException {
+        super(peer, mcIp, mcPort, mdbIp, mdbPort, mdrIp, mdrPort, BinaryHeaderCodec.VERSION);
+    }
+}
@@ -1,9 +1,8 @@
 package peer.protocols.reply_worker_strategy;
 
+import peer.protocols.messages.Message;
 import peer.protocols.protocols.Protocol;
 
-import java.net.DatagramPacket;
-
 public interface ReplyWorkerStrategy {
-    void reply(DatagramPacket request, Protocol protocol);
+    void reply(Message request, Protocol protocol);
 }
@@ -4,8 +4,6 @@ import peer.protocols.messages.Message;
 import peer.protocols.protocols.Protocol;
 import peer.protocols.reply_worker_strategy.ReplyWorkerStrategy;
 
-import java.net.DatagramPacket;
-
 
 public class ReplyBackupWorker implements ReplyWorkerStrategy {
     /**
@@ -15,15 +13,17 @@ public class ReplyBackupWorker implements ReplyWorkerStrategy {
      * @param protocol Protocol currently in use
      */
     @Override
-    public void reply(DatagramPacket request, Protocol protocol) {
+    public void reply(Message request, Protocol protocol) {
         try {
-            Message requestMessage = new Message(request);
-            switch (requestMessage.getHeader().getSubProtocol()) {
+            switch (request.getHeader().getSubProtocol()) {
                 case "PUTCHUNK":
-                    protocol.receivedPutChunk(requestMessage);
+                    protocol.receivedPutChunk(request);
+                    break;
+                case "PUTREF":
+                    protocol.receivedPutRef(request);
                     break;
                 case "DELETE":
-                    protocol.receivedDelete(requestMessage);
+                    protocol.receivedDelete(request);
             }
 
         } catch (Exception e) {
@@ -4,8 +4,6 @@ import peer.protocols.messages.Message;
 import peer.protocols.protocols.Protocol;
 import peer.protocols.reply_worker_strategy.ReplyWorkerStrategy;
 
-import java.net.DatagramPacket;
-
 public class ReplyControlWorker implements ReplyWorkerStrategy {
     /**
      * Dispatcher Strategy for the packets received in Control Multicast Channel
@@ -14,26 +12,36 @@ public class ReplyControlWorker implements ReplyWorkerStrategy {
      * @param protocol Protocol currently in use
      */
     @Override
-    public void reply(DatagramPacket request, Protocol protocol) {
+    public void reply(Message request, Protocol protocol) {
 
         try {
-            Message message = new Message(request);
-
-            switch (message.getHeader().getSubProtocol()) {
+            switch (request.getHeader().getSubProtocol()) {
                 case "STORED":
-                    protocol.receivedStored(message);
+                    protocol.receivedStored(request);
+                    return;
+                case "STORED_BATCH":
+                    protocol.receivedStoredBatch(request);
                     return;
                 case "GETCHUNK":
-                    protocol.receivedGetChunk(message);
+                    protocol.receivedGetChunk(request);
+                    return;
+                case "GETCHUNKS":
+                    protocol.receivedGetChunks(request);
                     return;
                 case "REMOVED":
-                    protocol.receivedRemoved(message);
+                    protocol.receivedRemoved(request);
                     return;
                 case "HEARTBEAT":
-                    protocol.receivedHeartbeat(message);
+                    protocol.receivedHeartbeat(request);
                     return;
                 case "DELETE_ACK":
-                    protocol.receivedDeleteAck(message);
+                    protocol.receivedDeleteAck(request);
+                    return;
+                case "GETTREE":
+                    protocol.receivedGetTree(request);
+                    return;
+                case "TREE":
+                    protocol.receivedTree(request);
                     return;
 
             }
@@ -4,8 +4,6 @@ import peer.protocols.messages.Message;
 import peer.protocols.protocols.Protocol;
 import peer.protocols.reply_worker_strategy.ReplyWorkerStrategy;
 
-import java.net.DatagramPacket;
-
 public class ReplyRestoreWorker implements ReplyWorkerStrategy {
     /**
      * Dispatcher Strategy for the packets received in Restore Multicast Channel
@@ -14,10 +12,9 @@ public class ReplyRestoreWorker implements ReplyWorkerStrategy {
      * @param protocol Protocol currently in use
      */
     @Override
-    public void reply(DatagramPacket request, Protocol protocol) {
+    public void reply(Message request, Protocol protocol) {
         try {
-            Message message = new Message(request);
-            protocol.receivedChunk(message);
+            protocol.receivedChunk(request);
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Unable to parse the request data");
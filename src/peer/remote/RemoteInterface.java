@@ -9,10 +9,21 @@ import java.rmi.RemoteException;
 public interface RemoteInterface extends Remote {
     void backup(String filename, int replicationLevel) throws RemoteException;
 
+    /**
+     * @param codec Codec of the chunks: NONE, DEFLATE or DEFLATE_FAST
+     */
+    void backup(String filename, int replicationLevel, String codec) throws RemoteException;
+
+    void backupErasureCoded(String filename, int dataFragments, int parityFragments, String codec) throws RemoteException;
+
+    void backupDeduplicated(String filename, int replicationLevel, String codec) throws RemoteException;
+
     void restore(String filename) throws RemoteException;
 
     void delete(String filename) throws RemoteException;
 
+    void verify(String filename) throws RemoteException;
+
     void reclaim(int value) throws RemoteException;
 
     String state() throws RemoteException;
@@ -0,0 +1,119 @@
+package peer.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the chunk bodies. The codec of a file is chosen when it is backed up, each chunk is then sent and stored compressed
+ * with it, or raw when compressing it saves too little. The code of the codec travels in the header of every chunk sent
+ */
+public class ChunkCodec {
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final int DEFLATE_FAST = 2;
+
+    //The index is the code on the wire
+    private static final String[] NAMES = {"NONE", "DEFLATE", "DEFLATE_FAST"};
+
+    //A chunk is kept raw unless compressing it saves at least 1/MIN_SAVING of its size
+    private static final int MIN_SAVING = 16;
+
+    /**
+     * @param name Name of the codec, case insensitive
+     * @return Code of the codec
+     * @throws IllegalArgumentException If there is no codec with that name
+     */
+    public static int fromName(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name))
+                return i;
+        }
+        throw new IllegalArgumentException("Unknown chunk codec " + name);
+    }
+
+    public static String getName(int codec) {
+        return isValid(codec) ? NAMES[codec] : "UNKNOWN(" + codec + ")";
+    }
+
+    public static boolean isValid(int codec) {
+        return codec >= 0 && codec < NAMES.length;
+    }
+
+    /**
+     * @param chunk Raw chunk
+     * @param codec Codec of the file
+     * @return Chunk compressed, null if it is not worth sending it compressed
+     */
+    public static byte[] compress(byte[] chunk, int codec) {
+        if (codec == NONE || chunk.length < MIN_SAVING)
+            return null;
+
+        Deflater deflater = new Deflater(codec == DEFLATE_FAST ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+
+        try {
+            deflater.setInput(chunk);
+            deflater.finish();
+
+            //Output past the limit means the chunk is incompressible, there is no need to compress the rest
+            byte[] compressed = new byte[chunk.length - chunk.length / MIN_SAVING];
+            int length = 0;
+
+            while (!deflater.finished() && length < compressed.length)
+                length += deflater.deflate(compressed, length, compressed.length - length);
+
+            return deflater.finished() ? Arrays.copyOf(compressed, length) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param data  Chunk as received, between position and limit
+     * @param codec Codec in the header of the chunk
+     * @return Raw chunk, the same buffer when the chunk was not compressed
+     * @throws IOException If the chunk is corrupted or larger than MAX_CHUNK_SIZE once decompressed
+     */
+    public static ByteBuffer decompress(ByteBuffer data, int codec) throws IOException {
+        if (codec == NONE)
+            return data;
+
+        if (!isValid(codec))
+            throw new IOException("Unknown chunk codec " + codec);
+
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(data);
+            //One byte to spare, so the end of the stream is reached after a full chunk and a larger one is told apart
+            ByteBuffer chunk = ByteBuffer.allocate(Constants.MAX_CHUNK_SIZE + 1);
+
+            while (!inflater.finished()) {
+                if (inflater.inflate(chunk) == 0 && (inflater.needsInput() || inflater.needsDictionary() || !chunk.hasRemaining()))
+                    break;
+            }
+
+            if (!inflater.finished() || chunk.position() > Constants.MAX_CHUNK_SIZE)
+                throw new IOException("Compressed chunk truncated or larger than a chunk");
+
+            return chunk.flip();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed chunk", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static byte[] decompress(byte[] data, int codec) throws IOException {
+        if (codec == NONE)
+            return data;
+
+        ByteBuffer chunk = decompress(ByteBuffer.wrap(data), codec);
+        byte[] raw = new byte[chunk.remaining()];
+        chunk.get(raw);
+        return raw;
+    }
+}
@@ -11,6 +11,8 @@ public class Constants {
     public final static int MAX_CHUNK_SIZE = 64000;
     public final static int MAX_CONTROL_MSG_SIZE = 40000;
     public final static int MAX_REPLICATION_DEGREE = 9;
+    //Chunk numbers have at most 6 digits, anything above is refused as it comes off the wire
+    public final static int MAX_CHUNKS_PER_FILE = 1_000_000;
     public final static int RMI_PORT = 1099;
     public final static String CHUNK_BASE_PATH = File.separator + "chunks" + File.separator;
     public final static String FILE_BASE_PATH = File.separator + "files" + File.separator;
@@ -19,11 +21,48 @@ public class Constants {
     public final static int MAX_DISK_CAPACITY = 200000;
     public final static String CRLF_STR = "\r\n";
     public final static int PUTCHUNK_MAX_TIMEOUT = 400;
-    public final static long STORED_START_LISTENING_TIMEOUT = 1;
+    //STORED acks are batched for STORED_BATCH_DELAY ms, or a random window from STORED_BATCH_WINDOW ms for 1.0, and at most STORED_BATCH_SIZE chunks
+    public final static int STORED_BATCH_WINDOW = 200;
+    public final static int STORED_BATCH_DELAY = 5;
+    public final static int STORED_BATCH_SIZE = 64;
+    public final static long INITIAL_RETRANSMISSION_TIMEOUT = 2000;
+    public final static long MIN_RETRANSMISSION_TIMEOUT = 200;
+    public final static long MAX_RETRANSMISSION_TIMEOUT = 60000;
     public final static int MAX_PUTCHUNK_ATTEMPTS = 5;
+    public final static int MAX_STRIPE_WIDTH = 256;
+    //Content defined chunking, the average is a power of two and the chunks never exceed MAX_CHUNK_SIZE
+    public final static int CDC_MIN_CHUNK_SIZE = 4096;
+    public final static int CDC_AVERAGE_CHUNK_SIZE = 16384;
+    public final static int BACKUP_WINDOW = 16;
+    public final static int BACKUP_TICK = 250;
     public final static int CHUNK_MAX_TIMEOUT = 400;
+    public final static int CHUNK_STREAM_INTERVAL = 5;
+    public final static int RESTORE_WINDOW = 32;
+    public final static int RESTORE_CHUNK_TIMEOUT = 1500;
+    public final static int RESTORE_MAX_ATTEMPTS = 5;
+    public final static int RESTORE_TICK = 250;
+    public final static int RESTORE_PROGRESS_INTERVAL = 1000;
+    public final static int RESTORE_FRAME_QUEUE_CAPACITY = 256;
+    public final static int VERIFY_MAX_ATTEMPTS = 3;
+    public final static int VERIFY_TICK = 250;
+    //Metadata journal, a batch is forced at least this often and the journal is compacted into a snapshot past the size or interval
+    public final static int JOURNAL_COMMIT_INTERVAL = 5;
+    public final static long JOURNAL_SNAPSHOT_SIZE = 4 * 1024 * 1024;
+    public final static long JOURNAL_SNAPSHOT_INTERVAL = 60000;
     public final static int ATTEMPTS_TO_DELETE = 5;
     public final static int THREAD_POOL_SIZE = 10;
-    public final static int TCP_SERVER_SOCKET_PORT = 5558;
+    public final static int DISPATCH_POOL_SIZE = 8;
+    public final static int DISPATCH_QUEUE_CAPACITY = 1024;
+    //Receive buffers kept idle, and direct buffers lent at once before datagrams are received on the heap
+    public final static int RECEIVE_BUFFER_POOL_SIZE = 256;
+    public final static int RECEIVE_BUFFER_LIMIT = 512;
     public final static String TCP_HOST_NAME = "localhost";
+    public final static int TCP_CONNECTION_IDLE_TIMEOUT = 10000;
+    //Egress pacing in bytes/s and bytes, overridable per run with -Dmdb.rate, -Dmdb.burst, -Dmdr.rate and -Dmdr.burst, a rate of 0 disables it
+    public final static long MDB_RATE_LIMIT = Long.getLong("mdb.rate", 4_000_000);
+    public final static long MDB_BURST_SIZE = Long.getLong("mdb.burst", 4 * MAX_MESSAGE_SIZE);
+    public final static long MDR_RATE_LIMIT = Long.getLong("mdr.rate", 8_000_000);
+    public final static long MDR_BURST_SIZE = Long.getLong("mdr.burst", 8 * MAX_MESSAGE_SIZE);
+    //Writes waiting for the sender thread of a paced channel, or of the TCP frames, before new ones are dropped
+    public final static int SEND_QUEUE_CAPACITY = 256;
 }
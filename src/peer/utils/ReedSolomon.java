@@ -0,0 +1,194 @@
+package peer.utils;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8). The first dataShards fragments are the data itself and the parity fragments come from a
+ * Cauchy matrix, so any dataShards of the dataShards + parityShards fragments of a stripe are enough to rebuild its data
+ */
+public class ReedSolomon {
+    private static final int FIELD_SIZE = 256;
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[2 * FIELD_SIZE];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    private static final byte[][] MULTIPLY = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & FIELD_SIZE) != 0)
+                x ^= POLYNOMIAL;
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++)
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+
+        for (int a = 0; a < FIELD_SIZE; a++)
+            for (int b = 0; b < FIELD_SIZE; b++)
+                MULTIPLY[a][b] = (byte) multiply(a, b);
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+
+    //(dataShards + parityShards) x dataShards, identity on top of the Cauchy rows of the parity
+    private final int[][] matrix;
+
+    /**
+     * @param dataShards   Data fragments of a stripe
+     * @param parityShards Parity fragments of a stripe
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE)
+            throw new IllegalArgumentException("Invalid erasure coding " + dataShards + "+" + parityShards);
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.matrix = new int[dataShards + parityShards][dataShards];
+
+        for (int i = 0; i < dataShards; i++)
+            matrix[i][i] = 1;
+
+        //1 / (x_p + y_j) with x_p = dataShards + p and y_j = j, all distinct
+        for (int p = 0; p < parityShards; p++)
+            for (int j = 0; j < dataShards; j++)
+                matrix[dataShards + p][j] = inverse((dataShards + p) ^ j);
+    }
+
+    /**
+     * @param data   dataShards fragments, each at least length bytes
+     * @param length Bytes of each fragment to encode
+     * @return parityShards fragments of length bytes
+     */
+    public byte[][] encodeParity(byte[][] data, int length) {
+        byte[][] parity = new byte[parityShards][length];
+
+        for (int p = 0; p < parityShards; p++)
+            for (int j = 0; j < dataShards; j++)
+                multiplyAdd(matrix[dataShards + p][j], data[j], parity[p], length);
+
+        return parity;
+    }
+
+    /**
+     * Rebuilds the data fragments of a stripe from any dataShards of its fragments
+     *
+     * @param shards  dataShards + parityShards fragments of length bytes, the missing ones may be null
+     * @param present Which fragments are there
+     * @param length  Bytes of each fragment
+     * @return dataShards fragments, the ones that were there are returned as they are
+     */
+    public byte[][] decode(byte[][] shards, boolean[] present, int length) {
+        byte[][] data = new byte[dataShards][];
+        boolean complete = true;
+
+        for (int j = 0; j < dataShards; j++) {
+            data[j] = shards[j];
+            complete &= present[j];
+        }
+
+        if (complete)
+            return data;
+
+        int[] rows = new int[dataShards];
+        int found = 0;
+
+        for (int i = 0; i < shards.length && found < dataShards; i++)
+            if (present[i])
+                rows[found++] = i;
+
+        if (found < dataShards)
+            throw new IllegalArgumentException("Only " + found + " of the " + dataShards + " fragments needed");
+
+        int[][] decoding = new int[dataShards][];
+        for (int i = 0; i < dataShards; i++)
+            decoding[i] = matrix[rows[i]].clone();
+        decoding = invert(decoding);
+
+        for (int j = 0; j < dataShards; j++) {
+            if (present[j])
+                continue;
+
+            data[j] = new byte[length];
+            for (int i = 0; i < dataShards; i++)
+                multiplyAdd(decoding[j][i], shards[rows[i]], data[j], length);
+        }
+
+        return data;
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    private static void multiplyAdd(int coefficient, byte[] source, byte[] target, int length) {
+        if (coefficient == 0)
+            return;
+
+        byte[] row = MULTIPLY[coefficient];
+        int available = Math.min(length, source.length);
+
+        for (int b = 0; b < available; b++)
+            target[b] ^= row[source[b] & 0xFF];
+    }
+
+    /**
+     * Gauss-Jordan elimination, the matrix is always invertible for the rows of this code
+     */
+    private static int[][] invert(int[][] matrix) {
+        int size = matrix.length;
+        int[][] inverse = new int[size][size];
+
+        for (int i = 0; i < size; i++)
+            inverse[i][i] = 1;
+
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (matrix[pivot][column] == 0)
+                pivot++;
+
+            int[] swap = matrix[pivot];
+            matrix[pivot] = matrix[column];
+            matrix[column] = swap;
+            swap = inverse[pivot];
+            inverse[pivot] = inverse[column];
+            inverse[column] = swap;
+
+            int scale = inverse(matrix[column][column]);
+            for (int c = 0; c < size; c++) {
+                matrix[column][c] = multiply(matrix[column][c], scale);
+                inverse[column][c] = multiply(inverse[column][c], scale);
+            }
+
+            for (int row = 0; row < size; row++) {
+                int factor = matrix[row][column];
+
+                if (row == column || factor == 0)
+                    continue;
+
+                for (int c = 0; c < size; c++) {
+                    matrix[row][c] ^= multiply(factor, matrix[column][c]);
+                    inverse[row][c] ^= multiply(factor, inverse[column][c]);
+                }
+            }
+        }
+
+        return inverse;
+    }
+
+    private static int multiply(int a, int b) {
+        if (a == 0 || b == 0)
+            return 0;
+
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[FIELD_SIZE - 1 - LOG[a]];
+    }
+}
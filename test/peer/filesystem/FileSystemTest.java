@@ -0,0 +1,107 @@
+package peer.filesystem;
+
+import peer.protocols.messages.Header;
+import peer.protocols.messages.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Metadata of a file whose new version was being backed up when the peer stopped, as found by the peer when it starts again
+ */
+public class FileSystemTest {
+    private static final String OLD_ID = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+    private static final String NEW_ID = "BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB";
+    private static final String DONE_OLD_ID = "CCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCC";
+    private static final String DONE_NEW_ID = "DDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDD";
+    private static final String FRAGMENTED_ID = "EEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEE";
+
+    public static void main(String[] args) throws IOException {
+        File directory = Files.createTempDirectory("filesystem-test").toFile();
+        System.setProperty("user.dir", directory.getAbsolutePath());
+
+        try {
+            previousVersionSurvivesReload();
+            fragmentKeepsStripeWidth();
+        } finally {
+            try (Stream<java.nio.file.Path> paths = Files.walk(directory.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+            }
+        }
+
+        System.out.println("FileSystemTest: OK");
+    }
+
+    private static void previousVersionSurvivesReload() {
+        FileSystem fileSystem = new FileSystem(7);
+
+        //Stopped with one chunk of the new version short of its replication level
+        replace(fileSystem, "cut.txt", OLD_ID, NEW_ID, 1);
+
+        //Stopped after every chunk of the new version was stored, before the previous version was retired
+        replace(fileSystem, "done.txt", DONE_OLD_ID, DONE_NEW_ID, 2);
+
+        fileSystem.flushJournal();
+
+        FileSystem reloaded = new FileSystem(7);
+        FileInfo cut = reloaded.getFilenameFileInfo().get("cut.txt");
+        FileInfo done = reloaded.getFilenameFileInfo().get("done.txt");
+
+        check(cut != null && cut.getFileId().equals(NEW_ID), "new version not reloaded");
+        check(cut.getPreviousVersion() != null && cut.getPreviousVersion().getFileId().equals(OLD_ID), "previous version not reloaded");
+        check(!reloaded.isBackedUp(cut), "interrupted backup seen as backed up");
+
+        check(done.getPreviousVersion() != null, "previous version of the finished backup not reloaded");
+        check(reloaded.isBackedUp(done), "finished backup seen as interrupted");
+    }
+
+    /**
+     * A fragment held for another peer keeps the width of its stripe, the PUTCHUNK that replaces it after a REMOVED carries it
+     */
+    private static void fragmentKeepsStripeWidth() throws IOException {
+        FileSystem fileSystem = new FileSystem(8);
+
+        Header header = new Header("1.1", 2, FRAGMENTED_ID, 5, 1, "PUTCHUNK");
+        header.setStripeWidth(4);
+        fileSystem.storeChunk(new Message(header, new byte[]{1, 2, 3}));
+        fileSystem.flushJournal();
+
+        FileSystem reloaded = new FileSystem(8);
+
+        check(reloaded.getChunkStripeWidth(FRAGMENTED_ID, 5) == 4, "stripe width of the fragment not reloaded");
+        check(reloaded.getChunkStripeWidth(FRAGMENTED_ID, 4) == 0, "stripe width of a chunk not held");
+    }
+
+    /**
+     * A file of two chunks being replaced by a new version with the given chunks stored
+     */
+    private static void replace(FileSystem fileSystem, String filename, String oldId, String newId, int chunksStored) {
+        FileInfo previousVersion = new FileInfo(filename, oldId, 2, 1);
+        FileInfo fileInfo = new FileInfo(filename, newId, 2, 1);
+        fileInfo.setPreviousVersion(previousVersion);
+
+        FileChunks oldChunks = new FileChunks(2, 1, 0, 0);
+        oldChunks.incrementReplicationLevel(0);
+        oldChunks.incrementReplicationLevel(1);
+
+        FileChunks newChunks = new FileChunks(2, 1, 0, 0);
+        for (int chunkNo = 0; chunkNo < chunksStored; chunkNo++)
+            newChunks.incrementReplicationLevel(chunkNo);
+
+        fileSystem.getInternalFiles().put(oldId, oldChunks);
+        fileSystem.getInternalFiles().put(newId, newChunks);
+        fileSystem.getFilenameFileInfo().put(filename, fileInfo);
+
+        fileSystem.journalChunks(ChunkTable.INTERNAL, oldId);
+        fileSystem.journalChunks(ChunkTable.INTERNAL, newId);
+        fileSystem.journalFileInfo(filename);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
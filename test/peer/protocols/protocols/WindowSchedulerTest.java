@@ -0,0 +1,119 @@
+package peer.protocols.protocols;
+
+import peer.filesystem.FileInfo;
+import peer.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Round trip samples of the window: only the chunks done after a single send they can be answered to are measured
+ */
+public class WindowSchedulerTest {
+
+    public static void main(String[] args) {
+        chunkSentOnceIsSampled();
+        retransmittedChunkIsNotSampled();
+        firstSendAfterProbeIsSampled();
+
+        System.out.println("WindowSchedulerTest: OK");
+    }
+
+    private static void chunkSentOnceIsSampled() {
+        TestScheduler scheduler = new TestScheduler(1, 60000);
+
+        scheduler.pump(true);
+        scheduler.done.add(0);
+        scheduler.pump(false);
+
+        check(scheduler.samples.equals(List.of(0)), "chunk sent once not sampled: " + scheduler.samples);
+    }
+
+    private static void retransmittedChunkIsNotSampled() {
+        TestScheduler scheduler = new TestScheduler(2, 0);
+
+        //Every deadline expires at once, so the second pump sends both chunks again
+        scheduler.pump(true);
+        scheduler.done.add(0);
+        scheduler.pump(true);
+
+        check(scheduler.resent.equals(List.of(1)), "expected chunk 1 sent again: " + scheduler.resent);
+
+        scheduler.done.add(1);
+        scheduler.pump(false);
+
+        check(scheduler.samples.equals(List.of(0)), "retransmitted chunk sampled: " + scheduler.samples);
+    }
+
+    private static void firstSendAfterProbeIsSampled() {
+        TestScheduler scheduler = new TestScheduler(1, 0);
+        scheduler.retransmits = false;
+
+        //The probe expires and the body goes out, the chunk is answered to the body alone
+        scheduler.pump(true);
+        scheduler.pump(true);
+        scheduler.done.add(0);
+        scheduler.pump(false);
+
+        check(scheduler.samples.equals(List.of(0)), "first send after the probe not sampled: " + scheduler.samples);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    private static class TestScheduler extends WindowScheduler {
+        private final long timeout;
+        final Set<Integer> done = new HashSet<>();
+        final List<Integer> resent = new ArrayList<>();
+        final List<Integer> samples = new ArrayList<>();
+        boolean retransmits = true;
+
+        TestScheduler(int chunks, long timeout) {
+            super(null, new FileInfo("file", "id", chunks, 1), chunks, 5, 1000, new Logger(0));
+            this.timeout = timeout;
+        }
+
+        @Override
+        protected boolean isDone(int chunkNo) {
+            return done.contains(chunkNo);
+        }
+
+        @Override
+        protected boolean isComplete() {
+            return false;
+        }
+
+        @Override
+        protected long timeout(int attempt) {
+            return timeout;
+        }
+
+        @Override
+        protected void send(int chunkNo) {
+        }
+
+        @Override
+        protected boolean resend(int chunkNo, int attempt) {
+            resent.add(chunkNo);
+            return retransmits;
+        }
+
+        @Override
+        protected boolean giveUp(int chunkNo) {
+            return false;
+        }
+
+        @Override
+        protected void finished(boolean success) {
+        }
+
+        @Override
+        protected void roundTrip(int chunkNo, long rtt) {
+            samples.add(chunkNo);
+        }
+    }
+}